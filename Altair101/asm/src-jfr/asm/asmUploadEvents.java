@@ -0,0 +1,129 @@
+/*
+    Flight Recorder events for uploads, committed by asmUploadMetrics.
+
+    In its own source folder, src-jfr, because it imports jdk.jfr, which isn't in the Java 8 API.
+    The src folder compiles with javac --release 8, without it.
+    build.xml compiles this folder after src, when the JDK that runs the build has jdk.jfr.
+    asmUploadMetrics loads the class by name, only when the Java runtime has jdk.jfr.
+    Events are only recorded while a recording is running, otherwise a commit does nothing.
+    + asm.Upload      : one event for each upload, with the totals.
+    + asm.UploadBlock : one event for each ACKed block, with its round trip time.
+
+ */
+package asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+public class asmUploadEvents implements asmUploadMetrics.Recorder {
+
+    @Name("asm.Upload")
+    @Label("Upload")
+    @Category("Altair 101")
+    static class UploadEvent extends Event {
+
+        @Label("Port")
+        String port;
+        @Label("Baud Rate")
+        int baudRate;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Line Bytes")
+        @DataAmount
+        long lineBytes;
+        @Label("Bytes per Second")
+        double bytesPerSecond;
+        @Label("Nominal Bytes per Second")
+        double nominalBytesPerSecond;
+        @Label("Blocks")
+        int blocks;
+        @Label("Retransmits")
+        int retransmits;
+        @Label("Reply Timeouts")
+        int timeouts;
+        @Label("Upload Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long uploadTime;
+        @Label("Stall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long stallTime;
+        @Label("Average Block Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long averageBlockTime;
+        @Label("Average ACK Round Trip")
+        @Timespan(Timespan.NANOSECONDS)
+        long averageRoundTrip;
+        @Label("Max ACK Round Trip")
+        @Timespan(Timespan.NANOSECONDS)
+        long maxRoundTrip;
+    }
+
+    @Name("asm.UploadBlock")
+    @Label("Upload Block")
+    @Category("Altair 101")
+    static class BlockEvent extends Event {
+
+        @Label("Port")
+        String port;
+        @Label("Sequence")
+        int sequence;
+        @Label("Block")
+        int block;
+        @Label("Address")
+        int address;
+        @Label("Retries")
+        int retries;
+        @Label("ACK Round Trip")
+        @Timespan(Timespan.NANOSECONDS)
+        long roundTrip;
+        @Label("Block Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long blockTime;
+    }
+
+    // -------------------------------------------------------------------------
+    @Override
+    public void commitUpload(asmUploadMetrics theMetrics) {
+        UploadEvent theEvent = new UploadEvent();
+        if (!theEvent.isEnabled()) {
+            return;
+        }
+        theEvent.port = theMetrics.getPortName();
+        theEvent.baudRate = theMetrics.getBaudRate();
+        theEvent.bytes = theMetrics.getByteCount();
+        theEvent.lineBytes = theMetrics.getLineByteCount();
+        theEvent.bytesPerSecond = theMetrics.getBytesPerSecond();
+        theEvent.nominalBytesPerSecond = theMetrics.getNominalBytesPerSecond();
+        theEvent.blocks = theMetrics.getBlockCount();
+        theEvent.retransmits = theMetrics.getRetransmitCount();
+        theEvent.timeouts = theMetrics.getTimeoutCount();
+        theEvent.uploadTime = theMetrics.getNanos();
+        theEvent.stallTime = theMetrics.getStallNanos();
+        theEvent.averageBlockTime = theMetrics.getAverageBlockNanos();
+        theEvent.averageRoundTrip = theMetrics.getAverageLatencyNanos();
+        theEvent.maxRoundTrip = theMetrics.getMaxLatencyNanos();
+        theEvent.commit();
+    }
+
+    @Override
+    public void commitBlock(String thePortName, int theSequence, int theBlock, int theAddress, int theRetries,
+            long theRoundTrip, long theBlockTime) {
+        BlockEvent theEvent = new BlockEvent();
+        if (!theEvent.isEnabled()) {
+            return;
+        }
+        theEvent.port = thePortName;
+        theEvent.sequence = theSequence;
+        theEvent.block = theBlock;
+        theEvent.address = theAddress;
+        theEvent.retries = theRetries;
+        theEvent.roundTrip = theRoundTrip;
+        theEvent.blockTime = theBlockTime;
+        theEvent.commit();
+    }
+}
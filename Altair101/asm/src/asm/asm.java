@@ -27,6 +27,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,13 +36,20 @@ public class asm {
 
     asmProcessor processFile = new asmProcessor();
     asmOpcodes theOpcodes = new asmOpcodes();
+    asmEmulator theEmulator = new asmEmulator();
+    asmDebugger theDebugger = new asmDebugger();
+    private asmDebugMap debugMap = null;
+    private String debugMapFile = "";
+    private long debugMapModified = 0;
 
     private static final String ASMVERSION = "0.96b";
 
     BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
     private static String sourcedirectoy = "programs";
+    private static long emulatorMaxSteps = 100000000;  // Stop the emulator after this many steps, if it doesn't halt.
+    private static int emulatorTraceSteps = 0;          // Number of steps kept in the trace buffer, 0 for no trace.
 
-    private static final String LISTOPTIONS = "<file|bytes|opcodes|ports>";
+    private static final String LISTOPTIONS = "<file|bytes|opcodes|ports|symbols>";
     private static final String SETOPTIONS = "<directory|source|byte|port|ignore";
 
     // -------------------------------------------------------------------------
@@ -92,6 +101,135 @@ public class asm {
         // System.out.println("+ End of list.");
     }
 
+    // -------------------------------------------------------------------------
+    // Debug map of the machine code file: from the map file written by the assembler, else from the parsed program.
+    public asmDebugMap emulatorDebugMap(String byteFile) {
+        File theFile = new File(byteFile + asmDebugMap.FILE_EXTENSION);
+        if (!theFile.exists()) {
+            return processFile.getDebugMap();
+        }
+        if (!byteFile.equals(debugMapFile) || theFile.lastModified() != debugMapModified) {
+            debugMap = asmDebugMap.readFile(theFile.getPath());
+            debugMapFile = byteFile;
+            debugMapModified = theFile.lastModified();
+        }
+        if (debugMap == null) {
+            return processFile.getDebugMap();
+        }
+        return debugMap;
+    }
+
+    // Return the address of a label from the debug map, or the value of a number, for example: 80h.
+    // Returns -1 if not found.
+    public int emulatorAddress(String byteFile, String theValue) {
+        asmDebugMap theMap = emulatorDebugMap(byteFile);
+        if (theMap != null) {
+            int theAddress = theMap.findSymbol(theValue);
+            if (theAddress != asmDebugMap.NOT_FOUND) {
+                return theAddress;
+            }
+        }
+        try {
+            return Integer.parseInt(processFile.convertValueToInt(theValue));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Print the next opcode address with its label and source line.
+    public void emulatorPrintNext(String byteFile) {
+        int theAddress = theEmulator.regPC;
+        String theText = String.format("+ Next: %04X", theAddress);
+        asmDebugMap theMap = emulatorDebugMap(byteFile);
+        if (theMap != null) {
+            theText += " " + theMap.getSymbolText(theAddress);
+            int theLine = theMap.getLineNumber(theAddress);
+            if (theLine != asmDebugMap.NOT_FOUND) {
+                theText += ", line " + theLine + ": " + theMap.getSourceLine(theLine);
+            }
+        }
+        System.out.println(theText);
+    }
+
+    // Run the machine code file in the emulator, with or without the profiler.
+    // If not loading the file, continue from where the emulator stopped.
+    public void emulatorRun(String byteFile, String theSteps, boolean doProfile, boolean doLoad) {
+        long maxSteps = emulatorMaxSteps;
+        if (!theSteps.equals("")) {
+            try {
+                maxSteps = Long.parseLong(theSteps);
+            } catch (NumberFormatException e) {
+                System.out.println("- Error, invalid number of steps: " + theSteps);
+                return;
+            }
+        }
+        if (doLoad) {
+            theEmulator.reset();
+            theEmulator.clearMemory();
+            int theLength = theEmulator.loadFile(byteFile, 0);
+            if (theLength == 0) {
+                return;
+            }
+            System.out.println("+ Loaded " + theLength + " bytes from: " + byteFile + ". Run, maximum steps: " + maxSteps);
+        } else if (theEmulator.halted) {
+            System.out.println("+ The program is halted. Use: run, to restart it.");
+            return;
+        }
+        theEmulator.setDebugger(theDebugger);
+        asmProfiler theProfiler = null;
+        if (doProfile) {
+            theProfiler = new asmProfiler();
+        }
+        theEmulator.setProfiler(theProfiler);
+        asmTrace theTrace = theEmulator.getTrace();
+        if (emulatorTraceSteps == 0) {
+            theTrace = null;
+        } else if (theTrace == null || theTrace.getCapacity() != emulatorTraceSteps) {
+            try {
+                theTrace = new asmTrace(emulatorTraceSteps);
+            } catch (OutOfMemoryError e) {
+                // The direct buffer memory limit, -XX:MaxDirectMemorySize, defaults to the maximum heap size.
+                System.out.println("- Error, not enough memory for a trace of " + emulatorTraceSteps + " steps, running without a trace.");
+                theTrace = null;
+            }
+        }
+        if (theTrace != null && doLoad) {
+            theTrace.clear();
+        }
+        theEmulator.setTrace(theTrace);
+        int stopReason = theEmulator.run(maxSteps);
+        System.out.println("");
+        switch (stopReason) {
+            case asmEmulator.STOP_HALT:
+                System.out.println("+ Halted.");
+                break;
+            case asmEmulator.STOP_BREAK:
+                System.out.println("+ Stopped at a breakpoint.");
+                break;
+            case asmEmulator.STOP_WATCH:
+                System.out.println("+ Stopped, watchpoint: " + theDebugger.getHitText());
+                break;
+            default:
+                System.out.println("+ Stopped, number of steps processed.");
+                break;
+        }
+        theEmulator.printRegisters();
+        emulatorPrintNext(byteFile);
+        if (theTrace != null && stopReason != asmEmulator.STOP_LIMIT) {
+            // Keep the steps leading up to the halt or break, for later review.
+            theTrace.dumpToFile(byteFile + ".trace");
+            theTrace.printLast(20, emulatorDebugMap(byteFile));
+        }
+        if (doProfile) {
+            asmDebugMap theMap = emulatorDebugMap(byteFile);
+            if (theMap == null) {
+                System.out.println("+ No debug map, the report does not include source lines. Use: asm, to write the map file.");
+            }
+            theProfiler.printReport(theMap, theEmulator.memory);
+            theEmulator.setProfiler(null);
+        }
+    }
+
     // -------------------------------------------------------------------------
     public void run() {
         // asmProcessor doList = new asmProcessor();
@@ -154,6 +292,25 @@ public class asm {
                     System.out.println("+ Write the program byte array to the file: " + byteFile + ":");
                     processFile.programBytesListAndWrite(byteFile);
                     break;
+                case "asmup":
+                    // > asmup [block | rle]
+                    // Parse, then upload the program image from memory, without writing the machine code file.
+                    System.out.println("+ -------------------------------------");
+                    System.out.println("+ Parse and upload the program: " + sourceFile + ":");
+                    processFile.parseFile(fullFilename);
+                    ByteBuffer theImage = processFile.getProgramImage();
+                    if (theImage == null) {
+                        break;
+                    }
+                    System.out.println("+ Program image, number of bytes: " + theImage.remaining());
+                    if (cmdP1.equals("block")) {
+                        asmBlockUpload.sendImage(theImage, byteFile, false);
+                    } else if (cmdP1.equals("rle")) {
+                        asmBlockUpload.sendImage(theImage, byteFile, true);
+                    } else {
+                        asmUpload.sendImage(theImage, sourceFile);
+                    }
+                    break;
                 case "parse":
                     System.out.println("+ -------------------------------------");
                     System.out.println("+ Parse the program file: " + sourceFile + ":");
@@ -221,6 +378,15 @@ public class asm {
                             System.out.println("+ -------------------------------------");
                             theOpcodes.opcodeInfoList();
                             break;
+                        case "symbols":
+                            System.out.println("+ -------------------------------------");
+                            asmDebugMap theMap = emulatorDebugMap(byteFile);
+                            if (theMap == null) {
+                                System.out.println("+ No debug map. Use: asm, to parse the program and write the map file.");
+                            } else {
+                                theMap.listSymbols();
+                            }
+                            break;
                         case "ports":
                             System.out.println("+ -------------------------------------");
                             System.out.println("+ Serial port name set to: " + getSerialPortName());
@@ -321,6 +487,109 @@ public class asm {
                                 setSerialPortName(cmdP2);
                             }
                             break;
+                        case "steps":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ Emulator maximum run steps: " + emulatorMaxSteps + ".");
+                            } else {
+                                emulatorMaxSteps = Long.parseLong(cmdP2);
+                                System.out.println("+ Set emulator maximum run steps to: " + cmdP2);
+                            }
+                            break;
+                        case "trace":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ Emulator trace, number of steps kept: " + emulatorTraceSteps + ". 0 is no trace.");
+                            } else {
+                                int theSteps;
+                                try {
+                                    theSteps = Integer.parseInt(cmdP2);
+                                } catch (NumberFormatException e) {
+                                    theSteps = -1;
+                                }
+                                if (theSteps < 0 || theSteps > asmTrace.MAX_CAPACITY) {
+                                    System.out.println("- Error, the number of trace steps must be from 0 to " + asmTrace.MAX_CAPACITY + ": " + cmdP2);
+                                } else {
+                                    emulatorTraceSteps = theSteps;
+                                    System.out.println("+ Set emulator trace number of steps kept to: " + cmdP2);
+                                }
+                            }
+                            break;
+                        case "bytecost":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ UART model, device processing time per byte: " + asmUartModel.getByteCost() + " microseconds.");
+                            } else {
+                                asmUartModel.setByteCost(Integer.parseInt(cmdP2));
+                                System.out.println("+ UART model, set device processing time per byte to: " + cmdP2);
+                            }
+                            break;
+                        case "crcost":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ UART model, device processing time per CR or LF: " + asmUartModel.getCrCost() + " microseconds.");
+                            } else {
+                                asmUartModel.setCrCost(Integer.parseInt(cmdP2));
+                                System.out.println("+ UART model, set device processing time per CR or LF to: " + cmdP2);
+                            }
+                            break;
+                        case "basic":
+                            if (cmdP2.length() > 0) {
+                                asmBasicTokenizer.setDialect(cmdP2);
+                            }
+                            System.out.println("+ Basic version for tokenizing: " + asmBasicTokenizer.getDialect());
+                            break;
+                        case "basicbase":
+                            // > set basicbase <address | device>
+                            if (cmdP2.equals("device")) {
+                                asmBasicTokenizer.setProgramBase(-1);
+                            } else if (cmdP2.length() > 0) {
+                                asmBasicTokenizer.setProgramBase(Integer.parseInt(processFile.convertValueToInt(cmdP2)));
+                            }
+                            if (asmBasicTokenizer.getProgramBase() < 0) {
+                                System.out.println("+ Basic program base address: read from the device.");
+                            } else {
+                                System.out.println(String.format("+ Basic program base address: %04X", asmBasicTokenizer.getProgramBase()));
+                            }
+                            break;
+                        case "basicpointers":
+                            // > set basicpointers <PROGRAM_BASE address> <VAR_BASE address>
+                            String[] thePointers = cmdP2.split(" +");
+                            if (thePointers.length == 2) {
+                                asmBasicTokenizer.setProgramBasePointer(Integer.parseInt(processFile.convertValueToInt(thePointers[0])));
+                                asmBasicTokenizer.setVarBasePointer(Integer.parseInt(processFile.convertValueToInt(thePointers[1])));
+                            }
+                            System.out.println(String.format("+ Basic pointer addresses, PROGRAM_BASE: %04X, VAR_BASE: %04X",
+                                    asmBasicTokenizer.getProgramBasePointer() & 0xffff, asmBasicTokenizer.getVarBasePointer() & 0xffff));
+                            break;
+                        case "idletimeout":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ Serial port idle timeout: " + asmPortRegistry.getIdleTimeout() + " milliseconds. 0 closes the port after each use.");
+                            } else {
+                                asmPortRegistry.setIdleTimeout(Integer.parseInt(cmdP2));
+                                System.out.println("+ Set serial port idle timeout to: " + cmdP2);
+                            }
+                            break;
+                        case "echotimeout":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ Echo paced upload, timeout: " + asmUpload.getEchoTimeout() + " milliseconds.");
+                            } else {
+                                asmUpload.setEchoTimeout(Integer.parseInt(cmdP2));
+                                System.out.println("+ Echo paced upload, set timeout to: " + cmdP2);
+                            }
+                            break;
+                        case "blocksize":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ Block upload, block size: " + asmBlockUpload.getBlockSize() + ".");
+                            } else {
+                                asmBlockUpload.setBlockSize(Integer.parseInt(cmdP2));
+                                System.out.println("+ Block upload, block size: " + asmBlockUpload.getBlockSize());
+                            }
+                            break;
+                        case "hotspots":
+                            if (cmdP2.length() == 0) {
+                                System.out.println("+ Profile report, number of hot spots and loops listed: " + asmProfiler.getHotSpotCount() + ".");
+                            } else {
+                                asmProfiler.setHotSpotCount(Integer.parseInt(cmdP2));
+                                System.out.println("+ Set profile report number of hot spots to: " + cmdP2);
+                            }
+                            break;
                         case "source":
                             if (!cmdP2.equals("")) {
                                 sourceFile = cmdP2;
@@ -354,8 +623,217 @@ public class asm {
                 // -------------------------------------------------------------
                 case "upload":
                     System.out.println("+ -------------------------------------");
-                    System.out.println("+ Write to the serial port, the program file: " + byteFile + ":");
-                    sendFile(byteFile);
+                    if (!cmdP1.equals("basic")) {
+                        System.out.println("+ Write to the serial port, the program file: " + byteFile + ":");
+                    }
+                    if (cmdP1.equals("block")) {
+                        asmBlockUpload.sendFile(byteFile, false);
+                    } else if (cmdP1.equals("rle")) {
+                        asmBlockUpload.sendFile(byteFile, true);
+                    } else if (cmdP1.equals("delta")) {
+                        asmUploadDelta.sendFile(byteFile);
+                    } else if (cmdP1.equals("echo")) {
+                        asmUpload.sendFileEcho(byteFile);
+                    } else if (cmdP1.equals("basic")) {
+                        // > upload basic <Basic program file>
+                        asmBasicTokenizer.sendFile(cmdP2);
+                    } else if (cmdP1.equals("ports")) {
+                        asmMultiUpload.sendFile(byteFile, asmMultiUpload.parsePorts(cmdP2));
+                    } else if (cmdP1.equals("all")) {
+                        asmMultiUpload.sendFile(byteFile, asmMultiUpload.findPorts(cmdP2));
+                    } else {
+                        sendFile(byteFile);
+                    }
+                    break;
+                // -------------------------------------------------------------
+                case "rle":
+                    System.out.println("+ -------------------------------------");
+                    try {
+                        byte[] rleBytes = Files.readAllBytes(new File(byteFile).toPath());
+                        int rleLength = asmUploadEncoding.writeFile(rleBytes, rleBytes.length, byteFile + asmUploadEncoding.FILE_EXTENSION);
+                        System.out.println("+ Run length encoded file created: " + byteFile + asmUploadEncoding.FILE_EXTENSION
+                                + ", bytes: " + rleLength + ", from bytes: " + rleBytes.length);
+                    } catch (IOException ioe) {
+                        System.out.print("+ *** IOException: ");
+                        System.out.println(ioe.toString());
+                    }
+                    break;
+                case "basic":
+                    // > basic <Basic program file>
+                    System.out.println("+ -------------------------------------");
+                    asmBasicTokenizer.tokenizeFile(cmdP1);
+                    break;
+                case "basicsave":
+                    // > basicsave <device | snapshot file | memory dump file> [Basic program file]
+                    System.out.println("+ -------------------------------------");
+                    asmBasicDetokenizer.listProgram(cmdP1, cmdP2);
+                    break;
+                case "verify":
+                    // > verify [fix]
+                    System.out.println("+ -------------------------------------");
+                    asmUploadVerify.verifyFile(byteFile, cmdP1.equals("fix"));
+                    break;
+                case "serve":
+                    // > serve [port number | stop]
+                    System.out.println("+ -------------------------------------");
+                    if (cmdP1.equals("")) {
+                        asmPortServer.printStatus();
+                    } else if (cmdP1.equals("stop")) {
+                        asmPortServer.stop();
+                    } else if (cmdP1.equals("start")) {
+                        asmPortServer.start(asmPortServer.DEFAULT_PORT_NUMBER);
+                    } else {
+                        try {
+                            asmPortServer.start(Integer.parseInt(cmdP1));
+                        } catch (NumberFormatException e) {
+                            System.out.println("- Error, invalid port number: " + cmdP1);
+                        }
+                    }
+                    break;
+                case "monitor":
+                    // > monitor [capture file]
+                    System.out.println("+ -------------------------------------");
+                    asmMonitor.run(this.br, cmdP1);
+                    break;
+                case "pacing":
+                    // > pacing [file]
+                    System.out.println("+ -------------------------------------");
+                    String pacingFile = cmdP1.equals("") ? byteFile : cmdP1;
+                    try {
+                        byte[] pacingBytes = Files.readAllBytes(new File(pacingFile).toPath());
+                        System.out.println("+ Upload sleep times that don't drop bytes, for the file: " + pacingFile);
+                        asmUartModel.printSafePacing(pacingBytes);
+                        asmUartModel pacingModel = new asmUartModel(getBaudRate());
+                        long droppedCount = pacingModel.simulate(pacingBytes, pacingBytes.length, getBaudSleepTime(), getBaudSleepTimeCr());
+                        System.out.println(String.format("+ Current settings, baud rate %d, baudst %d, baudcr %d: dropped bytes %d, upload time %.2f seconds.",
+                                getBaudRate(), getBaudSleepTime(), getBaudSleepTimeCr(), droppedCount, pacingModel.getDoneNanos() / 1e9));
+                    } catch (IOException ioe) {
+                        System.out.print("+ *** IOException: ");
+                        System.out.println(ioe.toString());
+                    }
+                    break;
+                case "run":
+                    System.out.println("+ -------------------------------------");
+                    System.out.println("+ Run the machine code file in the emulator: " + byteFile + ":");
+                    emulatorRun(byteFile, cmdP1, false, true);
+                    break;
+                case "go":
+                    System.out.println("+ -------------------------------------");
+                    emulatorRun(byteFile, cmdP1, false, false);
+                    break;
+                case "s":
+                case "step":
+                    emulatorRun(byteFile, cmdP1.equals("") ? "1" : cmdP1, false, false);
+                    break;
+                case "regs":
+                    theEmulator.printRegisters();
+                    emulatorPrintNext(byteFile);
+                    break;
+                case "x":
+                case "examine":
+                    // > examine <label|address> [number of bytes]
+                    int examineAddress = emulatorAddress(byteFile, cmdP1);
+                    if (examineAddress < 0) {
+                        System.out.println("- Invalid address: " + cmdP1);
+                        break;
+                    }
+                    int examineCount = cmdP2.equals("") ? 16 : Integer.parseInt(cmdP2);
+                    for (int i = 0; i < examineCount; i++) {
+                        if (i % 16 == 0) {
+                            System.out.print(String.format("%s++ %04X:", (i > 0 ? "\n" : ""), (examineAddress + i) & 0xffff));
+                        }
+                        System.out.print(String.format(" %02X", theEmulator.readMemory((examineAddress + i) & 0xffff)));
+                    }
+                    System.out.println("");
+                    break;
+                case "break":
+                    // > break [clear] [<label|address>]
+                    if (cmdP1.equals("")) {
+                        theDebugger.list(emulatorDebugMap(byteFile));
+                    } else if (cmdP1.equals("clear") && cmdP2.equals("")) {
+                        theDebugger.clearAll();
+                        System.out.println("+ Breakpoints and watchpoints cleared.");
+                    } else {
+                        boolean setBreak = !cmdP1.equals("clear");
+                        String breakValue = setBreak ? cmdP1 : cmdP2;
+                        int breakAddress = emulatorAddress(byteFile, breakValue);
+                        if (breakAddress < 0) {
+                            System.out.println("- Invalid address: " + breakValue);
+                            break;
+                        }
+                        theDebugger.setBreakpoint(breakAddress, setBreak);
+                        System.out.println(String.format("+ Breakpoint %s: %s %04X", setBreak ? "set" : "cleared", breakValue, breakAddress));
+                    }
+                    break;
+                case "watch":
+                    // > watch <read|write|in|out> [clear] <label|address|port>
+                    int watchType = asmDebugger.watchType(cmdP1);
+                    if (watchType < 0) {
+                        theDebugger.list(emulatorDebugMap(byteFile));
+                        break;
+                    }
+                    boolean setWatch = !cmdP2.startsWith("clear");
+                    String watchValue = setWatch ? cmdP2 : cmdP2.substring("clear".length()).trim();
+                    int watchAddress = emulatorAddress(byteFile, watchValue);
+                    if (watchAddress < 0) {
+                        System.out.println("- Invalid address or port: " + watchValue);
+                        break;
+                    }
+                    theDebugger.setWatch(watchType, watchAddress, setWatch);
+                    System.out.println(String.format("+ Watch %s %s: %s %04X", cmdP1, setWatch ? "set" : "cleared", watchValue, watchAddress));
+                    break;
+                case "profile":
+                    System.out.println("+ -------------------------------------");
+                    System.out.println("+ Profile the machine code file in the emulator: " + byteFile + ":");
+                    emulatorRun(byteFile, cmdP1, true, true);
+                    break;
+                case "trace":
+                    // > trace [number of steps|file|list]
+                    System.out.println("+ -------------------------------------");
+                    String traceNumber = cmdP1.equals("list") ? cmdP2 : cmdP1;
+                    int traceSteps = 20;
+                    if (!traceNumber.equals("") && !traceNumber.equals("file")) {
+                        try {
+                            traceSteps = Integer.parseInt(traceNumber);
+                        } catch (NumberFormatException e) {
+                            System.out.println("- Error, invalid number of trace steps: " + traceNumber);
+                            break;
+                        }
+                    }
+                    if (cmdP1.equals("list")) {
+                        asmTrace.listFile(byteFile + ".trace", traceSteps, emulatorDebugMap(byteFile));
+                    } else if (theEmulator.getTrace() == null) {
+                        System.out.println("+ No trace. To record a trace: set trace <number of steps>, then run.");
+                    } else if (cmdP1.equals("file")) {
+                        theEmulator.getTrace().dumpToFile(byteFile + ".trace");
+                    } else {
+                        theEmulator.getTrace().printLast(traceSteps, emulatorDebugMap(byteFile));
+                    }
+                    break;
+                case "snapshot":
+                    // > snapshot <save|load> [file]
+                    System.out.println("+ -------------------------------------");
+                    String snapshotFile = cmdP2.equals("") ? byteFile + asmSnapshot.FILE_EXTENSION : cmdP2;
+                    try {
+                        switch (cmdP1) {
+                            case "save":
+                                asmSnapshot.save(theEmulator, snapshotFile);
+                                System.out.println("+ Emulator snapshot saved to: " + snapshotFile);
+                                break;
+                            case "load":
+                                asmSnapshot.open(snapshotFile).restore(theEmulator);
+                                System.out.println("+ Emulator snapshot loaded from: " + snapshotFile);
+                                theEmulator.printRegisters();
+                                emulatorPrintNext(byteFile);
+                                break;
+                            default:
+                                System.out.println("- Invalid snapshot option: " + cmdP1 + ". Options: save, load.");
+                                break;
+                        }
+                    } catch (IOException ioe) {
+                        System.out.print("+ *** IOException: ");
+                        System.out.println(ioe.toString());
+                    }
                     break;
                 // -------------------------------------------------------------
                 case "c":
@@ -380,6 +858,8 @@ public class asm {
                     break;
                 case "exit":
                     System.out.println("+ -------------------------------------");
+                    asmPortServer.shutdownServer();
+                    asmPortRegistry.closeAll();
                     System.out.println("+++ Exit.");
                     break;
                 // -------------------------------------------------------------
@@ -410,6 +890,7 @@ public class asm {
                     System.out.println("+ dir|ls             : List files in the set program directory.");
                     System.out.println("");
                     System.out.println("+ asm                : Parse the program source file and write the machine code bytes to a file.");
+                    System.out.println("+ asmup [block|rle]  : Parse the program source file and upload the machine code bytes, without writing a file.");
                     System.out.println("+ parse              : Parse the program source file.");
                     System.out.println("+ write              : Write the machine code bytes to a file.");
                     System.out.println("+ list               : List the program source file.");
@@ -421,6 +902,7 @@ public class asm {
                     System.out.println("> list " + LISTOPTIONS);
                     System.out.println("+ list                : List the program source file.");
                     System.out.println("+ list bytes          : List the parsed machine byte code and info.");
+                    System.out.println("+ list symbols        : List the labels from the debug map file: <machine byte code file name>.dbg");
                     System.out.println("");
                     System.out.println("----------------------");
                     System.out.println("> set " + SETOPTIONS);
@@ -448,13 +930,61 @@ public class asm {
                     System.out.println("++ Serial port baud rate ST : " + getBaudSleepTime());
                     System.out.println("++ Serial port baud rate CR : " + getBaudSleepTimeCr());
                     System.out.println("+ set port                  : List available serial ports.");
-                    System.out.println("+ set port <serial-port>    : Set serial port to use for uploading.");
+                    System.out.println("+ set port <serial-port>    : Set serial port to use for uploading, by name or USB description.");
+                    System.out.println("+ set port loopback         : Upload to an in-memory device stand-in, for testing without a board.");
+                    System.out.println("+ set port /dev/pts/<n>     : Upload to a Linux pseudo terminal, for example, created with socat.");
+                    System.out.println("+ set port tcp:<n>          : Use the serial port shared by a port server, see: serve.");
                     System.out.println("+ set baud                  : List available serial ports.");
                     System.out.println("+ set baud <baud rate>      : Set serial port baud rate for uploading.");
                     System.out.println("+ set baudst                : List baud rate sleep time (between sending bytes).");
                     System.out.println("+ set baudst <sleep time>   : Set baud rate sleep time for uploading.");
                     System.out.println("+ set baudcr                : List baud rate sleep time after sending a CR.");
                     System.out.println("+ set baudcr <sleep time>   : Set baud rate sleep time after sending a CR.");
+                    System.out.println("+ pacing [file]             : Use the UART model to find the sleep times that don't drop bytes, for each baud rate.");
+                    System.out.println("+ set bytecost <microseconds> : UART model, device processing time per byte.");
+                    System.out.println("+ set crcost <microseconds> : UART model, device processing time per CR or LF, for example, Basic.");
+                    System.out.println("+ upload block              : Upload using framed blocks. The device ACKs blocks and grants credits, no sleep times.");
+                    System.out.println("+ set blocksize <bytes>     : Set the block upload data bytes per block, 1 to 255.");
+                    System.out.println("+ verify                    : Verify the device memory matches the machine code file, by block CRCs.");
+                    System.out.println("+ verify fix                : Verify, then upload the blocks that differ.");
+                    System.out.println("+ serve start               : Share the serial port with other clients, on local port " + asmPortServer.DEFAULT_PORT_NUMBER + ".");
+                    System.out.println("+ serve <port number>       : Share the serial port with other clients, on the local port.");
+                    System.out.println("+ serve [stop]              : Show the port server clients, or stop the port server.");
+                    System.out.println("+ monitor [capture file]    : Serial monitor terminal. Optionally, capture the received bytes, with times, to a file.");
+                    System.out.println("+ upload ports <port> ...   : Block upload to each of the serial ports, at the same time.");
+                    System.out.println("+ upload all [match]        : Block upload to all the serial ports that match the name or USB description.");
+                    System.out.println("+ upload rle                : Block upload, run length encoded. Runs of filler bytes are sent as a few bytes.");
+                    System.out.println("+ rle                       : Write the machine code file run length encoded: <machine byte code file name>.rle");
+                    System.out.println("+ upload delta              : Block upload of only the 16 byte chunks that changed since the last block upload to the port.");
+                    System.out.println("+ upload echo               : Upload a text file, such as a Basic program, line by line, paced by the device's echo.");
+                    System.out.println("+ set echotimeout <ms>      : Set the time to wait for the echo of a line.");
+                    System.out.println("+ basic <file>              : Tokenize a Basic program file, and print the program memory size.");
+                    System.out.println("+ upload basic <file>       : Tokenize a Basic program file, and block upload it into the Basic program memory.");
+                    System.out.println("+ basicsave <source> [file] : List the Basic program in memory to a file, or the screen.");
+                    System.out.println("++ Source                   : device, a snapshot file (.snap), or a memory dump file from address 0.");
+                    System.out.println("+ set basic <4k|8k>         : Set the Basic version for tokenizing.");
+                    System.out.println("+ set basicbase <address>   : Set the Basic program address. 'device' reads it from the device's Basic.");
+                    System.out.println("+ set basicpointers <a> <b> : Set the addresses of the Basic PROGRAM_BASE and VAR_BASE pointers.");
+                    System.out.println("+ set idletimeout <ms>      : Set the time an unused serial port stays open. 0 closes the port after each use.");
+                    System.out.println("----------------------");
+                    System.out.println("+ run [steps]               : Run the machine code file in the emulator, until HLT or the maximum steps.");
+                    System.out.println("+ profile [steps]           : Run in the emulator and print a report of cycles by address, label, and loop.");
+                    System.out.println("++ Emulator maximum steps   : " + emulatorMaxSteps);
+                    System.out.println("+ set steps <number>        : Set the emulator maximum run steps.");
+                    System.out.println("+ set hotspots <number>     : Set the number of hot spots and loops in the profile report.");
+                    System.out.println("+ go [steps]                : Continue running from where the emulator stopped.");
+                    System.out.println("+ step|s [steps]            : Step one, or a number of, opcodes. Then list the registers and next source line.");
+                    System.out.println("+ regs                      : List the emulator registers and the next source line.");
+                    System.out.println("+ examine|x <label|address> [bytes] : List emulator memory bytes in hex.");
+                    System.out.println("+ break [clear] <label|address>     : Set or clear a breakpoint. With no parameter, list them.");
+                    System.out.println("+ break clear                       : Clear all breakpoints and watchpoints.");
+                    System.out.println("+ watch <read|write|in|out> [clear] <label|address|port> : Set or clear a watchpoint.");
+                    System.out.println("+ set trace <steps>         : Keep a trace of the last number of steps, for example 2000000. 0 is off.");
+                    System.out.println("+ trace [number]            : List the last traced steps.");
+                    System.out.println("+ trace file                : Write the traced steps to the file: <machine byte code file name>.trace");
+                    System.out.println("+ trace list [number]       : List the last steps from the trace file. A trace file is written when the program halts.");
+                    System.out.println("+ snapshot save [file]      : Save the emulator registers, memory, and device state. Default: <machine byte code file name>.snap");
+                    System.out.println("+ snapshot load [file]      : Restore the emulator from a snapshot file, then use go or step to continue.");
                     System.out.println("----------------------");
                     System.out.println("+ 2int <string>             : String to integer value using: asmProcessor convertValueToInt(<string>).");
                     System.out.println("                            : Example strings, hex: fh, octal: 12o, escape: '\\n', char: 'a', separator: '^^'.");
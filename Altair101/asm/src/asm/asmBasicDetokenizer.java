@@ -0,0 +1,358 @@
+/*
+    Altair Basic detokenizer: list the Basic program in a memory image, as Basic program text.
+
+    The reverse of asmBasicTokenizer, so a program edited on the board can be saved on the host,
+    without listing it over the serial console. Memory images:
+    + An emulator snapshot file, .snap. The snapshot memory is used where it's mapped, without a copy.
+    + A memory dump file, for example, .bin, from address 0. The file is memory mapped.
+    + The device memory, read back with the verify read requests, only from the program base to the end of the program.
+
+    The program lines are a linked list, see asmBasicTokenizer: 4K Basic links to the next line's address,
+    8K Basic links by the line's length. The walk starts from the program base:
+    the set program base, else the PROGRAM_BASE pointer in the image.
+    If neither gives a program, the image is scanned for the longest list of lines that ends with a 0000 link.
+    A line is only listed if it passes the checks: the link leads to the address after the line's 0 byte,
+    and the line numbers increase. So a walk over memory that isn't a program, stops, rather than listing noise.
+    Lines are written as they're walked, to the output file or the console.
+    Tokens are listed by their code, see asmBasicTokenizer.getKeyword. Literal text follows the tokenizer's rules:
+    4K Basic, after REM. 8K Basic, after REM, LOAD and SAVE, and after DATA up to a ':'.
+    8K Basic inserts a ':' before ELSE, so it isn't listed, and tokenizing the listing again inserts it.
+
+ */
+package asm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class asmBasicDetokenizer {
+
+    public static final String DEVICE_SOURCE = "device";
+    private static final int MEMSIZE = 65536;
+    private static final int LINE_HEADER_SIZE = 4;
+    // The smallest line: the header, one character, and the 0 byte.
+    private static final int MIN_LINE_SIZE = LINE_HEADER_SIZE + 2;
+    // The longest line: the header, 255 characters, and the 0 byte.
+    private static final int MAX_LINE_SIZE = LINE_HEADER_SIZE + 256;
+
+    private final ByteBuffer memory;
+    private final StringBuilder line = new StringBuilder();
+    private int lineCount = 0;
+    private int endAddress = 0;
+
+    // Memory index 0 is address 0. The memory can be less than 64K, for example, a dump of the low memory.
+    public asmBasicDetokenizer(ByteBuffer theMemory) {
+        memory = theMemory;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    // The address after the end link, the same as VAR_BASE.
+    public int getEndAddress() {
+        return endAddress;
+    }
+
+    // -------------------------------------------------------------------------
+    private int word(int theAddress) {
+        return (memory.get(theAddress) & 0xff) | (memory.get(theAddress + 1) & 0xff) << 8;
+    }
+
+    // The address of the next line, from the line's link.
+    private int nextLine(int theAddress, int theLink) {
+        return asmBasicTokenizer.is8k() ? theAddress + theLink : theLink;
+    }
+
+    // Returns the address of the line's 0 byte, or -1 if the line doesn't end within the longest line.
+    private int lineEnd(int theAddress) {
+        int theLimit = Math.min(memory.limit(), theAddress + MAX_LINE_SIZE);
+        for (int i = theAddress + LINE_HEADER_SIZE; i < theLimit; i++) {
+            if (memory.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The number of lines in a valid program at the address, or -1 if there isn't a program.
+    public int countLines(int theAddress) {
+        int theCount = 0;
+        int lastLineNumber = -1;
+        while (theAddress >= 0 && theAddress + 1 < memory.limit()) {
+            int theLink = word(theAddress);
+            if (theLink == 0) {
+                return theCount;
+            }
+            int theNext = nextLine(theAddress, theLink);
+            if (theNext < theAddress + MIN_LINE_SIZE || theNext > theAddress + MAX_LINE_SIZE
+                    || theNext >= memory.limit() || memory.get(theNext - 1) != 0) {
+                return -1;
+            }
+            int theLineNumber = word(theAddress + 2);
+            if (theLineNumber <= lastLineNumber || theLineNumber > asmBasicTokenizer.MAX_LINE_NUMBER
+                    || lineEnd(theAddress) + 1 != theNext) {
+                return -1;
+            }
+            lastLineNumber = theLineNumber;
+            theCount++;
+            theAddress = theNext;
+        }
+        return -1;
+    }
+
+    // Scan the memory for the program with the most lines. Returns its address, or -1 if none is found.
+    public int findProgram() {
+        int theBest = -1;
+        int theBestCount = 0;
+        for (int theAddress = 0; theAddress + MIN_LINE_SIZE < memory.limit(); theAddress++) {
+            int theCount = countLines(theAddress);
+            if (theCount > theBestCount) {
+                theBestCount = theCount;
+                theBest = theAddress;
+                // Skip the found program, its lines are shorter programs.
+                theAddress = endAddress(theAddress) - 1;
+            }
+        }
+        return theBest;
+    }
+
+    private int endAddress(int theAddress) {
+        while (word(theAddress) != 0) {
+            theAddress = nextLine(theAddress, word(theAddress));
+        }
+        return theAddress + 2;
+    }
+
+    // The program base: the set address, else the PROGRAM_BASE pointer, else a scan of the memory.
+    public int findProgramBase() {
+        int theBase = asmBasicTokenizer.getProgramBase();
+        if (theBase >= 0) {
+            if (theBase + 1 < memory.limit() && countLines(theBase) >= 0) {
+                return theBase;
+            }
+            System.out.println(String.format("- Error, there isn't a valid program at the set program base: %04X.", theBase));
+            return -1;
+        }
+        int thePointer = asmBasicTokenizer.getProgramBasePointer();
+        if (thePointer >= 0 && thePointer + 1 < memory.limit()) {
+            theBase = word(thePointer);
+            if (theBase > 0 && theBase < memory.limit() && countLines(theBase) >= 0) {
+                return theBase;
+            }
+        }
+        return findProgram();
+    }
+
+    // -------------------------------------------------------------------------
+    // Append the text of a line, expanding the tokens. Text in quotes, and literal text, isn't expanded.
+    private void appendText(int theAddress, int theEnd) {
+        boolean is8k = asmBasicTokenizer.is8k();
+        boolean isQuoted = false;
+        boolean isLiteral = false;
+        // 8K DATA text, literal up to a ':'.
+        boolean isData = false;
+        for (int i = theAddress; i < theEnd; i++) {
+            int theByte = memory.get(i) & 0xff;
+            if (theByte == '"') {
+                isQuoted = !isQuoted;
+            }
+            if (isData && !isQuoted && theByte == ':') {
+                isData = false;
+            }
+            String theKeyword = asmBasicTokenizer.getKeyword(theByte);
+            if (theByte < asmBasicTokenizer.TOKEN_BASE || isQuoted || isLiteral || isData) {
+                if (is8k && theByte == ':' && !isQuoted && !isLiteral && !isData
+                        && i + 1 < theEnd && "ELSE".equals(asmBasicTokenizer.getKeyword(memory.get(i + 1) & 0xff))) {
+                    // The ':' that 8K Basic inserts before ELSE.
+                    continue;
+                }
+                line.append((char) theByte);
+            } else if (theKeyword != null) {
+                line.append(theKeyword);
+                if (is8k) {
+                    isLiteral = theKeyword.equals("REM") || theKeyword.equals("LOAD") || theKeyword.equals("SAVE");
+                    isData = theKeyword.equals("DATA");
+                } else {
+                    isLiteral = theKeyword.equals("REM");
+                }
+            } else {
+                // Not a token of this Basic version.
+                line.append(String.format("{%02X}", theByte));
+            }
+        }
+    }
+
+    // Write the program lines, starting at the address. Returns the number of lines written.
+    public int list(int theAddress, Writer out) throws IOException {
+        lineCount = 0;
+        endAddress = theAddress;
+        int lastLineNumber = -1;
+        if (theAddress < 0 || theAddress + 1 >= memory.limit()) {
+            System.out.println(String.format("- Error, the program address %04X is outside the memory.", theAddress));
+            return 0;
+        }
+        int theLink = word(theAddress);
+        while (theLink != 0) {
+            if (theAddress + LINE_HEADER_SIZE >= memory.limit()) {
+                System.out.println(String.format("- Error, the line at %04X is outside the memory.", theAddress));
+                break;
+            }
+            int theLineNumber = word(theAddress + 2);
+            int theEnd = lineEnd(theAddress);
+            int theNext = nextLine(theAddress, theLink);
+            if (theEnd < 0 || theNext != theEnd + 1 || theLineNumber <= lastLineNumber) {
+                System.out.println(String.format("- Error, the program ends at %04X, the line after line %d isn't valid.", theAddress, lastLineNumber));
+                break;
+            }
+            line.setLength(0);
+            line.append(theLineNumber).append(' ');
+            appendText(theAddress + LINE_HEADER_SIZE, theEnd);
+            out.write(line.toString());
+            out.write('\n');
+            lineCount++;
+            lastLineNumber = theLineNumber;
+            theAddress = theNext;
+            if (theAddress + 1 >= memory.limit()) {
+                break;
+            }
+            theLink = word(theAddress);
+        }
+        endAddress = theAddress + 2;
+        out.flush();
+        return lineCount;
+    }
+
+    // -------------------------------------------------------------------------
+    // Memory images.
+    public static ByteBuffer mapFile(String theFilename) throws IOException {
+        try (FileChannel theChannel = FileChannel.open(new File(theFilename).toPath(), StandardOpenOption.READ)) {
+            return theChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(theChannel.size(), MEMSIZE));
+        }
+    }
+
+    // Read the device's Basic program, from the PROGRAM_BASE pointer to the VAR_BASE pointer.
+    private static ByteBuffer readDevice(asmTransport theTransport) throws IOException {
+        asmUploadVerify theReader = new asmUploadVerify(theTransport);
+        byte[] theMemory = new byte[MEMSIZE];
+        int theBase = asmBasicTokenizer.getProgramBase();
+        int theEnd;
+        if (asmBasicTokenizer.getVarBasePointer() >= 0 && asmBasicTokenizer.getProgramBasePointer() >= 0) {
+            theReader.readBlock(asmBasicTokenizer.getProgramBasePointer(), 2, theMemory, asmBasicTokenizer.getProgramBasePointer());
+            if (theBase < 0) {
+                theBase = (theMemory[asmBasicTokenizer.getProgramBasePointer()] & 0xff)
+                        | (theMemory[asmBasicTokenizer.getProgramBasePointer() + 1] & 0xff) << 8;
+            }
+            theReader.readBlock(asmBasicTokenizer.getVarBasePointer(), 2, theMemory, asmBasicTokenizer.getVarBasePointer());
+            theEnd = (theMemory[asmBasicTokenizer.getVarBasePointer()] & 0xff)
+                    | (theMemory[asmBasicTokenizer.getVarBasePointer() + 1] & 0xff) << 8;
+        } else {
+            theEnd = MEMSIZE;
+        }
+        if (theBase < 0 || theEnd <= theBase) {
+            theBase = 0;
+            theEnd = MEMSIZE;
+        }
+        System.out.println(String.format("+ Read the device memory from %04X to %04X.", theBase, theEnd - 1));
+        for (int theAddress = theBase; theAddress < theEnd; theAddress += asmUploadVerify.VERIFY_BLOCK_SIZE) {
+            int theLength = Math.min(asmUploadVerify.VERIFY_BLOCK_SIZE, theEnd - theAddress);
+            theReader.readBlock(theAddress, theLength, theMemory, theAddress);
+        }
+        return ByteBuffer.wrap(theMemory);
+    }
+
+    // List the Basic program in a snapshot, a memory dump file, or the device, to a file, or the console if no file name.
+    public static void listProgram(String theSource, String theWriteFilename) {
+        asmTransport theTransport = null;
+        try {
+            ByteBuffer theMemory;
+            if (theSource.equals(DEVICE_SOURCE)) {
+                theTransport = asmUpload.openTransport();
+                if (theTransport == null) {
+                    return;
+                }
+                theTransport.setReadTimeout(asmBlockUpload.getReplyTimeout());
+                theMemory = readDevice(theTransport);
+            } else if (theSource.endsWith(asmSnapshot.FILE_EXTENSION)) {
+                theMemory = asmSnapshot.open(theSource).getMemory();
+            } else {
+                theMemory = mapFile(theSource);
+            }
+            asmBasicDetokenizer theDetokenizer = new asmBasicDetokenizer(theMemory);
+            int theBase = theDetokenizer.findProgramBase();
+            if (theBase < 0) {
+                System.out.println("- Error, no Basic program found in: " + theSource);
+            } else {
+                System.out.println(String.format("+ Basic %s program at %04X, in: %s", asmBasicTokenizer.getDialect(), theBase, theSource));
+                if (theWriteFilename.isEmpty()) {
+                    Writer out = new OutputStreamWriter(System.out);
+                    theDetokenizer.list(theBase, out);
+                } else {
+                    try (Writer out = new BufferedWriter(new FileWriter(theWriteFilename))) {
+                        theDetokenizer.list(theBase, out);
+                    }
+                    System.out.println("+ Basic program file created: " + theWriteFilename);
+                }
+                System.out.println(String.format("+ Lines: %d, program memory from %04X to %04X.",
+                        theDetokenizer.getLineCount(), theBase, theDetokenizer.getEndAddress() - 1));
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        if (theTransport != null) {
+            asmUpload.closeTransport(theTransport);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: tokenize a program into a 64K image, find it, and list it back.
+    public static void main(String[] args) throws IOException {
+        System.out.println("+++ Start.");
+        String theFilename = args.length > 0 ? args[0] : "p8kBasic/eliza.bas";
+        // eliza.bas is an 8K Basic program.
+        asmBasicTokenizer.setDialect(args.length > 1 ? args[1] : "8k");
+        asmBasicTokenizer theTokenizer = asmBasicTokenizer.fromFile(theFilename);
+        // Lines with the literal text rules, and ELSE.
+        theTokenizer.addLines(new StringReader("65001 IF X THEN 10 ELSE PRINT \"A:B\"\n"
+                + "65002 DATA GOTO, \"X:Y\", 3:PRINT X\n"
+                + "65003 REM PRINT GOTO:END\n"));
+        int theBase = 0x1234;
+        byte[] theImage = theTokenizer.buildImage(theBase);
+        byte[] theMemory = new byte[MEMSIZE];
+        // Noise before and after the program, that the scan has to skip.
+        for (int i = 0; i < MEMSIZE; i++) {
+            theMemory[i] = (byte) (i * 37 + (i >> 8));
+        }
+        System.arraycopy(theImage, 0, theMemory, theBase, theImage.length);
+        asmBasicDetokenizer theDetokenizer = new asmBasicDetokenizer(ByteBuffer.wrap(theMemory).asReadOnlyBuffer());
+        long startTime = System.nanoTime();
+        int theFound = theDetokenizer.findProgram();
+        long theScanNanos = System.nanoTime() - startTime;
+        StringWriter theText = new StringWriter();
+        theDetokenizer.list(theFound, theText);
+        System.out.println(String.format("+ Program found at %04X, expected %04X, scan milliseconds: %.1f, lines: %d, end: %04X",
+                theFound, theBase, theScanNanos / 1e6, theDetokenizer.getLineCount(), theDetokenizer.getEndAddress()));
+        // Tokenize the listing again, the program memory is the same.
+        asmBasicTokenizer theRetokenizer = new asmBasicTokenizer();
+        theRetokenizer.addLines(new StringReader(theText.toString()));
+        System.out.println("+ Tokenized again, program memory matches: " + Arrays.equals(theImage, theRetokenizer.buildImage(theBase)));
+        String[] theLines = theText.toString().split("\n");
+        for (int i = 0; i < 3; i++) {
+            System.out.println("++ " + theLines[i]);
+        }
+        for (int i = theLines.length - 3; i < theLines.length; i++) {
+            System.out.println("++ " + theLines[i]);
+        }
+        System.out.println("\n+++ Exit.\n");
+    }
+}
@@ -0,0 +1,574 @@
+/*
+    Altair Basic tokenizer: build a Basic program's in-memory representation on the host, and upload it as binary.
+
+    Typing a program, such as eliza.bas, into Basic, has Basic tokenize each line as it arrives,
+    so the upload sleeps after each line. Instead, the host builds the program memory, and block uploads it.
+
+    Program memory, the same as Basic builds it from typed lines, each line:
+        <link low> <link high> <line number low> <line number high> <tokenized text> 0
+    4K Basic: the link is the address of the next line.
+    8K Basic: the link is the length of the line, including the link and the 0, see LINELINK and LINEINS in the listing.
+    After the last line, a link of 0000.
+    Lines are in line number order. A later line with the same number replaces the earlier line.
+    Tokenized text, 4K Basic, following the Tokenize routine in p4kBasic/basic4k.asm, Basic 3.2:
+    + Keywords are replaced by a token: 80h + the keyword's index in the keyword table.
+        A keyword matches if its first character matches, then its next characters, skipping spaces.
+    + Text in quotes is copied as is. After REM, the rest of the line is copied as is.
+    + Other characters, including spaces, are copied as is.
+    Tokenized text, 8K Basic, following KEYSCAN, the lexical scanner in the p8kBasic/README.md listing (8K BASIC 78):
+    + Each keyword has its own code, from the KEYxxx EQUs, for example: KEYREM 81h, KEYEND 82h, KEYFOR 83h.
+    + The keyword table, KEYWORDS, is in 16 groups, by the low 4 bits of the keyword's first character.
+        A character is matched against its group's keywords, in table order. '?' is in the table, as PRINT.
+        A keyword matches in full, or by its first 3 or more characters followed by a character that isn't a letter.
+    + Blanks are deleted. Digits and the characters from '0' to ';' aren't keywords, and are copied as is.
+    + Text in quotes is copied as is. After DATA, the text is copied as is, up to a ':'.
+        After REM, LOAD and SAVE, the rest of the line is copied as is. A ':' is inserted before ELSE.
+    + Other characters are copied as is.
+    The 4K Basic pointers, PROGRAM_BASE at 0165h, VAR_BASE at 0167h, VAR_ARRAY_BASE at 0169h and VAR_TOP at 016Bh,
+    are from p4kBasic/basic4k.lst.
+    PROGRAM_BASE depends on the memory size and optional functions answered at startup, so the upload reads it from the device.
+    After the program, the upload sets VAR_BASE, VAR_ARRAY_BASE and VAR_TOP to the end of the program,
+    the same as after typing the lines: StoreProgramLine calls ResetAll, which sets the other two from VAR_BASE.
+    The 8K Basic pointers are from the listing: PROGBASE at 0381h, then VARTABLE, MATTABLE and FREELIMT from 0383h.
+    The upload sets the three to the end of the program, the same as NEW, then CLEARVAR.
+
+    Lines without a line number, such as the REM header in eliza.bas, are direct statements, and are skipped.
+
+ */
+package asm;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class asmBasicTokenizer {
+
+    public static final String[] KEYWORDS_4K = {
+        "END", "FOR", "NEXT", "DATA", "INPUT", "DIM", "READ", "LET", "GOTO", "RUN", "IF", "RESTORE", "GOSUB", "RETURN",
+        "REM", "STOP", "PRINT", "LIST", "CLEAR", "NEW", "TAB(", "TO", "THEN", "STEP",
+        "+", "-", "*", "/", ">", "=", "<", "SGN", "INT", "ABS", "USR", "SQR", "RND", "SIN"
+    };
+    // The 8K keyword table, in the listing's order, by group: KEYWRD0 to KEYWRDF. The codes are in KEYWORD_CODES_8K.
+    public static final String[] KEYWORDS_8K = {
+        "PLOT", "PRINT", "PROMPT", "PORT", "POS",
+        "AUTO", "AND", "ABS", "ATN", "ASC",
+        "REM", "READ", "RUN", "RESTORE", "RETURN", "RND", "RIGHT$",
+        "STOP", "CONT", "CLEAR", "SAVE", "SET", "STEP", "SPC", "SGN", "SQR", "COS", "SIN", "STR$", "CHR$",
+        "DATA", "DIM", "DELETE", "DEF", "THEN", "TO", "TAB", "TAN",
+        "END", "ELSE", "EDIT", "EXP", "USR", "UPPER$",
+        "FOR", "FN", "FRE", "VAL",
+        "GOTO", "GOSUB", "WAIT",
+        "HEX$", "HEXV",
+        "INPUT", "IF", "INT", "INSTR",
+        "*",
+        "+",
+        "LET", "LIST", "LOAD", "LINE", "<", "LOG", "LEN", "LEFT$",
+        "-", "MOD", "MAX", "MIN", "=", "MEM", "MID$",
+        "NEXT", "NEW", "NOT", "^", ">",
+        "?", "ON", "OFF", "/", "OR"
+    };
+    public static final int[] KEYWORD_CODES_8K = {
+        0x94, 0x96, 0xA3, 0xC4, 0xC5,
+        0x92, 0xB0, 0xB9, 0xC1, 0xCA,
+        0x81, 0x87, 0x8A, 0x8D, 0x8F, 0xBB, 0xD0,
+        0x90, 0x98, 0x9B, 0x9D, 0x9F, 0xA2, 0xA6, 0xB7, 0xBA, 0xBE, 0xBF, 0xC8, 0xCB,
+        0x80, 0x86, 0x93, 0x97, 0xA0, 0xA1, 0xA5, 0xC0,
+        0x82, 0x8C, 0x9A, 0xBD, 0xC2, 0xCE,
+        0x83, 0xA7, 0xC3, 0xC9,
+        0x89, 0x8E, 0x95,
+        0xCC, 0xCD,
+        0x85, 0x8B, 0xB8, 0xD2,
+        0xAC,
+        0xAA,
+        0x88, 0x99, 0x9C, 0xA4, 0xB6, 0xBC, 0xC7, 0xCF,
+        0xAB, 0xAE, 0xB2, 0xB3, 0xB5, 0xC6, 0xD1,
+        0x84, 0x9E, 0xA8, 0xAF, 0xB4,
+        0x96, 0x91, 0xA9, 0xAD, 0xB1
+    };
+    private static final int[] KEYWORD_CODES_4K = new int[KEYWORDS_4K.length];
+    // 8K keyword codes with special scanning, from KEYSCAN.
+    private static final int KEY_DATA_8K = 0x80;
+    private static final int KEY_REM_8K = 0x81;
+    private static final int KEY_ELSE_8K = 0x8C;
+    private static final int KEY_LOAD_8K = 0x9C;
+    private static final int KEY_SAVE_8K = 0x9D;
+    // Abbreviated keywords match after this number of characters.
+    private static final int MIN_ABBREVIATION_8K = 3;
+    public static final int TOKEN_BASE = 0x80;
+    public static final int MAX_LINE_NUMBER = 65529;
+    // Line buffer size of the Basic input line.
+    public static final int MAX_LINE_LENGTH = 72;
+    private static final int LINE_HEADER_SIZE = 4;
+    // 4K VAR_BASE, VAR_ARRAY_BASE and VAR_TOP, and 8K VARTABLE, MATTABLE and FREELIMT, the variable pointers, follow each other.
+    private static final int VAR_POINTER_COUNT = 3;
+
+    private static String dialect = "4k";
+    private static String[] keywords = KEYWORDS_4K;
+    private static int[] keywordCodes = KEYWORD_CODES_4K;
+
+    static {
+        for (int i = 0; i < KEYWORD_CODES_4K.length; i++) {
+            KEYWORD_CODES_4K[i] = TOKEN_BASE + i;
+        }
+    }
+    // Addresses of the Basic pointers to the program, and to the variables after the program. -1 when not known.
+    private static int programBasePointer = 0x0165;
+    private static int varBasePointer = 0x0167;
+    // Program base address. -1 to read it from PROGRAM_BASE on the device.
+    private static int programBase = -1;
+
+    private final TreeMap<Integer, byte[]> lines = new TreeMap<>();
+    private int skippedCount = 0;
+    private int textLength = 0;
+
+    public static String getDialect() {
+        return dialect;
+    }
+
+    public static void setDialect(String theDialect) {
+        switch (theDialect) {
+            case "4k":
+                keywords = KEYWORDS_4K;
+                keywordCodes = KEYWORD_CODES_4K;
+                programBasePointer = 0x0165;
+                varBasePointer = 0x0167;
+                break;
+            case "8k":
+                keywords = KEYWORDS_8K;
+                keywordCodes = KEYWORD_CODES_8K;
+                programBasePointer = 0x0381;
+                varBasePointer = 0x0383;
+                break;
+            default:
+                System.out.println("- Error, Basic version must be 4k or 8k.");
+                return;
+        }
+        dialect = theDialect;
+    }
+
+    public static String[] getKeywords() {
+        return keywords;
+    }
+
+    // The keyword of a token code, or null if the byte isn't a token of this Basic version.
+    // A code with two keywords, 8K PRINT and '?', returns the first one in the table.
+    public static String getKeyword(int theCode) {
+        for (int k = 0; k < keywordCodes.length; k++) {
+            if (keywordCodes[k] == theCode) {
+                return keywords[k];
+            }
+        }
+        return null;
+    }
+
+    public static boolean is8k() {
+        return keywords == KEYWORDS_8K;
+    }
+
+    public static int getProgramBase() {
+        return programBase;
+    }
+
+    public static void setProgramBase(int theAddress) {
+        programBase = theAddress;
+    }
+
+    public static int getProgramBasePointer() {
+        return programBasePointer;
+    }
+
+    public static void setProgramBasePointer(int theAddress) {
+        programBasePointer = theAddress;
+    }
+
+    public static int getVarBasePointer() {
+        return varBasePointer;
+    }
+
+    public static void setVarBasePointer(int theAddress) {
+        varBasePointer = theAddress;
+    }
+
+    public int getLineCount() {
+        return lines.size();
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public int getTextLength() {
+        return textLength;
+    }
+
+    // -------------------------------------------------------------------------
+    // Tokenize the text of a line, after the line number.
+    public static byte[] tokenizeText(String theText) {
+        if (is8k()) {
+            return tokenizeText8k(theText);
+        }
+        byte[] theBytes = new byte[theText.length()];
+        int theCount = 0;
+        int i = 0;
+        while (i < theText.length()) {
+            char c = theText.charAt(i);
+            if (c == ' ') {
+                theBytes[theCount++] = (byte) c;
+                i++;
+                continue;
+            }
+            if (c == '"') {
+                // Copy to the closing quote, or the end of the line.
+                int theEnd = theText.indexOf('"', i + 1);
+                theEnd = theEnd < 0 ? theText.length() : theEnd + 1;
+                while (i < theEnd) {
+                    theBytes[theCount++] = (byte) theText.charAt(i++);
+                }
+                continue;
+            }
+            int theToken = -1;
+            int theNext = i + 1;
+            for (int k = 0; k < keywords.length && theToken < 0; k++) {
+                theNext = matchKeyword(theText, i, keywords[k]);
+                if (theNext > 0) {
+                    theToken = TOKEN_BASE + k;
+                }
+            }
+            if (theToken < 0) {
+                theBytes[theCount++] = (byte) c;
+                i++;
+                continue;
+            }
+            theBytes[theCount++] = (byte) theToken;
+            i = theNext;
+            if (theToken == TOKEN_BASE + indexOf("REM")) {
+                // The rest of the line is a comment.
+                while (i < theText.length()) {
+                    theBytes[theCount++] = (byte) theText.charAt(i++);
+                }
+            }
+        }
+        byte[] theTokenized = new byte[theCount];
+        System.arraycopy(theBytes, 0, theTokenized, 0, theCount);
+        return theTokenized;
+    }
+
+    private static int indexOf(String theKeyword) {
+        for (int k = 0; k < keywords.length; k++) {
+            if (keywords[k].equals(theKeyword)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    // 8K Basic, the same as KEYSCAN.
+    private static byte[] tokenizeText8k(String theText) {
+        // Each ELSE can add a ':'.
+        byte[] theBytes = new byte[2 * theText.length()];
+        int theCount = 0;
+        int i = 0;
+        while (i < theText.length()) {
+            char c = theText.charAt(i);
+            if (c == ' ') {
+                i++;
+                continue;
+            }
+            if (c == '"') {
+                int theEnd = theText.indexOf('"', i + 1);
+                theEnd = theEnd < 0 ? theText.length() : theEnd + 1;
+                while (i < theEnd) {
+                    theBytes[theCount++] = (byte) theText.charAt(i++);
+                }
+                continue;
+            }
+            int theToken = -1;
+            int theNext = i + 1;
+            if (c < '0' || c > ';') {
+                for (int k = 0; k < KEYWORDS_8K.length && theToken < 0; k++) {
+                    if ((KEYWORDS_8K[k].charAt(0) & 0x0f) == (c & 0x0f)) {
+                        theNext = matchKeyword8k(theText, i, KEYWORDS_8K[k]);
+                        if (theNext > 0) {
+                            theToken = KEYWORD_CODES_8K[k];
+                        }
+                    }
+                }
+            }
+            if (theToken < 0) {
+                theBytes[theCount++] = (byte) c;
+                i++;
+                continue;
+            }
+            if (theToken == KEY_ELSE_8K) {
+                theBytes[theCount++] = ':';
+            }
+            theBytes[theCount++] = (byte) theToken;
+            i = theNext;
+            if (theToken == KEY_REM_8K || theToken == KEY_LOAD_8K || theToken == KEY_SAVE_8K) {
+                // The rest of the line: a comment, or a file name.
+                while (i < theText.length()) {
+                    theBytes[theCount++] = (byte) theText.charAt(i++);
+                }
+            } else if (theToken == KEY_DATA_8K) {
+                // Copy to the end of the statement. A ':' in quotes doesn't end it.
+                boolean isQuoted = false;
+                while (i < theText.length() && (isQuoted || theText.charAt(i) != ':')) {
+                    isQuoted = isQuoted != (theText.charAt(i) == '"');
+                    theBytes[theCount++] = (byte) theText.charAt(i++);
+                }
+            }
+        }
+        byte[] theTokenized = new byte[theCount];
+        System.arraycopy(theBytes, 0, theTokenized, 0, theCount);
+        return theTokenized;
+    }
+
+    // Match the 8K keyword at the position, in full, or abbreviated: 3 or more characters, then a character that isn't a letter.
+    // Spaces aren't skipped. Returns the position after the keyword, or 0 if it doesn't match.
+    private static int matchKeyword8k(String theText, int thePosition, String theKeyword) {
+        int k = 0;
+        while (k < theKeyword.length() && thePosition + k < theText.length()
+                && Character.toUpperCase(theText.charAt(thePosition + k)) == theKeyword.charAt(k)) {
+            k++;
+        }
+        if (k == theKeyword.length()) {
+            return thePosition + k;
+        }
+        if (k >= MIN_ABBREVIATION_8K && (thePosition + k >= theText.length() || !isAlpha(theText.charAt(thePosition + k)))) {
+            return thePosition + k;
+        }
+        return 0;
+    }
+
+    // Same as ALPHACHK: only A-Z and a-z count as letters.
+    private static boolean isAlpha(char theChar) {
+        return (theChar >= 'A' && theChar <= 'Z') || (theChar >= 'a' && theChar <= 'z');
+    }
+
+    // Match the keyword at the position. After the first character, spaces are skipped.
+    // Returns the position after the keyword, or 0 if it doesn't match.
+    private static int matchKeyword(String theText, int thePosition, String theKeyword) {
+        int i = thePosition;
+        for (int k = 0; k < theKeyword.length(); k++) {
+            if (k > 0) {
+                i++;
+                while (i < theText.length() && theText.charAt(i) == ' ') {
+                    i++;
+                }
+            }
+            if (i >= theText.length() || theText.charAt(i) != theKeyword.charAt(k)) {
+                return 0;
+            }
+        }
+        return i + 1;
+    }
+
+    // -------------------------------------------------------------------------
+    // Add a program line: the line number, then the statements. Returns false if the line doesn't have a line number.
+    public boolean addLine(String theLine) {
+        String theTrimmed = theLine.trim();
+        int i = 0;
+        while (i < theTrimmed.length() && Character.isDigit(theTrimmed.charAt(i))) {
+            i++;
+        }
+        if (i == 0 || i > 5 || Integer.parseInt(theTrimmed.substring(0, i)) > MAX_LINE_NUMBER) {
+            skippedCount++;
+            return false;
+        }
+        int theLineNumber = Integer.parseInt(theTrimmed.substring(0, i));
+        String theText = theTrimmed.substring(i).trim();
+        if (theText.isEmpty()) {
+            // Typing a line number alone deletes the line.
+            lines.remove(theLineNumber);
+            return true;
+        }
+        if (theTrimmed.length() > MAX_LINE_LENGTH) {
+            // Can't be typed into Basic, but loads.
+            System.out.println("++ Line " + theLineNumber + " is longer than the Basic input line: " + theTrimmed.length() + " characters.");
+        }
+        lines.put(theLineNumber, tokenizeText(theText));
+        textLength += theLine.length() + 1;
+        return true;
+    }
+
+    public void addLines(Reader theReader) throws IOException {
+        BufferedReader in = new BufferedReader(theReader);
+        String theLine = in.readLine();
+        while (theLine != null) {
+            if (!theLine.trim().isEmpty()) {
+                addLine(theLine);
+            }
+            theLine = in.readLine();
+        }
+    }
+
+    // The size of the program memory, including the end link.
+    public int getImageLength() {
+        int theLength = 2;
+        for (byte[] theText : lines.values()) {
+            theLength += LINE_HEADER_SIZE + theText.length + 1;
+        }
+        return theLength;
+    }
+
+    // Program memory, for the program base address. 8K Basic programs don't depend on the address.
+    public byte[] buildImage(int theBase) {
+        byte[] theImage = new byte[getImageLength()];
+        int theOffset = 0;
+        for (Map.Entry<Integer, byte[]> theEntry : lines.entrySet()) {
+            byte[] theText = theEntry.getValue();
+            int theLink = LINE_HEADER_SIZE + theText.length + 1;
+            if (!is8k()) {
+                theLink += theBase + theOffset;
+            }
+            theImage[theOffset] = (byte) theLink;
+            theImage[theOffset + 1] = (byte) (theLink >> 8);
+            theImage[theOffset + 2] = (byte) (int) theEntry.getKey();
+            theImage[theOffset + 3] = (byte) (theEntry.getKey() >> 8);
+            System.arraycopy(theText, 0, theImage, theOffset + LINE_HEADER_SIZE, theText.length);
+            theOffset += LINE_HEADER_SIZE + theText.length + 1;
+        }
+        // The end link, 0000, is already 0.
+        return theImage;
+    }
+
+    public static asmBasicTokenizer fromFile(String theReadFilename) throws IOException {
+        asmBasicTokenizer theTokenizer = new asmBasicTokenizer();
+        try (FileReader in = new FileReader(theReadFilename)) {
+            theTokenizer.addLines(in);
+        }
+        return theTokenizer;
+    }
+
+    // -------------------------------------------------------------------------
+    // Tokenize a Basic program file, and print the sizes.
+    public static void tokenizeFile(String theReadFilename) {
+        asmBasicTokenizer theTokenizer;
+        try {
+            theTokenizer = fromFile(theReadFilename);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
+        }
+        System.out.println("+ Basic " + dialect + " program: " + theReadFilename + ", lines: " + theTokenizer.getLineCount()
+                + ", text bytes: " + theTokenizer.getTextLength() + ", tokenized bytes: " + theTokenizer.getImageLength());
+        if (theTokenizer.getSkippedCount() > 0) {
+            System.out.println("+ Lines skipped, without a line number: " + theTokenizer.getSkippedCount());
+        }
+    }
+
+    // Upload a Basic program file into the device's Basic program memory, using block upload.
+    public static void sendFile(String theReadFilename) {
+        asmBasicTokenizer theTokenizer;
+        try {
+            theTokenizer = fromFile(theReadFilename);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
+        }
+        if (varBasePointer < 0 || (programBase < 0 && programBasePointer < 0)) {
+            System.out.println("- Error, set the Basic program base address, and the Basic pointer addresses.");
+            return;
+        }
+        asmTransport theTransport = asmUpload.openTransport();
+        if (theTransport == null) {
+            return;
+        }
+        theTransport.setReadTimeout(asmBlockUpload.getReplyTimeout());
+        System.out.println("+ Serial port is open.");
+        try {
+            int theBase = programBase;
+            if (theBase < 0) {
+                byte[] thePointer = new byte[2];
+                new asmUploadVerify(theTransport).readBlock(programBasePointer, 2, thePointer, 0);
+                theBase = (thePointer[0] & 0xff) | (thePointer[1] & 0xff) << 8;
+                System.out.println(String.format("+ Basic program base, read from the device: %04X", theBase));
+                if (theBase <= Math.max(programBasePointer, varBasePointer) + 1) {
+                    // Basic sets the program base above its pointers when it starts.
+                    System.out.println("- Error, the device's Basic program base isn't set. Start Basic on the device, or set the program base.");
+                    asmUpload.closeTransport(theTransport);
+                    return;
+                }
+            }
+            byte[] theImage = theTokenizer.buildImage(theBase);
+            int theVarBase = theBase + theImage.length;
+            if (theVarBase > 0xffff) {
+                System.out.println("- Error, the program doesn't fit in memory, program bytes: " + theImage.length);
+                asmUpload.closeTransport(theTransport);
+                return;
+            }
+            System.out.println(String.format("+ Basic program upload, lines: %d, bytes: %d, from %04X to %04X, text bytes: %d, file: %s",
+                    theTokenizer.getLineCount(), theImage.length, theBase, theVarBase - 1, theTokenizer.getTextLength(), theReadFilename));
+            // Program memory and the variable pointers, as ranges of a 64K memory image.
+            // No variables: VAR_ARRAY_BASE and VAR_TOP are the same as VAR_BASE.
+            byte[] theMemory = new byte[65536];
+            System.arraycopy(theImage, 0, theMemory, theBase, theImage.length);
+            for (int i = 0; i < VAR_POINTER_COUNT; i++) {
+                theMemory[varBasePointer + 2 * i] = (byte) theVarBase;
+                theMemory[varBasePointer + 2 * i + 1] = (byte) (theVarBase >> 8);
+            }
+            asmBlockUpload theUpload = new asmBlockUpload(theTransport);
+            asmUploadDelta.clearHashes(asmUpload.getSerialPortName());
+            theUpload.uploadRanges(theMemory, new int[]{theBase, varBasePointer}, new int[]{theImage.length, 2 * VAR_POINTER_COUNT}, 0, 0);
+            theUpload.printSummary();
+            System.out.println("+ Text upload time, with a " + asmUpload.getBaudSleepTime() + " ms sleep per byte, and "
+                    + asmUpload.getBaudSleepTimeCr() + " ms per line: "
+                    + (theTokenizer.getTextLength() * asmUpload.getBaudSleepTime()
+                    + theTokenizer.getLineCount() * asmUpload.getBaudSleepTimeCr()) / 1000.0 + " seconds.");
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        asmUpload.closeTransport(theTransport);
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: tokenize lines, then upload a program to the loopback device.
+    private static String toHex(byte[] theBytes) {
+        StringBuilder theHex = new StringBuilder();
+        for (byte theByte : theBytes) {
+            theHex.append(String.format("%02X ", theByte));
+        }
+        return theHex.toString().trim();
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("+++ Start.");
+        String[] theTests = {
+            "PRINT \"HELLO, GOTO\":GOTO 10",
+            "FOR I=1 TO 10 STEP 2",
+            "IF A<B THEN 100",
+            "G O SUB 200",
+            "REM PRINT IS NOT A KEYWORD HERE",
+            "DATA PRINT,1:PRINT",
+            "IF X THEN 10 ELSE PRI 20",
+            "?left$(A$,2);INSTR(A$,B$)"
+        };
+        for (String theDialect : new String[]{"4k", "8k"}) {
+            setDialect(theDialect);
+            for (String theText : theTests) {
+                System.out.println("++ " + theDialect + " " + String.format("%-34s", theText) + ": " + toHex(tokenizeText(theText)));
+            }
+        }
+        setDialect("4k");
+        String theProgram = "REM A direct statement\n10 PRINT \"HI\"\n30 GOTO 10\n20 X=1\n30 END\n";
+        asmBasicTokenizer theTokenizer = new asmBasicTokenizer();
+        theTokenizer.addLines(new StringReader(theProgram));
+        System.out.println("+ Program image at 0D00: " + toHex(theTokenizer.buildImage(0x0D00))
+                + ", lines skipped: " + theTokenizer.getSkippedCount());
+        //
+        // eliza.bas is an 8K Basic program.
+        String theFilename = args.length > 0 ? args[0] : "p8kBasic/eliza.bas";
+        setDialect("8k");
+        asmUpload.setSerialPortName(asmUpload.LOOPBACK_PORT_NAME);
+        setProgramBase(0x0D00);
+        sendFile(theFilename);
+        System.out.println("\n+++ Exit.\n");
+    }
+}
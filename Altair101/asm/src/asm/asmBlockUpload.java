@@ -0,0 +1,637 @@
+/*
+    Block upload: a framed, credit based, upload protocol.
+
+    asmUpload.sendFile() writes one byte, then sleeps, so the device's serial receive buffer never overruns.
+    At 115200 baud with a 10 ms sleep, that's about 100 bytes per second.
+    Block upload keeps the line busy, and the device controls the flow:
+    + The host sends a start frame with the block size.
+    + The device replies with a number of credits: the number of frames it has room for in its receive buffer.
+    + The host sends data frames while it has credits. Each frame uses one credit.
+    + The device ACKs each frame after processing it, which returns the credit.
+    + The host sends an end frame, and waits for its ACK.
+
+    Each frame ends with a CRC-16 (XMODEM: polynomial 1021h, starting value 0) of the frame bytes before it.
+    + The device NAKs a data frame that fails the CRC check, and the host sends that block again.
+    + The device NAKs the sequence numbers it skipped, when a frame arrives after a frame that was lost.
+    + A block that isn't ACKed within the reply timeout is sent again, even while ACKs for other blocks arrive.
+    + A sequence number isn't reused while its block is waiting for an ACK, and new blocks are only sent
+        within half the sequence numbers (128) of the oldest block waiting for an ACK.
+        The device tells new blocks from blocks sent again by their distance from the next sequence number it expects.
+    + Blocks have their address, so the device stores blocks in any order, and a block sent twice is harmless.
+    + When an upload fails, the number of blocks ACKed in order is saved in a resume file.
+        The next upload of the same file continues from that block, instead of starting over.
+
+    Frames, host to device:
+        'S' <block size> <CRC>
+        'D' <sequence> <address high> <address low> <length> <length data bytes> <CRC>
+        'R' <sequence> <address high> <address low> <length> <length run length encoded bytes> <CRC>
+        'E' <sequence> <CRC>
+        'V' and 'Q', requests to verify the device memory, see asmUploadVerify.
+    Replies, device to host, start with a sync byte (16h, ASCII SYN), and end with the CRC-16 of the type and value:
+        16h 'C' <credits> <CRC>
+        16h 'A' <sequence> <CRC>
+        16h 'N' <sequence> <CRC>
+        'H' and 'M', replies to the verify requests, see asmUploadVerify.
+    Sequence numbers count from 0, and wrap at 255.
+    Encoded frames ('R') hold records that decode to more bytes, see asmUploadEncoding. Runs of filler bytes,
+    for example, org space and DS areas, are sent as a few bytes.
+    Other bytes from the device, for example, console messages, are ignored. An 'A' in a console message isn't an ACK,
+    because it doesn't follow a sync byte, and a sync byte in a message is very unlikely to be followed by a good CRC.
+
+    asmUploadDevice is a loopback stand-in for the device side.
+
+ */
+package asm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class asmBlockUpload {
+
+    public static final int FRAME_START = 'S';
+    public static final int FRAME_DATA = 'D';
+    public static final int FRAME_END = 'E';
+    public static final int FRAME_RECORDS = 'R';
+    public static final int FRAME_HASH_REQUEST = 'V';
+    public static final int FRAME_READ_REQUEST = 'Q';
+    public static final int FRAME_CREDIT = 'C';
+    public static final int FRAME_ACK = 'A';
+    public static final int FRAME_NAK = 'N';
+    public static final int FRAME_HASH = 'H';
+    public static final int FRAME_MEMORY = 'M';
+    public static final int REPLY_SYNC = 0x16;
+    public static final int REPLY_SIZE = 3 + 2;
+    public static final int FRAME_HEADER_SIZE = 5;
+    public static final int FRAME_CRC_SIZE = 2;
+    public static final int MAX_BLOCK_SIZE = 255;
+    public static final String RESUME_FILE_EXTENSION = ".resume";
+    private static final int MAX_RETRIES = 10;
+    private static final int SEQUENCES = 256;
+
+    // The device grants the frames that fit in its serial receive buffer as credits.
+    // Two 32 byte frames fill the Arduino's 64 byte buffer, so the window is the whole buffer.
+    private static int blockSize = asmPipeTransport.DEVICE_RX_BUFFER_SIZE / 2 - FRAME_HEADER_SIZE - FRAME_CRC_SIZE;
+    // Milliseconds to wait for a device reply.
+    private static int replyTimeout = 2000;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int theCrc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                theCrc = (theCrc & 0x8000) != 0 ? (theCrc << 1) ^ 0x1021 : theCrc << 1;
+            }
+            CRC_TABLE[i] = theCrc & 0xffff;
+        }
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    // Frames sent and waiting for an ACK, by sequence number.
+    private final byte[][] frames = new byte[SEQUENCES][FRAME_HEADER_SIZE + MAX_BLOCK_SIZE + FRAME_CRC_SIZE];
+    private final int[] frameLength = new int[SEQUENCES];
+    private final int[] frameBlock = new int[SEQUENCES];
+    private final int[] frameRetries = new int[SEQUENCES];
+    private final boolean[] isPending = new boolean[SEQUENCES];
+    private final long[] frameSentNanos = new long[SEQUENCES];
+    private int pendingCount = 0;
+    private int credits = 0;
+    private int blockCount = 0;
+    private int retransmitCount = 0;
+    private int resumeBlock = 0;
+    private int badReplyCount = 0;
+    private final byte[] reply = new byte[REPLY_SIZE];
+    private long uploadNanos = 0;
+    private final String portName;
+    private final int baudRate;
+    private asmUploadMetrics metrics;
+
+    public asmBlockUpload(InputStream in, OutputStream out, String thePortName, int theBaudRate) {
+        this.in = in;
+        this.out = out;
+        portName = thePortName;
+        baudRate = theBaudRate;
+        metrics = new asmUploadMetrics(portName, baudRate);
+    }
+
+    public asmBlockUpload(InputStream in, OutputStream out) {
+        this(in, out, asmUpload.getSerialPortName(), asmUpload.getBaudRate());
+    }
+
+    public asmBlockUpload(asmTransport theTransport) {
+        this(theTransport.getInputStream(), theTransport.getOutputStream(), theTransport.getName(), theTransport.getBaudRate());
+    }
+
+    public static int getBlockSize() {
+        return blockSize;
+    }
+
+    public static void setBlockSize(int theBlockSize) {
+        if (theBlockSize < 1 || theBlockSize > MAX_BLOCK_SIZE) {
+            System.out.println("- Error, block size must be from 1 to " + MAX_BLOCK_SIZE + ".");
+            return;
+        }
+        blockSize = theBlockSize;
+    }
+
+    public static int getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    public static void setReplyTimeout(int theReplyTimeout) {
+        replyTimeout = theReplyTimeout;
+    }
+
+    public int getCredits() {
+        return credits;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    // The first block that wasn't ACKed, all the blocks before it were.
+    public int getResumeBlock() {
+        return resumeBlock;
+    }
+
+    // Replies that failed the CRC check, and replies for a frame that isn't waiting for a reply.
+    public int getBadReplyCount() {
+        return badReplyCount;
+    }
+
+    public long getUploadNanos() {
+        return uploadNanos;
+    }
+
+    // The metrics of the last upload.
+    public asmUploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    // -------------------------------------------------------------------------
+    public static int crc16(byte[] theBytes, int theOffset, int theLength) {
+        int theCrc = 0;
+        for (int i = theOffset; i < theOffset + theLength; i++) {
+            theCrc = ((theCrc << 8) ^ CRC_TABLE[((theCrc >>> 8) ^ theBytes[i]) & 0xff]) & 0xffff;
+        }
+        return theCrc;
+    }
+
+    // Add the CRC to the end of the frame. Returns the frame length.
+    public static int addCrc(byte[] theFrame, int theLength) {
+        int theCrc = crc16(theFrame, 0, theLength);
+        theFrame[theLength] = (byte) (theCrc >> 8);
+        theFrame[theLength + 1] = (byte) theCrc;
+        return theLength + FRAME_CRC_SIZE;
+    }
+
+    // A reply frame: the sync byte, type, value, and the CRC of the type and value. Returns the frame length.
+    public static int buildReply(byte[] theReply, int theType, int theValue) {
+        theReply[0] = (byte) REPLY_SYNC;
+        theReply[1] = (byte) theType;
+        theReply[2] = (byte) theValue;
+        int theCrc = crc16(theReply, 1, 2);
+        theReply[3] = (byte) (theCrc >> 8);
+        theReply[4] = (byte) theCrc;
+        return REPLY_SIZE;
+    }
+
+    // Check the rest of a reply, after the sync byte: the type, value, and CRC.
+    public static boolean isReply(byte[] theReply) {
+        int theCrc = (theReply[3] & 0xff) << 8 | (theReply[4] & 0xff);
+        return theCrc == crc16(theReply, 1, 2);
+    }
+
+    private int readByte() throws IOException {
+        int theByte = in.read();
+        if (theByte < 0) {
+            throw new IOException("Device closed the connection.");
+        }
+        return theByte;
+    }
+
+    // Read a reply, other bytes are skipped. Returns the type in the high byte, and the value in the low byte.
+    private int readReply() throws IOException {
+        while (true) {
+            if (readByte() != REPLY_SYNC) {
+                continue;
+            }
+            for (int i = 1; i < REPLY_SIZE; i++) {
+                reply[i] = (byte) readByte();
+            }
+            int theType = reply[1] & 0xff;
+            if (isReply(reply) && (theType == FRAME_CREDIT || theType == FRAME_ACK || theType == FRAME_NAK)) {
+                return theType << 8 | (reply[2] & 0xff);
+            }
+            badReplyCount++;
+        }
+    }
+
+    private void sendFrame(int theSequence) throws IOException {
+        frameSentNanos[theSequence] = System.nanoTime();
+        out.write(frames[theSequence], 0, frameLength[theSequence]);
+        out.flush();
+    }
+
+    private void resendFrame(int theSequence) throws IOException {
+        if (++frameRetries[theSequence] > MAX_RETRIES) {
+            throw new IOException("Block " + frameBlock[theSequence] + " failed after " + MAX_RETRIES + " retries.");
+        }
+        retransmitCount++;
+        metrics.frameResent(theSequence, frameLength[theSequence]);
+        sendFrame(theSequence);
+    }
+
+    // Send the blocks again that are waiting for an ACK for longer than the reply timeout, oldest first.
+    private void resendExpired(int theNextSequence, boolean isAll) throws IOException {
+        long theNanos = System.nanoTime();
+        for (int i = 0; i < SEQUENCES; i++) {
+            int theSequence = (theNextSequence + i) & 0xff;
+            if (isPending[theSequence] && (isAll || theNanos - frameSentNanos[theSequence] >= replyTimeout * 1000000L)) {
+                resendFrame(theSequence);
+            }
+        }
+    }
+
+    // True when the sequence number can't be used for a new block: it, or a sequence number in the older half, is waiting for an ACK.
+    private boolean isWindowFull(int theNextSequence) {
+        for (int i = 0; i < SEQUENCES / 2; i++) {
+            if (isPending[(theNextSequence + i) & 0xff]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Send a start or end frame until the reply arrives. Returns the reply value.
+    private int sendControlFrame(int theType, int theValue, int theReplyType) throws IOException {
+        byte[] theFrame = new byte[2 + FRAME_CRC_SIZE];
+        theFrame[0] = (byte) theType;
+        theFrame[1] = (byte) theValue;
+        addCrc(theFrame, 2);
+        for (int theTry = 0; theTry <= MAX_RETRIES; theTry++) {
+            if (theTry > 0) {
+                metrics.controlResent(theFrame.length);
+            } else {
+                metrics.written(theFrame.length);
+            }
+            out.write(theFrame);
+            out.flush();
+            try {
+                int theReply = readReply();
+                while (theReply >> 8 != theReplyType || (theReplyType == FRAME_ACK && (theReply & 0xff) != theValue)) {
+                    theReply = readReply();
+                }
+                return theReply & 0xff;
+            } catch (InterruptedIOException e) {
+                retransmitCount++;
+                metrics.timeout();
+            }
+        }
+        throw new IOException("No reply from the device, after " + MAX_RETRIES + " retries.");
+    }
+
+    // Upload ranges of the bytes to the device memory. The device address of theBytes[i] is: theAddress + i.
+    // Each range is split into blocks. Starts from a block number, to resume an upload, else 0.
+    public void uploadRanges(byte[] theBytes, int[] rangeOffsets, int[] rangeLengths, int theAddress, int firstBlock) throws IOException {
+        int totalBlocks = 0;
+        for (int theRangeLength : rangeLengths) {
+            totalBlocks += (theRangeLength + blockSize - 1) / blockSize;
+        }
+        int[] blockOffset = new int[totalBlocks];
+        int[] blockLength = new int[totalBlocks];
+        int[] blockAddress = new int[totalBlocks];
+        int theBlock = 0;
+        for (int i = 0; i < rangeOffsets.length; i++) {
+            for (int thePosition = 0; thePosition < rangeLengths[i]; thePosition += blockSize) {
+                blockOffset[theBlock] = rangeOffsets[i] + thePosition;
+                blockLength[theBlock] = Math.min(blockSize, rangeLengths[i] - thePosition);
+                blockAddress[theBlock] = (theAddress + blockOffset[theBlock]) & 0xffff;
+                theBlock++;
+            }
+        }
+        int theLength = 0;
+        for (int i = firstBlock; i < totalBlocks; i++) {
+            theLength += blockLength[i];
+        }
+        uploadBlocks(FRAME_DATA, theBytes, blockOffset, blockLength, blockAddress, firstBlock, theLength);
+    }
+
+    // Upload blocks, each block is a frame with the bytes from theData, and the device address.
+    // The length is the number of program bytes in the blocks, for the metrics.
+    public void uploadBlocks(int theFrameType, byte[] theData, int[] blockOffset, int[] blockLength, int[] blockAddress,
+            int firstBlock, long theLength) throws IOException {
+        long startTime = System.nanoTime();
+        metrics = new asmUploadMetrics(portName, baudRate);
+        metrics.start();
+        int totalBlocks = blockOffset.length;
+        boolean[] isAcked = new boolean[totalBlocks];
+        blockCount = 0;
+        retransmitCount = 0;
+        badReplyCount = 0;
+        pendingCount = 0;
+        Arrays.fill(isPending, false);
+        resumeBlock = firstBlock;
+        credits = sendControlFrame(FRAME_START, blockSize, FRAME_CREDIT);
+        int nextSequence = 0;
+        int nextBlock = firstBlock;
+        while (resumeBlock < totalBlocks) {
+            // Send blocks while there are credits.
+            while (pendingCount < credits && nextBlock < totalBlocks && !isWindowFull(nextSequence)) {
+                int theBlockLength = blockLength[nextBlock];
+                int theBlockAddress = blockAddress[nextBlock];
+                byte[] theFrame = frames[nextSequence];
+                theFrame[0] = (byte) theFrameType;
+                theFrame[1] = (byte) nextSequence;
+                theFrame[2] = (byte) (theBlockAddress >> 8);
+                theFrame[3] = (byte) theBlockAddress;
+                theFrame[4] = (byte) theBlockLength;
+                System.arraycopy(theData, blockOffset[nextBlock], theFrame, FRAME_HEADER_SIZE, theBlockLength);
+                frameLength[nextSequence] = addCrc(theFrame, FRAME_HEADER_SIZE + theBlockLength);
+                frameBlock[nextSequence] = nextBlock;
+                frameRetries[nextSequence] = 0;
+                isPending[nextSequence] = true;
+                pendingCount++;
+                metrics.frameSent(nextSequence, frameLength[nextSequence]);
+                sendFrame(nextSequence);
+                blockCount++;
+                nextSequence = (nextSequence + 1) & 0xff;
+                nextBlock++;
+            }
+            // Process a reply. Without credits, the upload is stalled until the reply.
+            boolean isStalled = nextBlock < totalBlocks && (pendingCount >= credits || isWindowFull(nextSequence));
+            long theWaitTime = isStalled ? System.nanoTime() : 0;
+            try {
+                int theReply = readReply();
+                if (isStalled) {
+                    metrics.stalled(System.nanoTime() - theWaitTime);
+                }
+                int theSequence = theReply & 0xff;
+                if (!isPending[theSequence]) {
+                    // A reply to a frame sent twice.
+                    badReplyCount++;
+                } else if (theReply >> 8 == FRAME_ACK) {
+                    metrics.frameAcked(theSequence, frameBlock[theSequence], blockAddress[frameBlock[theSequence]], frameRetries[theSequence]);
+                    isPending[theSequence] = false;
+                    pendingCount--;
+                    isAcked[frameBlock[theSequence]] = true;
+                    while (resumeBlock < totalBlocks && isAcked[resumeBlock]) {
+                        resumeBlock++;
+                    }
+                } else if (theReply >> 8 == FRAME_NAK) {
+                    resendFrame(theSequence);
+                }
+                // A lost frame, or a lost reply, while the replies for other frames arrive.
+                resendExpired(nextSequence, false);
+            } catch (InterruptedIOException e) {
+                // Frames or replies were lost, send the blocks waiting for an ACK.
+                metrics.timeout();
+                if (isStalled) {
+                    metrics.stalled(System.nanoTime() - theWaitTime);
+                }
+                resendExpired(nextSequence, true);
+            }
+        }
+        sendControlFrame(FRAME_END, nextSequence, FRAME_ACK);
+        uploadNanos = System.nanoTime() - startTime;
+        metrics.end(theLength);
+    }
+
+    // Upload ranges of the bytes, run length encoded. The device address of theBytes[i] is: theAddress + i.
+    public void uploadRangesEncoded(byte[] theBytes, int[] rangeOffsets, int[] rangeLengths, int theAddress, int firstBlock) throws IOException {
+        if (blockSize < asmUploadEncoding.MIN_BLOCK_SIZE) {
+            throw new IOException("Run length encoded upload needs a block size of at least " + asmUploadEncoding.MIN_BLOCK_SIZE + ".");
+        }
+        asmUploadEncoding theEncoding = new asmUploadEncoding();
+        theEncoding.encodeBlocks(theBytes, rangeOffsets, rangeLengths, theAddress, blockSize);
+        // The program bytes, a resumed upload counts the bytes of the blocks sent before.
+        long theLength = 0;
+        for (int theRangeLength : rangeLengths) {
+            theLength += theRangeLength;
+        }
+        uploadBlocks(FRAME_RECORDS, theEncoding.getEncoded(), theEncoding.getBlockOffsets(), theEncoding.getBlockLengths(),
+                theEncoding.getBlockAddresses(), firstBlock, theLength);
+    }
+
+    // Upload bytes to the device memory, starting at the address.
+    public void upload(byte[] theBytes, int theOffset, int theLength, int theAddress, int firstBlock) throws IOException {
+        uploadRanges(theBytes, new int[]{theOffset}, new int[]{theLength}, theAddress - theOffset, firstBlock);
+    }
+
+    public void upload(byte[] theBytes, int theOffset, int theLength, int theAddress) throws IOException {
+        upload(theBytes, theOffset, theLength, theAddress, 0);
+    }
+
+    // The upload summary: bytes/second compared to the baud rate, stall time, block times, and the ACK round trip histogram.
+    public void printSummary() {
+        metrics.printSummary();
+    }
+
+    // -------------------------------------------------------------------------
+    // Resume file: the CRC and length of the file, the block size, the frame type, and the block to resume from.
+    private static int readResumeBlock(String theResumeFilename, int theCrc, int theLength, int theFrameType) {
+        File theFile = new File(theResumeFilename);
+        if (!theFile.exists()) {
+            return 0;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(theFile))) {
+            String[] theValues = in.readLine().trim().split(" ");
+            if (Integer.parseInt(theValues[0]) == theCrc && Integer.parseInt(theValues[1]) == theLength
+                    && Integer.parseInt(theValues[2]) == blockSize && Integer.parseInt(theValues[3]) == theFrameType) {
+                return Integer.parseInt(theValues[4]);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("- Error, reading resume file: " + theResumeFilename + ", " + e);
+        }
+        return 0;
+    }
+
+    private static void writeResumeBlock(String theResumeFilename, int theCrc, int theLength, int theFrameType, int theBlock) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(theResumeFilename))) {
+            out.println(theCrc + " " + theLength + " " + blockSize + " " + theFrameType + " " + theBlock);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    // Upload a machine code file over the serial port, starting at address 0. Optionally, run length encoded.
+    public static void sendFile(String theReadFilename, boolean doEncode) {
+        byte[] theBytes;
+        try {
+            theBytes = Files.readAllBytes(new File(theReadFilename).toPath());
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
+        }
+        sendImage(ByteBuffer.wrap(theBytes), theReadFilename, doEncode);
+    }
+
+    // Upload a program image from memory, for example, asmProcessor.getProgramImage(), starting at address 0.
+    // The machine code file name is used for the resume file, the file doesn't need to exist.
+    public static void sendImage(ByteBuffer theImage, String theReadFilename, boolean doEncode) {
+        byte[] theBytes;
+        if (theImage.hasArray() && theImage.arrayOffset() == 0 && theImage.position() == 0
+                && theImage.remaining() == theImage.array().length) {
+            theBytes = theImage.array();
+        } else {
+            theBytes = new byte[theImage.remaining()];
+            theImage.duplicate().get(theBytes);
+        }
+        if (doEncode && blockSize < asmUploadEncoding.MIN_BLOCK_SIZE) {
+            System.out.println("- Error, run length encoded upload needs a block size of at least " + asmUploadEncoding.MIN_BLOCK_SIZE + ".");
+            return;
+        }
+        String theResumeFilename = theReadFilename + RESUME_FILE_EXTENSION;
+        int theCrc = crc16(theBytes, 0, theBytes.length);
+        int theFrameType = doEncode ? FRAME_RECORDS : FRAME_DATA;
+        int firstBlock = readResumeBlock(theResumeFilename, theCrc, theBytes.length, theFrameType);
+        asmTransport theTransport = asmUpload.openTransport();
+        if (theTransport == null) {
+            return;
+        }
+        theTransport.setReadTimeout(replyTimeout);
+        System.out.println("+ Serial port is open.");
+        System.out.println("+ Block upload, number of bytes: " + theBytes.length + ", block size: " + blockSize
+                + (doEncode ? ", run length encoded" : "") + ", file: " + theReadFilename);
+        if (firstBlock > 0) {
+            System.out.println("+ Resume the upload from block: " + firstBlock);
+        }
+        asmBlockUpload theUpload = new asmBlockUpload(theTransport);
+        asmUploadDelta.clearHashes(asmUpload.getSerialPortName());
+        try {
+            if (doEncode) {
+                theUpload.uploadRangesEncoded(theBytes, new int[]{0}, new int[]{theBytes.length}, 0, firstBlock);
+            } else {
+                theUpload.upload(theBytes, 0, theBytes.length, 0, firstBlock);
+            }
+            theUpload.printSummary();
+            new File(theResumeFilename).delete();
+            asmUploadDelta.saveHashes(asmUpload.getSerialPortName(), theBytes, theBytes.length);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            writeResumeBlock(theResumeFilename, theCrc, theBytes.length, theFrameType, theUpload.getResumeBlock());
+            System.out.println("+ Upload again to resume from block: " + theUpload.getResumeBlock());
+        }
+        asmUpload.closeTransport(theTransport);
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: upload to the loopback device.
+    private static boolean isMatch(byte[] theMemory, int theAddress, byte[] theBytes) {
+        for (int i = 0; i < theBytes.length; i++) {
+            if (theMemory[theAddress + i] != theBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.out.println("+++ Start.");
+        byte[] theBytes = new byte[6144];
+        for (int i = 0; i < theBytes.length; i++) {
+            theBytes[i] = (byte) (i * 7);
+        }
+        asmPipeTransport thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        asmUploadDevice theDevice = new asmUploadDevice(thePipe.getPeer());
+        theDevice.start();
+        asmBlockUpload theUpload = new asmBlockUpload(thePipe);
+        theUpload.upload(theBytes, 0, theBytes.length, 0x0100);
+        thePipe.close();
+        System.out.println("+ Baud rate: " + thePipe.getBaudRate() + ", credits granted by the device: " + theUpload.getCredits());
+        theUpload.printSummary();
+        System.out.println("+ Device bytes dropped: " + thePipe.getPeer().getRxLine().getDroppedCount());
+        System.out.println("+ Device memory matches: " + isMatch(theDevice.memory, 0x0100, theBytes) + ", blocks received: " + theDevice.getBlockCount());
+        System.out.println("+ Byte upload time, with a " + asmUpload.getBaudSleepTime()
+                + " ms sleep per byte: " + (theBytes.length * asmUpload.getBaudSleepTime() / 1000.0) + " seconds.");
+        //
+        System.out.println("+ Upload over a noisy line.");
+        thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        thePipe.getPeer().getRxLine().setNoise(0.001, 0.0005, 101);
+        thePipe.setReadTimeout(100);
+        theDevice = new asmUploadDevice(thePipe.getPeer());
+        theDevice.start();
+        theUpload = new asmBlockUpload(thePipe);
+        theUpload.upload(theBytes, 0, theBytes.length, 0x0100);
+        thePipe.close();
+        theUpload.printSummary();
+        System.out.println("+ Device CRC errors: " + theDevice.getCrcErrorCount()
+                + ", device memory matches: " + isMatch(theDevice.memory, 0x0100, theBytes));
+        //
+        System.out.println("+ Upload of more than 256 blocks over a noisy line, frames are lost while other blocks are ACKed.");
+        byte[] theLongBytes = new byte[9200];
+        for (int i = 0; i < theLongBytes.length; i++) {
+            theLongBytes[i] = (byte) (i * 13);
+        }
+        thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        thePipe.getPeer().getRxLine().setNoise(0.0005, 0.0005, 2);
+        thePipe.setReadTimeout(100);
+        theDevice = new asmUploadDevice(thePipe.getPeer());
+        theDevice.start();
+        theUpload = new asmBlockUpload(thePipe);
+        theUpload.upload(theLongBytes, 0, theLongBytes.length, 0x0100);
+        thePipe.close();
+        theUpload.printSummary();
+        System.out.println("+ Device CRC errors: " + theDevice.getCrcErrorCount() + ", gap NAKs: " + theDevice.getGapNakCount()
+                + ", device memory matches: " + isMatch(theDevice.memory, 0x0100, theLongBytes));
+        //
+        System.out.println("+ Upload that is interrupted, then resumed.");
+        byte[] theMemory = new byte[65536];
+        asmPipeTransport theInterruptedPipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        new asmUploadDevice(theInterruptedPipe.getPeer(), theMemory).start();
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+            }
+            theInterruptedPipe.close();
+        }).start();
+        theUpload = new asmBlockUpload(theInterruptedPipe);
+        try {
+            theUpload.upload(theBytes, 0, theBytes.length, 0x0100);
+        } catch (IOException ioe) {
+            System.out.println("+ Interrupted: " + ioe.getMessage() + " Resume from block: " + theUpload.getResumeBlock());
+        }
+        thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        new asmUploadDevice(thePipe.getPeer(), theMemory).start();
+        int firstBlock = theUpload.getResumeBlock();
+        theUpload = new asmBlockUpload(thePipe);
+        theUpload.upload(theBytes, 0, theBytes.length, 0x0100, firstBlock);
+        thePipe.close();
+        theUpload.printSummary();
+        System.out.println("+ Device memory matches: " + isMatch(theMemory, 0x0100, theBytes));
+        //
+        System.out.println("+ Run length encoded upload of a sparse image: a program, a 4K DS area, then more program.");
+        byte[] theSparse = new byte[6144];
+        System.arraycopy(theBytes, 0, theSparse, 0, 1024);
+        System.arraycopy(theBytes, 0, theSparse, 5120, 1024);
+        thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        theDevice = new asmUploadDevice(thePipe.getPeer());
+        theDevice.start();
+        theUpload = new asmBlockUpload(thePipe);
+        theUpload.uploadRangesEncoded(theSparse, new int[]{0}, new int[]{theSparse.length}, 0x0100, 0);
+        thePipe.close();
+        theUpload.printSummary();
+        System.out.println("+ Device memory matches: " + isMatch(theDevice.memory, 0x0100, theSparse));
+        System.out.println("\n+++ Exit.\n");
+    }
+}
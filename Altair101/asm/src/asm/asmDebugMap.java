@@ -0,0 +1,389 @@
+/*
+    Debug map of an assembled program.
+
+    Maps program addresses to source line numbers, and to address labels.
+    Both lists are stored as sorted primitive arrays, and looked up with a binary search,
+    so that address lookups do not create objects.
+    + Line map: a start address and a line number for each source line that generated program bytes.
+        A line's address range ends at the next line's start address, or at the program top.
+    + Symbol table: address labels, sorted by address.
+    + EQU table: EQU names and values, in source order. Kept apart from the labels,
+        so an immediate value, such as CR EQU 13, isn't used as the label of an address.
+
+    Used by the emulator profiler to report cycles by source line, routine, and loop.
+
+    The map is written by the assembler to a file next to the machine code file, for example: p1.bin.dbg.
+    The file is loaded with a single read, so tools can use it without parsing the source again.
+    File layout, big endian ints:
+        "A101DMAP", version, program top, number of lines, number of symbols, number of EQUs, string table size
+        Line start addresses, line numbers
+        Symbol addresses, symbol name offsets into the string table
+        EQU values, EQU name offsets into the string table
+        String table: the source file name, the symbol names, then the EQU names, each followed by a 0 byte.
+    The counts, sizes and offsets are checked when the file is read, so a truncated or corrupt file isn't loaded.
+
+ */
+package asm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class asmDebugMap {
+
+    public static final int NOT_FOUND = -1;
+    public static final String FILE_EXTENSION = ".dbg";
+    private static final String FILE_MAGIC = "A101DMAP";
+    private static final int FILE_VERSION = 2;
+    private static final int FILE_HEADER_INTS = 6;
+
+    private final String sourceFilename;
+    private final int programTop;
+    private final int[] lineStart;
+    private final int[] lineNumber;
+    private final int[] symbolAddress;
+    private final String[] symbolName;
+    private final int[] equValue;
+    private final String[] equName;
+    private String[] sourceLines = null;
+
+    // Constructor, the line and symbol arrays are already sorted by address.
+    public asmDebugMap(String sourceFilename, int programTop, int[] lineStart, int[] lineNumber, int[] symbolAddress, String[] symbolName,
+            int[] equValue, String[] equName) {
+        this.sourceFilename = sourceFilename;
+        this.programTop = programTop;
+        this.lineStart = lineStart;
+        this.lineNumber = lineNumber;
+        this.symbolAddress = symbolAddress;
+        this.symbolName = symbolName;
+        this.equValue = equValue;
+        this.equName = equName;
+    }
+
+    public String getSourceFilename() {
+        return sourceFilename;
+    }
+
+    public int getProgramTop() {
+        return programTop;
+    }
+
+    public int getSymbolCount() {
+        return symbolAddress.length;
+    }
+
+    public int getSymbolAddress(int theIndex) {
+        return symbolAddress[theIndex];
+    }
+
+    public String getSymbolName(int theIndex) {
+        return symbolName[theIndex];
+    }
+
+    public int getEquCount() {
+        return equValue.length;
+    }
+
+    public int getEquValue(int theIndex) {
+        return equValue[theIndex];
+    }
+
+    public String getEquName(int theIndex) {
+        return equName[theIndex];
+    }
+
+    // -------------------------------------------------------------------------
+    // Index of the last array value that is less than or equal to the address.
+    private static int floorIndex(int[] theArray, int theAddress) {
+        int low = 0;
+        int high = theArray.length - 1;
+        int found = NOT_FOUND;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (theArray[mid] <= theAddress) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Return the source line number that generated the byte at the address.
+    public int getLineNumber(int theAddress) {
+        if (theAddress >= programTop) {
+            return NOT_FOUND;
+        }
+        int i = floorIndex(lineStart, theAddress);
+        if (i == NOT_FOUND) {
+            return NOT_FOUND;
+        }
+        return lineNumber[i];
+    }
+
+    // Return the symbol index of the label at, or before, the address.
+    public int getSymbolIndex(int theAddress) {
+        return floorIndex(symbolAddress, theAddress);
+    }
+
+    // Return a label with an offset, for example: Loop+3, or the hex address when there are no labels before it.
+    public String getSymbolText(int theAddress) {
+        int i = getSymbolIndex(theAddress);
+        if (i == NOT_FOUND) {
+            return String.format("%04X", theAddress);
+        }
+        int theOffset = theAddress - symbolAddress[i];
+        if (theOffset == 0) {
+            return symbolName[i];
+        }
+        return symbolName[i] + "+" + theOffset;
+    }
+
+    // Return the address of a label, or the value of an EQU name, not case sensitive, same as the assembler.
+    public int findSymbol(String theName) {
+        for (int i = 0; i < symbolName.length; i++) {
+            if (symbolName[i].equalsIgnoreCase(theName)) {
+                return symbolAddress[i];
+            }
+        }
+        for (int i = 0; i < equName.length; i++) {
+            if (equName[i].equalsIgnoreCase(theName)) {
+                return equValue[i];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    // Return the source text of a line number. The source file is read the first time it's needed.
+    public String getSourceLine(int theLineNumber) {
+        if (sourceLines == null) {
+            List<String> theLines = new ArrayList<>();
+            File readFile = new File(sourceFilename);
+            if (readFile.exists()) {
+                try (BufferedReader in = new BufferedReader(new FileReader(readFile))) {
+                    String theLine = in.readLine();
+                    while (theLine != null) {
+                        theLines.add(theLine);
+                        theLine = in.readLine();
+                    }
+                } catch (IOException ioe) {
+                    System.out.print("+ *** IOException: ");
+                    System.out.println(ioe.toString());
+                }
+            }
+            sourceLines = theLines.toArray(new String[theLines.size()]);
+        }
+        if (theLineNumber < 1 || theLineNumber > sourceLines.length) {
+            return "";
+        }
+        return sourceLines[theLineNumber - 1].replaceAll("\t", " ").trim();
+    }
+
+    // -------------------------------------------------------------------------
+    // Sort the symbols by address, keeping the source order for labels at the same address.
+    public static asmDebugMap fromLists(String sourceFilename, int programTop,
+            List<Integer> lineAddresses, List<Integer> lineNumbers,
+            List<Integer> labelAddresses, List<String> labelNames, List<Integer> equValues, List<String> equNames) {
+        int[] lineStart = new int[lineAddresses.size()];
+        int[] lineNumber = new int[lineNumbers.size()];
+        for (int i = 0; i < lineStart.length; i++) {
+            lineStart[i] = lineAddresses.get(i);
+            lineNumber[i] = lineNumbers.get(i);
+        }
+        Integer[] order = new Integer[labelAddresses.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(labelAddresses.get(a), labelAddresses.get(b)));
+        int[] symbolAddress = new int[order.length];
+        String[] symbolName = new String[order.length];
+        for (int i = 0; i < order.length; i++) {
+            symbolAddress[i] = labelAddresses.get(order[i]);
+            symbolName[i] = labelNames.get(order[i]);
+        }
+        int[] equValue = new int[equValues.size()];
+        for (int i = 0; i < equValue.length; i++) {
+            equValue[i] = equValues.get(i);
+        }
+        return new asmDebugMap(sourceFilename, programTop, lineStart, lineNumber, symbolAddress, symbolName,
+                equValue, equNames.toArray(new String[equNames.size()]));
+    }
+
+    // -------------------------------------------------------------------------
+    // Write the map to a file.
+    public void writeFile(String theFilename) {
+        byte[][] theNames = new byte[1 + symbolName.length + equName.length][];
+        theNames[0] = sourceFilename.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < symbolName.length; i++) {
+            theNames[1 + i] = symbolName[i].getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < equName.length; i++) {
+            theNames[1 + symbolName.length + i] = equName[i].getBytes(StandardCharsets.UTF_8);
+        }
+        int stringTableSize = 0;
+        for (byte[] theName : theNames) {
+            stringTableSize += theName.length + 1;
+        }
+        int theSize = FILE_MAGIC.length() + 4 * (FILE_HEADER_INTS + 2 * lineStart.length + 2 * symbolAddress.length + 2 * equValue.length)
+                + stringTableSize;
+        ByteBuffer theBuffer = ByteBuffer.allocate(theSize);
+        theBuffer.put(FILE_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        theBuffer.putInt(FILE_VERSION);
+        theBuffer.putInt(programTop);
+        theBuffer.putInt(lineStart.length);
+        theBuffer.putInt(symbolAddress.length);
+        theBuffer.putInt(equValue.length);
+        theBuffer.putInt(stringTableSize);
+        IntBuffer theInts = theBuffer.asIntBuffer();
+        theInts.put(lineStart);
+        theInts.put(lineNumber);
+        theInts.put(symbolAddress);
+        int theOffset = theNames[0].length + 1;
+        for (int i = 0; i < symbolName.length; i++) {
+            theInts.put(theOffset);
+            theOffset += theNames[1 + i].length + 1;
+        }
+        theInts.put(equValue);
+        for (int i = 0; i < equName.length; i++) {
+            theInts.put(theOffset);
+            theOffset += theNames[1 + symbolName.length + i].length + 1;
+        }
+        theBuffer.position(theBuffer.position() + 4 * theInts.position());
+        for (byte[] theName : theNames) {
+            theBuffer.put(theName);
+            theBuffer.put((byte) 0);
+        }
+        theBuffer.flip();
+        try (FileOutputStream fout = new FileOutputStream(theFilename)) {
+            FileChannel theChannel = fout.getChannel();
+            while (theBuffer.hasRemaining()) {
+                theChannel.write(theBuffer);
+            }
+        } catch (IOException e) {
+            System.out.println("-- Error, writing debug map file: " + e);
+            return;
+        }
+        System.out.println("+ Debug map file created:  " + theFilename);
+    }
+
+    // Read a 0 terminated string from the string table. Returns null if it isn't terminated within the buffer.
+    private static String readString(ByteBuffer theBuffer, int theStart) {
+        int theEnd = theStart;
+        while (theEnd < theBuffer.limit() && theBuffer.get(theEnd) != 0) {
+            theEnd++;
+        }
+        if (theEnd >= theBuffer.limit()) {
+            return null;
+        }
+        byte[] theBytes = new byte[theEnd - theStart];
+        for (int i = 0; i < theBytes.length; i++) {
+            theBytes[i] = theBuffer.get(theStart + i);
+        }
+        return new String(theBytes, StandardCharsets.UTF_8);
+    }
+
+    // Read a map file. Returns null if the file doesn't exist or is not a debug map file.
+    public static asmDebugMap readFile(String theFilename) {
+        File theFile = new File(theFilename);
+        if (!theFile.exists()) {
+            return null;
+        }
+        ByteBuffer theBuffer = ByteBuffer.allocate((int) theFile.length());
+        try (FileInputStream in = new FileInputStream(theFile)) {
+            FileChannel theChannel = in.getChannel();
+            while (theBuffer.hasRemaining() && theChannel.read(theBuffer) >= 0) {
+                // Read the whole file.
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return null;
+        }
+        theBuffer.flip();
+        byte[] theMagic = new byte[FILE_MAGIC.length()];
+        if (theBuffer.remaining() < theMagic.length + 4 * FILE_HEADER_INTS) {
+            System.out.println("- Error, not a debug map file: " + theFilename);
+            return null;
+        }
+        theBuffer.get(theMagic);
+        if (!FILE_MAGIC.equals(new String(theMagic, StandardCharsets.US_ASCII))) {
+            System.out.println("- Error, not a debug map file: " + theFilename);
+            return null;
+        }
+        if (theBuffer.getInt() != FILE_VERSION) {
+            System.out.println("- Error, old debug map file version, parse the program again to write a new one: " + theFilename);
+            return null;
+        }
+        int theProgramTop = theBuffer.getInt();
+        int lineCount = theBuffer.getInt();
+        int symbolCount = theBuffer.getInt();
+        int equCount = theBuffer.getInt();
+        int stringTableSize = theBuffer.getInt();
+        // Check the counts and the size before allocating the arrays. Long, so large counts don't overflow.
+        if (lineCount < 0 || symbolCount < 0 || equCount < 0 || stringTableSize < 1
+                || theBuffer.remaining() != 8L * lineCount + 8L * symbolCount + 8L * equCount + stringTableSize) {
+            System.out.println("- Error, the debug map file is truncated or corrupt: " + theFilename);
+            return null;
+        }
+        int[] theLineStart = new int[lineCount];
+        int[] theLineNumber = new int[lineCount];
+        int[] theSymbolAddress = new int[symbolCount];
+        int[] theNameOffset = new int[symbolCount];
+        int[] theEquValue = new int[equCount];
+        int[] theEquNameOffset = new int[equCount];
+        IntBuffer theInts = theBuffer.asIntBuffer();
+        theInts.get(theLineStart);
+        theInts.get(theLineNumber);
+        theInts.get(theSymbolAddress);
+        theInts.get(theNameOffset);
+        theInts.get(theEquValue);
+        theInts.get(theEquNameOffset);
+        int stringTable = theBuffer.position() + 4 * theInts.position();
+        String theSourceFilename = readString(theBuffer, stringTable);
+        String[] theSymbolName = readStrings(theBuffer, stringTable, theNameOffset);
+        String[] theEquName = readStrings(theBuffer, stringTable, theEquNameOffset);
+        if (theSourceFilename == null || theSymbolName == null || theEquName == null) {
+            System.out.println("- Error, the debug map file is truncated or corrupt: " + theFilename);
+            return null;
+        }
+        return new asmDebugMap(theSourceFilename, theProgramTop, theLineStart, theLineNumber, theSymbolAddress, theSymbolName,
+                theEquValue, theEquName);
+    }
+
+    // Read the names at the string table offsets. Returns null if an offset is outside the table, or a name isn't terminated.
+    private static String[] readStrings(ByteBuffer theBuffer, int theStringTable, int[] theOffsets) {
+        String[] theNames = new String[theOffsets.length];
+        for (int i = 0; i < theOffsets.length; i++) {
+            if (theOffsets[i] < 0 || theOffsets[i] >= theBuffer.limit() - theStringTable) {
+                return null;
+            }
+            theNames[i] = readString(theBuffer, theStringTable + theOffsets[i]);
+            if (theNames[i] == null) {
+                return null;
+            }
+        }
+        return theNames;
+    }
+
+    public void listSymbols() {
+        System.out.println("+ Symbol table for: " + sourceFilename);
+        for (int i = 0; i < symbolAddress.length; i++) {
+            System.out.println(String.format("++ %04X %5d : ", symbolAddress[i], symbolAddress[i]) + symbolName[i]);
+        }
+        for (int i = 0; i < equValue.length; i++) {
+            System.out.println(String.format("++ %04X %5d : ", equValue[i], equValue[i]) + equName[i] + " EQU");
+        }
+        System.out.println("+ End of list.");
+    }
+}
@@ -0,0 +1,190 @@
+/*
+    Emulator breakpoints and watchpoints.
+
+    Each type is a bitmap, one bit per memory address (64K) or per port (256),
+    so checking an address, before an opcode step or on a memory access, is a single bit test.
+    + Breakpoints: stop before the opcode at the address is processed.
+    + Memory read and write watchpoints: stop after the opcode that reads or writes the address.
+    + Port input and output watchpoints: stop after the IN or OUT opcode that uses the port.
+
+    When there are no breakpoints and no watchpoints, the emulator runs without the checks.
+
+ */
+package asm;
+
+import java.util.Arrays;
+
+public class asmDebugger {
+
+    private static final int MEMSIZE = 65536;
+    private static final int PORTS = 256;
+
+    // Watch types.
+    public static final int WATCH_READ = 0;
+    public static final int WATCH_WRITE = 1;
+    public static final int WATCH_IN = 2;
+    public static final int WATCH_OUT = 3;
+    private static final String[] WATCH_NAMES = {"read", "write", "in", "out"};
+
+    private final long[] breakpoints = new long[MEMSIZE / 64];
+    private final long[] readWatch = new long[MEMSIZE / 64];
+    private final long[] writeWatch = new long[MEMSIZE / 64];
+    private final long[] inWatch = new long[PORTS / 64];
+    private final long[] outWatch = new long[PORTS / 64];
+    private int breakpointCount = 0;
+    private int memoryWatchCount = 0;
+    private int portWatchCount = 0;
+
+    // The watchpoint that was hit during the current step.
+    private int hitType = -1;
+    private int hitAddress = 0;
+    private int hitValue = 0;
+
+    // -------------------------------------------------------------------------
+    private static boolean testBit(long[] theBits, int theIndex) {
+        return (theBits[theIndex >>> 6] & (1L << theIndex)) != 0;
+    }
+
+    // Set or clear a bit. Returns 1 if the bit changed from clear to set, -1 if set to clear, else 0.
+    private static int changeBit(long[] theBits, int theIndex, boolean theValue) {
+        boolean wasSet = testBit(theBits, theIndex);
+        if (theValue) {
+            theBits[theIndex >>> 6] |= (1L << theIndex);
+        } else {
+            theBits[theIndex >>> 6] &= ~(1L << theIndex);
+        }
+        if (wasSet == theValue) {
+            return 0;
+        }
+        return theValue ? 1 : -1;
+    }
+
+    private long[] watchBits(int theType) {
+        switch (theType) {
+            case WATCH_READ:
+                return readWatch;
+            case WATCH_WRITE:
+                return writeWatch;
+            case WATCH_IN:
+                return inWatch;
+            default:
+                return outWatch;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public void setBreakpoint(int theAddress, boolean theValue) {
+        breakpointCount += changeBit(breakpoints, theAddress & 0xffff, theValue);
+    }
+
+    public void setWatch(int theType, int theAddress, boolean theValue) {
+        if (theType == WATCH_IN || theType == WATCH_OUT) {
+            portWatchCount += changeBit(watchBits(theType), theAddress & 0xff, theValue);
+        } else {
+            memoryWatchCount += changeBit(watchBits(theType), theAddress & 0xffff, theValue);
+        }
+    }
+
+    public void clearAll() {
+        Arrays.fill(breakpoints, 0);
+        Arrays.fill(readWatch, 0);
+        Arrays.fill(writeWatch, 0);
+        Arrays.fill(inWatch, 0);
+        Arrays.fill(outWatch, 0);
+        breakpointCount = 0;
+        memoryWatchCount = 0;
+        portWatchCount = 0;
+    }
+
+    public static int watchType(String theName) {
+        for (int i = 0; i < WATCH_NAMES.length; i++) {
+            if (WATCH_NAMES[i].equals(theName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isActive() {
+        return breakpointCount + memoryWatchCount + portWatchCount > 0;
+    }
+
+    public boolean hasMemoryWatch() {
+        return memoryWatchCount > 0;
+    }
+
+    public boolean hasPortWatch() {
+        return portWatchCount > 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // Checks called by the emulator.
+    boolean isBreakpoint(int theAddress) {
+        return testBit(breakpoints, theAddress);
+    }
+
+    void checkRead(int theAddress, int theValue) {
+        if (testBit(readWatch, theAddress)) {
+            setHit(WATCH_READ, theAddress, theValue);
+        }
+    }
+
+    void checkWrite(int theAddress, int theValue) {
+        if (testBit(writeWatch, theAddress)) {
+            setHit(WATCH_WRITE, theAddress, theValue);
+        }
+    }
+
+    void checkPort(int theType, int thePort, int theValue) {
+        if (testBit(watchBits(theType), thePort)) {
+            setHit(theType, thePort, theValue);
+        }
+    }
+
+    private void setHit(int theType, int theAddress, int theValue) {
+        hitType = theType;
+        hitAddress = theAddress;
+        hitValue = theValue;
+    }
+
+    boolean isHit() {
+        return hitType >= 0;
+    }
+
+    void clearHit() {
+        hitType = -1;
+    }
+
+    public String getHitText() {
+        if (hitType < 0) {
+            return "";
+        }
+        if (hitType == WATCH_IN || hitType == WATCH_OUT) {
+            return "port " + WATCH_NAMES[hitType] + ", port#: " + hitAddress + ", value: " + hitValue;
+        }
+        return "memory " + WATCH_NAMES[hitType] + String.format(", address: %04X, value: %02X", hitAddress, hitValue);
+    }
+
+    // -------------------------------------------------------------------------
+    private void listBits(String theName, long[] theBits, int theSize, asmDebugMap theMap) {
+        for (int i = 0; i < theSize; i++) {
+            if (testBit(theBits, i)) {
+                String theLabel = "";
+                if (theMap != null && theSize == MEMSIZE) {
+                    theLabel = " " + theMap.getSymbolText(i);
+                }
+                System.out.println(String.format("++ %-6s %04X %5d", theName, i, i) + theLabel);
+            }
+        }
+    }
+
+    public void list(asmDebugMap theMap) {
+        System.out.println("+ Breakpoints and watchpoints:");
+        listBits("break", breakpoints, MEMSIZE, theMap);
+        for (int theType = WATCH_READ; theType <= WATCH_OUT; theType++) {
+            int theSize = (theType == WATCH_IN || theType == WATCH_OUT) ? PORTS : MEMSIZE;
+            listBits(WATCH_NAMES[theType], watchBits(theType), theSize, theMap);
+        }
+        System.out.println("+ End of list.");
+    }
+}
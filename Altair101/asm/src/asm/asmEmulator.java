@@ -0,0 +1,868 @@
+/*
+    Altair 101 host emulator.
+
+    An Intel 8080 processor with 64K of memory, to run assembled program files on the laptop,
+    without uploading them to an Altair 101 board.
+    Opcode logic is based on the board's processor code: Altair101a/cpuIntel8080.cpp.
+
+    Input and output ports are the same as Altair101a.ino, altair_in() and altair_out():
+    + Port 0 and 1, 4K Basic serial: IN 0 returns 0 when a character is ready, 1 when not.
+        IN 1 returns the character, uppercase, with LF converted to CR.
+    + Port 2, 3, 16 and 17, serial: IN returns the waiting character, or 0 when none.
+        OUT writes the character to the console.
+    + Port 4 and 255, sense switches.
+    + Other output ports, for example 30 to 45 which echo processor values on the board, are ignored.
+
+    Clock cycles are counted per opcode, the same as an Intel 8080 at 2MHz.
+
+ */
+package asm;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+public class asmEmulator {
+
+    private static final int MEMSIZE = 65536;   // 64K.
+
+    // Status register flag bits.
+    static final int FLAG_CARRY = 0x01;
+    static final int FLAG_ALWAYS_ON = 0x02;
+    static final int FLAG_PARITY = 0x04;
+    static final int FLAG_HALFCARRY = 0x10;
+    static final int FLAG_ZERO = 0x40;
+    static final int FLAG_SIGN = 0x80;
+
+    // Run stop reasons.
+    public static final int STOP_HALT = 1;
+    public static final int STOP_LIMIT = 2;
+    public static final int STOP_BREAK = 3;
+    public static final int STOP_WATCH = 4;
+
+    // Clock cycles per opcode.
+    // Conditional calls and returns take 6 more cycles when the condition is met.
+    static final int[] OPCODE_CYCLES = {
+        //  0   1   2   3   4   5   6   7   8   9   A   B   C   D   E   F
+        4, 10, 7, 5, 5, 5, 7, 4, 4, 10, 7, 5, 5, 5, 7, 4, // 0
+        4, 10, 7, 5, 5, 5, 7, 4, 4, 10, 7, 5, 5, 5, 7, 4, // 1
+        4, 10, 16, 5, 5, 5, 7, 4, 4, 10, 16, 5, 5, 5, 7, 4, // 2
+        4, 10, 13, 5, 10, 10, 10, 4, 4, 10, 13, 5, 5, 5, 7, 4, // 3
+        5, 5, 5, 5, 5, 5, 7, 5, 5, 5, 5, 5, 5, 5, 7, 5, // 4
+        5, 5, 5, 5, 5, 5, 7, 5, 5, 5, 5, 5, 5, 5, 7, 5, // 5
+        5, 5, 5, 5, 5, 5, 7, 5, 5, 5, 5, 5, 5, 5, 7, 5, // 6
+        7, 7, 7, 7, 7, 7, 7, 7, 5, 5, 5, 5, 5, 5, 7, 5, // 7
+        4, 4, 4, 4, 4, 4, 7, 4, 4, 4, 4, 4, 4, 4, 7, 4, // 8
+        4, 4, 4, 4, 4, 4, 7, 4, 4, 4, 4, 4, 4, 4, 7, 4, // 9
+        4, 4, 4, 4, 4, 4, 7, 4, 4, 4, 4, 4, 4, 4, 7, 4, // A
+        4, 4, 4, 4, 4, 4, 7, 4, 4, 4, 4, 4, 4, 4, 7, 4, // B
+        5, 10, 10, 10, 11, 11, 7, 11, 5, 10, 10, 10, 11, 17, 7, 11, // C
+        5, 10, 10, 10, 11, 11, 7, 11, 5, 10, 10, 10, 11, 17, 7, 11, // D
+        5, 10, 10, 18, 11, 11, 7, 11, 5, 5, 10, 4, 11, 17, 7, 11, // E
+        5, 10, 10, 4, 11, 11, 7, 11, 5, 5, 10, 4, 11, 17, 7, 11 // F
+    };
+
+    // Number of bytes per opcode: the opcode plus its immediate byte or address bytes.
+    static final int[] OPCODE_LENGTH = {
+        //  0  1  2  3  4  5  6  7  8  9  A  B  C  D  E  F
+        1, 3, 1, 1, 1, 1, 2, 1, 1, 1, 1, 1, 1, 1, 2, 1, // 0
+        1, 3, 1, 1, 1, 1, 2, 1, 1, 1, 1, 1, 1, 1, 2, 1, // 1
+        1, 3, 3, 1, 1, 1, 2, 1, 1, 1, 3, 1, 1, 1, 2, 1, // 2
+        1, 3, 3, 1, 1, 1, 2, 1, 1, 1, 3, 1, 1, 1, 2, 1, // 3
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 4
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 5
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 6
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 7
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 8
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // 9
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // A
+        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, // B
+        1, 1, 3, 3, 3, 1, 2, 1, 1, 1, 3, 3, 3, 3, 2, 1, // C
+        1, 1, 3, 2, 3, 1, 2, 1, 1, 1, 3, 2, 3, 3, 2, 1, // D
+        1, 1, 3, 1, 3, 1, 2, 1, 1, 1, 3, 1, 3, 3, 2, 1, // E
+        1, 1, 3, 1, 3, 1, 2, 1, 1, 1, 3, 1, 3, 3, 2, 1 // F
+    };
+
+    // Parity flag value for each byte value: set when the number of 1 bits is even.
+    private static final int[] PARITY = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            PARITY[i] = (Integer.bitCount(i) % 2 == 0) ? FLAG_PARITY : 0;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Processor state.
+    final byte[] memory = new byte[MEMSIZE];
+    int regA;
+    int regF = FLAG_ALWAYS_ON;
+    int regB;
+    int regC;
+    int regD;
+    int regE;
+    int regH;
+    int regL;
+    int regSP;
+    int regPC;
+    boolean interruptsEnabled = false;
+    boolean halted = false;
+    long cycleCount = 0;
+    long stepCount = 0;
+
+    // -----------------------------------------
+    // Devices.
+    int senseSwitches = 0;
+    private boolean consoleInput = true;    // Read serial input characters from System.in.
+    private PrintStream consoleOut = System.out;
+    // 4K Basic port 0 and 1 handshake, same as inputBytePort0 in Altair101a.ino.
+    int inputBytePort0 = 0;
+    // Serial input characters, waiting for an IN opcode.
+    final int[] inputQueue = new int[256];
+    int inputHead = 0;
+    int inputTail = 0;
+
+    // -----------------------------------------
+    // Optional run features.
+    private asmProfiler profiler = null;
+    private asmTrace trace = null;
+    private asmDebugger debugger = null;
+    private boolean watchMemory = false;
+    private boolean watchPorts = false;
+    private int breakAddress = -1;          // Breakpoint address of the last stop, which is stepped over when continuing.
+
+    public asmDebugger getDebugger() {
+        return debugger;
+    }
+
+    public void setDebugger(asmDebugger theDebugger) {
+        debugger = theDebugger;
+    }
+
+    public asmTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(asmTrace theTrace) {
+        trace = theTrace;
+    }
+
+    public asmProfiler getProfiler() {
+        return profiler;
+    }
+
+    public void setProfiler(asmProfiler theProfiler) {
+        profiler = theProfiler;
+    }
+
+    public void setConsoleInput(boolean theValue) {
+        consoleInput = theValue;
+    }
+
+    public void setConsoleOut(PrintStream theOut) {
+        consoleOut = theOut;
+    }
+
+    // -------------------------------------------------------------------------
+    public void reset() {
+        regA = 0;
+        regF = FLAG_ALWAYS_ON;
+        regB = 0;
+        regC = 0;
+        regD = 0;
+        regE = 0;
+        regH = 0;
+        regL = 0;
+        regSP = 0;
+        regPC = 0;
+        interruptsEnabled = false;
+        halted = false;
+        breakAddress = -1;
+        cycleCount = 0;
+        stepCount = 0;
+        inputBytePort0 = 0;
+        inputHead = 0;
+        inputTail = 0;
+    }
+
+    public void clearMemory() {
+        for (int i = 0; i < MEMSIZE; i++) {
+            memory[i] = 0;
+        }
+    }
+
+    // Load a program file into memory, starting at the address. Returns the number of bytes loaded.
+    public int loadFile(String theReadFilename, int theAddress) {
+        int theLength = 0;
+        try {
+            File theFile = new File(theReadFilename);
+            if (!theFile.exists()) {
+                System.out.println("- Error, file does not exist: " + theReadFilename);
+                return 0;
+            }
+            if (theReadFilename.endsWith(asmUploadEncoding.FILE_EXTENSION)) {
+                // Run length encoded file, its segments have their own addresses.
+                theLength = asmUploadEncoding.decodeFile(Files.readAllBytes(theFile.toPath()), memory);
+                if (theLength < 0) {
+                    System.out.println("- Error, not a valid run length encoded file: " + theReadFilename);
+                    return 0;
+                }
+                return theLength;
+            }
+            theLength = (int) Math.min(theFile.length(), MEMSIZE - theAddress);
+            try (DataInputStream in = new DataInputStream(new FileInputStream(theFile))) {
+                in.readFully(memory, theAddress, theLength);
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return 0;
+        }
+        return theLength;
+    }
+
+    public void loadBytes(byte[] theBytes, int theAddress) {
+        System.arraycopy(theBytes, 0, memory, theAddress, Math.min(theBytes.length, MEMSIZE - theAddress));
+    }
+
+    // Queue a serial input character, for example, a key stroke or a character from a Basic program file.
+    public void addInput(int theByte) {
+        int next = (inputTail + 1) & 0xff;
+        if (next == inputHead) {
+            // Full, drop the character, same as a full serial receive buffer.
+            return;
+        }
+        inputQueue[inputTail] = theByte & 0xff;
+        inputTail = next;
+    }
+
+    private int readInput() {
+        if (inputHead == inputTail && consoleInput) {
+            try {
+                while (System.in.available() > 0) {
+                    addInput(System.in.read());
+                }
+            } catch (IOException e) {
+                consoleInput = false;
+            }
+        }
+        if (inputHead == inputTail) {
+            return 0;
+        }
+        int theByte = inputQueue[inputHead];
+        inputHead = (inputHead + 1) & 0xff;
+        return theByte;
+    }
+
+    // -------------------------------------------------------------------------
+    // Input and output ports, based on Altair101a.ino.
+    int portIn(int thePort) {
+        int inputDataByte;
+        switch (thePort) {
+            case 0:
+                if (inputBytePort0 == 0) {
+                    inputBytePort0 = readInput();
+                }
+                inputDataByte = (inputBytePort0 > 0) ? 0 : 1;
+                break;
+            case 1:
+                if (inputBytePort0 >= 'a' && inputBytePort0 <= 'z') {
+                    inputDataByte = inputBytePort0 - 32;    // Convert from lowercase to uppercase.
+                } else if (inputBytePort0 == 10) {
+                    inputDataByte = 13;                     // Convert LF to CR, which Basic 4K uses.
+                } else {
+                    inputDataByte = inputBytePort0;
+                }
+                inputBytePort0 = 0;
+                break;
+            case 2:
+            case 3:
+            case 16:
+            case 17:
+                inputDataByte = readInput();
+                break;
+            case 4:
+            case 255:
+                inputDataByte = senseSwitches & 0xff;
+                break;
+            default:
+                inputDataByte = 0;
+                break;
+        }
+        if (watchPorts) {
+            debugger.checkPort(asmDebugger.WATCH_IN, thePort, inputDataByte);
+        }
+        return inputDataByte;
+    }
+
+    void portOut(int thePort, int theByte) {
+        if (watchPorts) {
+            debugger.checkPort(asmDebugger.WATCH_OUT, thePort, theByte);
+        }
+        switch (thePort) {
+            case 0:
+            case 1:
+                // 4K Basic, the 8th bit is set to 0.
+                consoleOut.write(theByte & 0x7f);
+                consoleOut.flush();
+                break;
+            case 2:
+            case 3:
+            case 16:
+            case 17:
+                consoleOut.write(theByte);
+                consoleOut.flush();
+                break;
+            default:
+                // Front panel and processor echo ports are not emulated.
+                break;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Memory and register access.
+    int readMemory(int theAddress) {
+        if (watchMemory) {
+            debugger.checkRead(theAddress, memory[theAddress] & 0xff);
+        }
+        return memory[theAddress] & 0xff;
+    }
+
+    void writeMemory(int theAddress, int theByte) {
+        memory[theAddress] = (byte) theByte;
+        if (watchMemory) {
+            debugger.checkWrite(theAddress, theByte & 0xff);
+        }
+        if (trace != null) {
+            trace.recordWrite(theAddress, theByte);
+        }
+    }
+
+    private int fetchByte() {
+        int theByte = memory[regPC] & 0xff;
+        regPC = (regPC + 1) & 0xffff;
+        return theByte;
+    }
+
+    private int fetchWord() {
+        int lb = fetchByte();
+        return (fetchByte() << 8) | lb;
+    }
+
+    // Register identifiers, same as the opcode bits: 000=B 001=C 010=D 011=E 100=H 101=L 110=M 111=A
+    private int getRegister(int r) {
+        switch (r) {
+            case 0:
+                return regB;
+            case 1:
+                return regC;
+            case 2:
+                return regD;
+            case 3:
+                return regE;
+            case 4:
+                return regH;
+            case 5:
+                return regL;
+            case 6:
+                return readMemory((regH << 8) | regL);
+            default:
+                return regA;
+        }
+    }
+
+    private void setRegister(int r, int theValue) {
+        switch (r) {
+            case 0:
+                regB = theValue;
+                break;
+            case 1:
+                regC = theValue;
+                break;
+            case 2:
+                regD = theValue;
+                break;
+            case 3:
+                regE = theValue;
+                break;
+            case 4:
+                regH = theValue;
+                break;
+            case 5:
+                regL = theValue;
+                break;
+            case 6:
+                writeMemory((regH << 8) | regL, theValue);
+                break;
+            default:
+                regA = theValue;
+                break;
+        }
+    }
+
+    // Register pair identifiers: 00=BC 01=DE 10=HL 11=SP
+    private int getRegisterPair(int rp) {
+        switch (rp) {
+            case 0:
+                return (regB << 8) | regC;
+            case 1:
+                return (regD << 8) | regE;
+            case 2:
+                return (regH << 8) | regL;
+            default:
+                return regSP;
+        }
+    }
+
+    private void setRegisterPair(int rp, int theValue) {
+        theValue = theValue & 0xffff;
+        switch (rp) {
+            case 0:
+                regB = theValue >> 8;
+                regC = theValue & 0xff;
+                break;
+            case 1:
+                regD = theValue >> 8;
+                regE = theValue & 0xff;
+                break;
+            case 2:
+                regH = theValue >> 8;
+                regL = theValue & 0xff;
+                break;
+            default:
+                regSP = theValue;
+                break;
+        }
+    }
+
+    private void pushWord(int theValue) {
+        regSP = (regSP - 1) & 0xffff;
+        writeMemory(regSP, theValue >> 8);
+        regSP = (regSP - 1) & 0xffff;
+        writeMemory(regSP, theValue & 0xff);
+    }
+
+    private int popWord() {
+        int lb = readMemory(regSP);
+        regSP = (regSP + 1) & 0xffff;
+        int hb = readMemory(regSP);
+        regSP = (regSP + 1) & 0xffff;
+        return (hb << 8) | lb;
+    }
+
+    // -------------------------------------------------------------------------
+    // Arithmetic and logic, with status flag settings.
+    private int flagsSZP(int theValue) {
+        return (theValue & FLAG_SIGN) | (theValue == 0 ? FLAG_ZERO : 0) | PARITY[theValue] | FLAG_ALWAYS_ON;
+    }
+
+    private void add(int theValue, int carry) {
+        int result = regA + theValue + carry;
+        int halfCarry = ((regA & 0x0f) + (theValue & 0x0f) + carry) > 0x0f ? FLAG_HALFCARRY : 0;
+        regA = result & 0xff;
+        regF = flagsSZP(regA) | halfCarry | (result > 0xff ? FLAG_CARRY : 0);
+    }
+
+    private int subtract(int theValue, int borrow) {
+        int result = regA - theValue - borrow;
+        int halfCarry = ((regA & 0x0f) + (~theValue & 0x0f) + (1 - borrow)) > 0x0f ? FLAG_HALFCARRY : 0;
+        regF = flagsSZP(result & 0xff) | halfCarry | (result < 0 ? FLAG_CARRY : 0);
+        return result & 0xff;
+    }
+
+    // ALU operation identifiers, same as the opcode bits: ADD ADC SUB SBB ANA XRA ORA CMP
+    private void alu(int theOperation, int theValue) {
+        switch (theOperation) {
+            case 0:
+                add(theValue, 0);
+                break;
+            case 1:
+                add(theValue, regF & FLAG_CARRY);
+                break;
+            case 2:
+                regA = subtract(theValue, 0);
+                break;
+            case 3:
+                regA = subtract(theValue, regF & FLAG_CARRY);
+                break;
+            case 4:
+                int halfCarry = ((regA | theValue) & 0x08) != 0 ? FLAG_HALFCARRY : 0;
+                regA = regA & theValue;
+                regF = flagsSZP(regA) | halfCarry;
+                break;
+            case 5:
+                regA = regA ^ theValue;
+                regF = flagsSZP(regA);
+                break;
+            case 6:
+                regA = regA | theValue;
+                regF = flagsSZP(regA);
+                break;
+            default:
+                subtract(theValue, 0);
+                break;
+        }
+    }
+
+    // Condition identifiers, same as the opcode bits: NZ Z NC C PO PE P M
+    private boolean condition(int theCondition) {
+        switch (theCondition) {
+            case 0:
+                return (regF & FLAG_ZERO) == 0;
+            case 1:
+                return (regF & FLAG_ZERO) != 0;
+            case 2:
+                return (regF & FLAG_CARRY) == 0;
+            case 3:
+                return (regF & FLAG_CARRY) != 0;
+            case 4:
+                return (regF & FLAG_PARITY) == 0;
+            case 5:
+                return (regF & FLAG_PARITY) != 0;
+            case 6:
+                return (regF & FLAG_SIGN) == 0;
+            default:
+                return (regF & FLAG_SIGN) != 0;
+        }
+    }
+
+    private void jump(int fromAddress, int theAddress) {
+        if (profiler != null && theAddress <= fromAddress) {
+            profiler.countLoop(fromAddress, theAddress);
+        }
+        regPC = theAddress;
+    }
+
+    // -------------------------------------------------------------------------
+    // Process one opcode. Returns the number of clock cycles used.
+    public int step() {
+        int instructionAddress = regPC;
+        int opcode = fetchByte();
+        int cycles = OPCODE_CYCLES[opcode];
+        int theValue;
+        if (opcode >= 0x40 && opcode < 0x80) {
+            // MOV and HLT.
+            if (opcode == 0x76) {
+                halted = true;
+                regPC = instructionAddress;
+            } else {
+                setRegister((opcode >> 3) & 7, getRegister(opcode & 7));
+            }
+        } else if (opcode >= 0x80 && opcode < 0xc0) {
+            // ADD ADC SUB SBB ANA XRA ORA CMP <register>
+            alu((opcode >> 3) & 7, getRegister(opcode & 7));
+        } else if (opcode < 0x40) {
+            switch (opcode & 7) {
+                case 0:
+                    // NOP
+                    break;
+                case 1:
+                    if ((opcode & 0x08) == 0) {
+                        // LXI
+                        setRegisterPair(opcode >> 4, fetchWord());
+                    } else {
+                        // DAD
+                        theValue = getRegisterPair(2) + getRegisterPair(opcode >> 4);
+                        regF = (regF & ~FLAG_CARRY) | (theValue > 0xffff ? FLAG_CARRY : 0);
+                        setRegisterPair(2, theValue);
+                    }
+                    break;
+                case 2:
+                    switch (opcode) {
+                        case 0x02:
+                            writeMemory(getRegisterPair(0), regA);  // STAX B
+                            break;
+                        case 0x0a:
+                            regA = readMemory(getRegisterPair(0));  // LDAX B
+                            break;
+                        case 0x12:
+                            writeMemory(getRegisterPair(1), regA);  // STAX D
+                            break;
+                        case 0x1a:
+                            regA = readMemory(getRegisterPair(1));  // LDAX D
+                            break;
+                        case 0x22:
+                            theValue = fetchWord();                 // SHLD
+                            writeMemory(theValue, regL);
+                            writeMemory((theValue + 1) & 0xffff, regH);
+                            break;
+                        case 0x2a:
+                            theValue = fetchWord();                 // LHLD
+                            regL = readMemory(theValue);
+                            regH = readMemory((theValue + 1) & 0xffff);
+                            break;
+                        case 0x32:
+                            writeMemory(fetchWord(), regA);         // STA
+                            break;
+                        default:
+                            regA = readMemory(fetchWord());         // LDA
+                            break;
+                    }
+                    break;
+                case 3:
+                    if ((opcode & 0x08) == 0) {
+                        setRegisterPair(opcode >> 4, getRegisterPair(opcode >> 4) + 1);    // INX
+                    } else {
+                        setRegisterPair(opcode >> 4, getRegisterPair(opcode >> 4) - 1);    // DCX
+                    }
+                    break;
+                case 4:
+                    // INR
+                    theValue = (getRegister(opcode >> 3) + 1) & 0xff;
+                    setRegister(opcode >> 3, theValue);
+                    regF = flagsSZP(theValue) | (regF & FLAG_CARRY) | ((theValue & 0x0f) == 0 ? FLAG_HALFCARRY : 0);
+                    break;
+                case 5:
+                    // DCR
+                    theValue = (getRegister(opcode >> 3) - 1) & 0xff;
+                    setRegister(opcode >> 3, theValue);
+                    regF = flagsSZP(theValue) | (regF & FLAG_CARRY) | ((theValue & 0x0f) != 0x0f ? FLAG_HALFCARRY : 0);
+                    break;
+                case 6:
+                    setRegister(opcode >> 3, fetchByte());  // MVI
+                    break;
+                default:
+                    int carry;
+                    switch (opcode >> 3) {
+                        case 0:
+                            // RLC
+                            carry = regA >> 7;
+                            regA = ((regA << 1) | carry) & 0xff;
+                            regF = (regF & ~FLAG_CARRY) | carry;
+                            break;
+                        case 1:
+                            // RRC
+                            carry = regA & 1;
+                            regA = (regA >> 1) | (carry << 7);
+                            regF = (regF & ~FLAG_CARRY) | carry;
+                            break;
+                        case 2:
+                            // RAL
+                            carry = regA >> 7;
+                            regA = ((regA << 1) | (regF & FLAG_CARRY)) & 0xff;
+                            regF = (regF & ~FLAG_CARRY) | carry;
+                            break;
+                        case 3:
+                            // RAR
+                            carry = regA & 1;
+                            regA = (regA >> 1) | ((regF & FLAG_CARRY) << 7);
+                            regF = (regF & ~FLAG_CARRY) | carry;
+                            break;
+                        case 4:
+                            // DAA
+                            int correction = 0;
+                            carry = regF & FLAG_CARRY;
+                            int lsb = regA & 0x0f;
+                            int msb = regA >> 4;
+                            if ((regF & FLAG_HALFCARRY) != 0 || lsb > 9) {
+                                correction += 0x06;
+                            }
+                            if (carry != 0 || msb > 9 || (msb >= 9 && lsb > 9)) {
+                                correction += 0x60;
+                                carry = FLAG_CARRY;
+                            }
+                            add(correction, 0);
+                            regF = regF | carry;
+                            break;
+                        case 5:
+                            regA = ~regA & 0xff;                // CMA
+                            break;
+                        case 6:
+                            regF = regF | FLAG_CARRY;           // STC
+                            break;
+                        default:
+                            regF = regF ^ FLAG_CARRY;           // CMC
+                            break;
+                    }
+                    break;
+            }
+        } else {
+            switch (opcode & 7) {
+                case 0:
+                    // Rccc, conditional return.
+                    if (condition((opcode >> 3) & 7)) {
+                        cycles += 6;
+                        regPC = popWord();
+                    }
+                    break;
+                case 1:
+                    if ((opcode & 0x08) == 0) {
+                        // POP
+                        theValue = popWord();
+                        if (opcode == 0xf1) {
+                            regA = theValue >> 8;
+                            regF = (theValue & 0xd5) | FLAG_ALWAYS_ON;
+                        } else {
+                            setRegisterPair((opcode >> 4) & 3, theValue);
+                        }
+                    } else if (opcode == 0xe9) {
+                        regPC = getRegisterPair(2);             // PCHL
+                    } else if (opcode == 0xf9) {
+                        regSP = getRegisterPair(2);             // SPHL
+                    } else {
+                        regPC = popWord();                      // RET
+                    }
+                    break;
+                case 2:
+                    // Jccc, conditional jump.
+                    theValue = fetchWord();
+                    if (condition((opcode >> 3) & 7)) {
+                        jump(instructionAddress, theValue);
+                    }
+                    break;
+                case 3:
+                    switch (opcode) {
+                        case 0xd3:
+                            portOut(fetchByte(), regA);                   // OUT
+                            break;
+                        case 0xdb:
+                            regA = portIn(fetchByte());                   // IN
+                            break;
+                        case 0xe3:
+                            theValue = popWord();                       // XTHL
+                            pushWord(getRegisterPair(2));
+                            setRegisterPair(2, theValue);
+                            break;
+                        case 0xeb:
+                            theValue = getRegisterPair(1);              // XCHG
+                            setRegisterPair(1, getRegisterPair(2));
+                            setRegisterPair(2, theValue);
+                            break;
+                        case 0xf3:
+                            interruptsEnabled = false;                  // DI
+                            break;
+                        case 0xfb:
+                            interruptsEnabled = true;                   // EI
+                            break;
+                        default:
+                            jump(instructionAddress, fetchWord());      // JMP
+                            break;
+                    }
+                    break;
+                case 4:
+                    // Cccc, conditional call.
+                    theValue = fetchWord();
+                    if (condition((opcode >> 3) & 7)) {
+                        cycles += 6;
+                        pushWord(regPC);
+                        regPC = theValue;
+                    }
+                    break;
+                case 5:
+                    if ((opcode & 0x08) == 0) {
+                        // PUSH
+                        if (opcode == 0xf5) {
+                            pushWord((regA << 8) | (regF & 0xd5) | FLAG_ALWAYS_ON);
+                        } else {
+                            pushWord(getRegisterPair((opcode >> 4) & 3));
+                        }
+                    } else {
+                        // CALL
+                        theValue = fetchWord();
+                        pushWord(regPC);
+                        regPC = theValue;
+                    }
+                    break;
+                case 6:
+                    // ADI ACI SUI SBI ANI XRI ORI CPI
+                    alu((opcode >> 3) & 7, fetchByte());
+                    break;
+                default:
+                    // RST
+                    pushWord(regPC);
+                    regPC = opcode & 0x38;
+                    break;
+            }
+        }
+        cycleCount += cycles;
+        stepCount++;
+        return cycles;
+    }
+
+    // -------------------------------------------------------------------------
+    // Run until HLT, a breakpoint or watchpoint, or until the maximum number of steps have been processed.
+    // Without a profiler, a trace, breakpoints or watchpoints, the run loop has no checks other than the stop conditions.
+    public int run(long maxSteps) {
+        long endStep = stepCount + maxSteps;
+        boolean checkDebugger = debugger != null && debugger.isActive();
+        watchMemory = checkDebugger && debugger.hasMemoryWatch();
+        watchPorts = checkDebugger && debugger.hasPortWatch();
+        if (checkDebugger) {
+            debugger.clearHit();
+        }
+        if (profiler == null && trace == null && !checkDebugger) {
+            while (!halted && stepCount < endStep) {
+                step();
+            }
+        } else {
+            int resumeAddress = breakAddress;
+            breakAddress = -1;
+            while (!halted && stepCount < endStep) {
+                int theAddress = regPC;
+                if (checkDebugger) {
+                    if (theAddress != resumeAddress && debugger.isBreakpoint(theAddress)) {
+                        breakAddress = theAddress;
+                        return STOP_BREAK;
+                    }
+                    resumeAddress = -1;
+                }
+                if (trace != null) {
+                    trace.record(this);
+                }
+                int theCycles = step();
+                if (profiler != null) {
+                    profiler.count(theAddress, theCycles);
+                }
+                if (checkDebugger && debugger.isHit()) {
+                    return STOP_WATCH;
+                }
+            }
+        }
+        if (halted) {
+            return STOP_HALT;
+        }
+        return STOP_LIMIT;
+    }
+
+    // -------------------------------------------------------------------------
+    public void printRegisters() {
+        System.out.println(String.format("+ A:%02X B:%02X C:%02X D:%02X E:%02X H:%02X L:%02X SP:%04X PC:%04X",
+                regA, regB, regC, regD, regE, regH, regL, regSP, regPC)
+                + " Flags:"
+                + ((regF & FLAG_SIGN) != 0 ? "S" : "-")
+                + ((regF & FLAG_ZERO) != 0 ? "Z" : "-")
+                + ((regF & FLAG_HALFCARRY) != 0 ? "A" : "-")
+                + ((regF & FLAG_PARITY) != 0 ? "P" : "-")
+                + ((regF & FLAG_CARRY) != 0 ? "C" : "-"));
+        System.out.println("+ Steps: " + stepCount + ", cycles: " + cycleCount);
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing.
+    public static void main(String[] args) {
+        System.out.println("+++ Start.");
+        asmEmulator emulator = new asmEmulator();
+        emulator.setConsoleInput(false);
+        //
+        // Count down from 3, printing the digits, then halt.
+        //      mvi b,3 / Loop: mov a,b / adi '0' / out 3 / dcr b / jnz Loop / hlt
+        byte[] theProgram = {
+            (byte) 0x06, (byte) 0x03,
+            (byte) 0x78,
+            (byte) 0xC6, (byte) '0',
+            (byte) 0xD3, (byte) 0x03,
+            (byte) 0x05,
+            (byte) 0xC2, (byte) 0x02, (byte) 0x00,
+            (byte) 0x76
+        };
+        emulator.loadBytes(theProgram, 0);
+        int stopReason = emulator.run(1000);
+        System.out.println("");
+        emulator.printRegisters();
+        System.out.println("+ Halted: " + (stopReason == STOP_HALT));
+        System.out.println("\n+++ Exit.\n");
+    }
+}
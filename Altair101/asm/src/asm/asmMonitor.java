@@ -0,0 +1,321 @@
+/*
+    Serial monitor: a terminal to the Altair 101, with an optional capture file.
+
+    Replaces polling for bytes, and sleeping between polls, as in development/serialjRead.
+    + For a serial port, jSerialComm calls the monitor when bytes are available, and the bytes are read into a reused buffer.
+    + For loopback or a pseudo terminal, a reader thread blocks on the read.
+    Either way, received bytes go into a ring buffer. An output thread waits on the ring, and when bytes arrive,
+    prints them to the terminal, and writes them to the capture file.
+    The capture file has the time at the start of each line, and is written through a file channel in large writes.
+
+    Lines typed in the terminal are sent to the device, ending with a CR. Enter "~." to end the monitor.
+    If the output thread falls behind and the ring fills, received bytes are dropped and counted.
+
+ */
+package asm;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class asmMonitor {
+
+    public static final String EXIT_LINE = "~.";
+    private static final int RING_SIZE = 65536;
+    private static final int READ_SIZE = 4096;
+    private static final int CAPTURE_BUFFER_SIZE = 65536;
+    private static final int CAPTURE_FLUSH_TIME = 1000;
+    private static final int READ_TIMEOUT = 200;
+    private static final int STOP_WAIT_TIME = 500;
+
+    private final asmTransport transport;
+    private final PrintStream terminal;
+    private final byte[] ring = new byte[RING_SIZE];
+    private int ringHead = 0;
+    private int ringCount = 0;
+    private long ringTime = 0;
+    private long droppedCount = 0;
+    private long receivedCount = 0;
+    private volatile boolean running = false;
+    private Thread readerThread = null;
+    private Thread outputThread = null;
+
+    // Reused buffers: bytes read from the port, and bytes taken from the ring.
+    private final byte[] readBuffer = new byte[READ_SIZE];
+    private final byte[] outputBuffer = new byte[READ_SIZE];
+
+    // Capture file.
+    private FileChannel capture = null;
+    private final ByteBuffer captureBuffer = ByteBuffer.allocateDirect(CAPTURE_BUFFER_SIZE);
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS ");
+    private boolean isCaptureLineStart = true;
+    private long captureFlushTime = 0;
+
+    public asmMonitor(asmTransport theTransport, PrintStream theTerminal) {
+        transport = theTransport;
+        terminal = theTerminal;
+    }
+
+    public asmMonitor(asmTransport theTransport) {
+        this(theTransport, System.out);
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // -------------------------------------------------------------------------
+    // Ring buffer. Called by the jSerialComm event thread, or the reader thread, it doesn't wait for the output thread.
+    private synchronized void put(byte[] theBytes, int theLength) {
+        if (ringCount == 0) {
+            ringTime = System.currentTimeMillis();
+        }
+        int theCount = Math.min(theLength, RING_SIZE - ringCount);
+        int theTail = (ringHead + ringCount) % RING_SIZE;
+        int theFirst = Math.min(theCount, RING_SIZE - theTail);
+        System.arraycopy(theBytes, 0, ring, theTail, theFirst);
+        System.arraycopy(theBytes, theFirst, ring, 0, theCount - theFirst);
+        ringCount += theCount;
+        receivedCount += theCount;
+        droppedCount += theLength - theCount;
+        notifyAll();
+    }
+
+    // Wait for bytes, up to the timeout, then take them. Returns the number of bytes, 0 if none, or -1 if stopped.
+    private synchronized int take(byte[] theBytes, long theTimeout) throws InterruptedException {
+        if (ringCount == 0 && running) {
+            wait(theTimeout);
+        }
+        if (ringCount == 0) {
+            return running ? 0 : -1;
+        }
+        int theCount = Math.min(theBytes.length, ringCount);
+        int theFirst = Math.min(theCount, RING_SIZE - ringHead);
+        System.arraycopy(ring, ringHead, theBytes, 0, theFirst);
+        System.arraycopy(ring, 0, theBytes, theFirst, theCount - theFirst);
+        ringHead = (ringHead + theCount) % RING_SIZE;
+        ringCount -= theCount;
+        return theCount;
+    }
+
+    private synchronized long getRingTime() {
+        return ringTime;
+    }
+
+    // -------------------------------------------------------------------------
+    // Serial port events: read the available bytes into the reused buffer.
+    private final SerialPortDataListener dataListener = new SerialPortDataListener() {
+        @Override
+        public int getListeningEvents() {
+            return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+        }
+
+        @Override
+        public void serialEvent(SerialPortEvent theEvent) {
+            if (theEvent.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE) {
+                return;
+            }
+            SerialPort sp = theEvent.getSerialPort();
+            int theAvailable = sp.bytesAvailable();
+            while (theAvailable > 0) {
+                int theCount = sp.readBytes(readBuffer, Math.min(theAvailable, readBuffer.length));
+                if (theCount <= 0) {
+                    break;
+                }
+                put(readBuffer, theCount);
+                theAvailable = sp.bytesAvailable();
+            }
+        }
+    };
+
+    // Streams without events: block on the read, with a timeout to check if the monitor stopped.
+    private void read() {
+        InputStream in = transport.getInputStream();
+        transport.setReadTimeout(READ_TIMEOUT);
+        try {
+            while (running) {
+                try {
+                    int theCount = in.read(readBuffer);
+                    if (theCount < 0) {
+                        break;
+                    }
+                    put(readBuffer, theCount);
+                } catch (InterruptedIOException e) {
+                    // Read timeout, no bytes.
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Output thread: print the bytes, and capture them with the time at the start of each line.
+    private void output() {
+        try {
+            int theCount = take(outputBuffer, CAPTURE_FLUSH_TIME);
+            while (theCount >= 0) {
+                if (theCount > 0) {
+                    terminal.write(outputBuffer, 0, theCount);
+                    terminal.flush();
+                    if (capture != null) {
+                        captureBytes(outputBuffer, theCount, getRingTime());
+                    }
+                }
+                if (capture != null && System.currentTimeMillis() - captureFlushTime >= CAPTURE_FLUSH_TIME) {
+                    flushCapture();
+                }
+                theCount = take(outputBuffer, CAPTURE_FLUSH_TIME);
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    private void captureBytes(byte[] theBytes, int theCount, long theTime) throws IOException {
+        byte[] theTimestamp = null;
+        for (int i = 0; i < theCount; i++) {
+            if (isCaptureLineStart) {
+                if (theTimestamp == null) {
+                    theTimestamp = timeFormat.format(new Date(theTime)).getBytes(StandardCharsets.US_ASCII);
+                }
+                if (captureBuffer.remaining() < theTimestamp.length) {
+                    flushCapture();
+                }
+                captureBuffer.put(theTimestamp);
+                isCaptureLineStart = false;
+            }
+            if (!captureBuffer.hasRemaining()) {
+                flushCapture();
+            }
+            captureBuffer.put(theBytes[i]);
+            isCaptureLineStart = theBytes[i] == 10;
+        }
+    }
+
+    private void flushCapture() throws IOException {
+        captureBuffer.flip();
+        while (captureBuffer.hasRemaining()) {
+            capture.write(captureBuffer);
+        }
+        captureBuffer.clear();
+        captureFlushTime = System.currentTimeMillis();
+    }
+
+    // -------------------------------------------------------------------------
+    // Start receiving. The capture file name is optional.
+    public void start(String theCaptureFilename) throws IOException {
+        if (theCaptureFilename != null && !theCaptureFilename.isEmpty()) {
+            capture = FileChannel.open(Paths.get(theCaptureFilename),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            captureFlushTime = System.currentTimeMillis();
+        }
+        running = true;
+        outputThread = new Thread(this::output, "asmMonitor output");
+        outputThread.setDaemon(true);
+        outputThread.start();
+        if (transport instanceof asmSerialTransport) {
+            ((asmSerialTransport) transport).getSerialPort().addDataListener(dataListener);
+        } else {
+            readerThread = new Thread(this::read, "asmMonitor reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+    }
+
+    // Send a line to the device, ending with a CR.
+    public void send(String theLine) throws IOException {
+        OutputStream out = transport.getOutputStream();
+        out.write((theLine + "\r").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    // Stop receiving, print the bytes already received, and close the capture file.
+    public void stop() throws IOException {
+        if (transport instanceof asmSerialTransport) {
+            ((asmSerialTransport) transport).getSerialPort().removeDataListener();
+        }
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            if (readerThread != null) {
+                readerThread.join();
+            }
+            outputThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Monitor stop interrupted.");
+        }
+        if (capture != null) {
+            flushCapture();
+            capture.close();
+            capture = null;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Terminal session: send each console line to the device until the exit line.
+    public static void run(BufferedReader theConsole, String theCaptureFilename) {
+        asmTransport theTransport;
+        if (asmUpload.getSerialPortName().startsWith(asmPortServer.SOCKET_PORT_PREFIX)) {
+            // Receive all the device bytes, not only the replies to this client's writes.
+            theTransport = new asmSocketTransport(asmUpload.getSerialPortName(), asmSocketTransport.ROLE_LISTENER);
+            if (!theTransport.open()) {
+                System.out.println("- Error, failed to connect to the port server: " + asmUpload.getSerialPortName());
+                return;
+            }
+        } else {
+            theTransport = asmUpload.openTransport(true);
+            if (theTransport == null) {
+                return;
+            }
+        }
+        asmMonitor theMonitor = new asmMonitor(theTransport);
+        try {
+            theMonitor.start(theCaptureFilename);
+            System.out.println("+ Serial monitor on: " + theTransport.getName() + ". Enter " + EXIT_LINE + " to end.");
+            if (theMonitor.capture != null) {
+                System.out.println("+ Capture to file: " + theCaptureFilename);
+            }
+            String theLine = theConsole.readLine();
+            while (theLine != null && !theLine.equals(EXIT_LINE)) {
+                theMonitor.send(theLine);
+                theLine = theConsole.readLine();
+            }
+            // Time for the last replies.
+            Thread.sleep(STOP_WAIT_TIME);
+            theMonitor.stop();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        } catch (InterruptedException e) {
+            System.out.println("- Error, monitor interrupted.");
+        }
+        System.out.println("");
+        System.out.println("+ Serial monitor ended, received bytes: " + theMonitor.getReceivedCount()
+                + ", dropped bytes: " + theMonitor.getDroppedCount());
+        asmUpload.closeTransport(theTransport);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+    Upload the same machine code file to several Altair 101 boards at the same time.
+
+    Each board is on its own serial port, for example, its own USB serial adapter.
+    The ports are a list of names, or all the serial ports that match a name or USB description.
+    Each port gets its own thread from a thread pool, and uploads with the block upload protocol, see asmBlockUpload.
+    The upload threads don't print, each returns its board's result,
+    and the results are printed together when the last board is done.
+
+    Upload time for a bench of boards is about the time for the slowest board, rather than the sum of the boards.
+
+ */
+package asm;
+
+import com.fazecast.jSerialComm.SerialPort;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class asmMultiUpload {
+
+    private static final int MAX_THREADS = 16;
+
+    // The upload result for one board.
+    public static class Result {
+
+        final String portName;
+        boolean isUploaded = false;
+        String message = "";
+        int blockCount = 0;
+        int retransmitCount = 0;
+        long uploadNanos = 0;
+
+        Result(String portName) {
+            this.portName = portName;
+        }
+
+        public boolean isUploaded() {
+            return isUploaded;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // The serial ports that match the name or USB description, the same ports as asmUpload.listSerialPorts().
+    // An empty match, matches all the ports.
+    public static List<String> findPorts(String theMatch) {
+        List<String> thePortNames = new ArrayList<>();
+        for (SerialPort serial : asmPortRegistry.findPorts(theMatch)) {
+            thePortNames.add("/dev/" + serial.getSystemPortName());
+        }
+        return thePortNames;
+    }
+
+    // Port names: loopback, a /dev path, or a system port name from the list of ports, for example: wchusbserial14120.
+    public static List<String> parsePorts(String thePorts) {
+        List<String> thePortNames = new ArrayList<>();
+        for (String theName : thePorts.split("[ ,]+")) {
+            if (theName.isEmpty()) {
+                continue;
+            }
+            if (theName.equals(asmUpload.LOOPBACK_PORT_NAME) || theName.startsWith("/dev/")
+                    || theName.startsWith(asmPortServer.SOCKET_PORT_PREFIX)) {
+                thePortNames.add(theName);
+                continue;
+            }
+            String theSystemPortName = asmPortRegistry.findPort(theName);
+            if (theSystemPortName == null) {
+                System.out.println("- Error, serial port name not found: " + theName);
+            } else {
+                thePortNames.add("/dev/" + theSystemPortName);
+            }
+        }
+        return thePortNames;
+    }
+
+    // -------------------------------------------------------------------------
+    // Upload to one board.
+    private static Result uploadPort(String thePortName, byte[] theBytes) {
+        Result theResult = new Result(thePortName);
+        asmTransport theTransport = asmUpload.openTransport(thePortName, false);
+        if (theTransport == null) {
+            theResult.message = "failed to open the port.";
+            return theResult;
+        }
+        theTransport.setReadTimeout(asmBlockUpload.getReplyTimeout());
+        asmBlockUpload theUpload = new asmBlockUpload(theTransport);
+        asmUploadDelta.clearHashes(thePortName);
+        try {
+            theUpload.upload(theBytes, 0, theBytes.length, 0);
+            theResult.isUploaded = true;
+            asmUploadDelta.saveHashes(thePortName, theBytes, theBytes.length);
+        } catch (IOException ioe) {
+            theResult.message = ioe.toString();
+        }
+        theResult.blockCount = theUpload.getBlockCount();
+        theResult.retransmitCount = theUpload.getRetransmitCount();
+        theResult.uploadNanos = theUpload.getUploadNanos();
+        if (asmPortRegistry.isRegistered(theTransport)) {
+            asmPortRegistry.release(theTransport);
+        } else {
+            theTransport.close();
+        }
+        return theResult;
+    }
+
+    // Upload the bytes to each of the ports in parallel. Returns the results in the order of the ports.
+    public static List<Result> upload(byte[] theBytes, List<String> thePortNames) {
+        List<Result> theResults = new ArrayList<>();
+        if (thePortNames.isEmpty()) {
+            return theResults;
+        }
+        ExecutorService theExecutor = Executors.newFixedThreadPool(Math.min(thePortNames.size(), MAX_THREADS));
+        List<Future<Result>> theFutures = new ArrayList<>();
+        for (String thePortName : thePortNames) {
+            theFutures.add(theExecutor.submit(() -> uploadPort(thePortName, theBytes)));
+        }
+        for (int i = 0; i < theFutures.size(); i++) {
+            Result theResult;
+            try {
+                theResult = theFutures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                theResult = new Result(thePortNames.get(i));
+                theResult.message = e.toString();
+            }
+            theResults.add(theResult);
+        }
+        theExecutor.shutdown();
+        return theResults;
+    }
+
+    public static void printResults(List<Result> theResults, int theLength, long theMillis) {
+        int uploadedCount = 0;
+        for (Result theResult : theResults) {
+            if (theResult.isUploaded) {
+                uploadedCount++;
+                double theSeconds = theResult.uploadNanos / 1e9;
+                System.out.println(String.format("++ %-30s : uploaded, %d blocks, %d sent again, %.3f seconds, %.0f bytes/second.",
+                        theResult.portName, theResult.blockCount, theResult.retransmitCount, theSeconds,
+                        theSeconds > 0 ? theLength / theSeconds : 0));
+            } else {
+                System.out.println(String.format("++ %-30s : failed, %s", theResult.portName, theResult.message));
+            }
+        }
+        System.out.println("+ Uploaded " + theLength + " bytes to " + uploadedCount + " of " + theResults.size()
+                + " boards, seconds: " + theMillis / 1000.0);
+    }
+
+    // Upload a machine code file to the ports.
+    public static void sendFile(String theReadFilename, List<String> thePortNames) {
+        byte[] theBytes;
+        try {
+            theBytes = Files.readAllBytes(new File(theReadFilename).toPath());
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
+        }
+        if (thePortNames.isEmpty()) {
+            System.out.println("- Error, no serial ports to upload to.");
+            return;
+        }
+        System.out.println("+ Upload " + theBytes.length + " bytes to " + thePortNames.size() + " boards, file: " + theReadFilename);
+        long startTime = System.currentTimeMillis();
+        List<Result> theResults = upload(theBytes, thePortNames);
+        printResults(theResults, theBytes.length, System.currentTimeMillis() - startTime);
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: upload to 4 loopback boards, and a port that doesn't open.
+    public static void main(String[] args) {
+        System.out.println("+++ Start.");
+        byte[] theBytes = new byte[4096];
+        for (int i = 0; i < theBytes.length; i++) {
+            theBytes[i] = (byte) (i * 11);
+        }
+        List<String> thePortNames = parsePorts("loopback loopback,loopback loopback");
+        thePortNames.add(asmUpload.PTY_PORT_PREFIX + "999");
+        asmUploadDelta.setHashDirectory(System.getProperty("java.io.tmpdir"));
+        long startTime = System.currentTimeMillis();
+        List<Result> theResults = upload(theBytes, thePortNames);
+        printResults(theResults, theBytes.length, System.currentTimeMillis() - startTime);
+        System.out.println("\n+++ Exit.\n");
+    }
+}
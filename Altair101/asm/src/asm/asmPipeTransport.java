@@ -0,0 +1,102 @@
+/*
+    In-memory serial connection, for testing and benchmarking without a board.
+
+    A pipe has two ends: the host end, and the peer end used by a device stand-in such as asmUploadDevice.
+    Each direction is an asmSerialLine, with the baud rate timing and the receiver's buffer size.
+    The host's receive buffer is the size of a PC serial driver buffer,
+    the device's receive buffer defaults to the Arduino Mega's 64 bytes.
+
+ */
+package asm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class asmPipeTransport implements asmTransport {
+
+    public static final int HOST_RX_BUFFER_SIZE = 4096;
+    public static final int DEVICE_RX_BUFFER_SIZE = 64;
+
+    private final String name;
+    private final int baudRate;
+    private final asmSerialLine rxLine;
+    private final asmSerialLine txLine;
+    private asmPipeTransport peer;
+    private boolean isOpen = false;
+
+    private asmPipeTransport(String name, int baudRate, asmSerialLine rxLine, asmSerialLine txLine) {
+        this.name = name;
+        this.baudRate = baudRate;
+        this.rxLine = rxLine;
+        this.txLine = txLine;
+    }
+
+    // Create a pipe, and return the host end. The device end is: getPeer().
+    public static asmPipeTransport create(String theName, int theBaudRate, int deviceRxBufferSize) {
+        asmSerialLine toDevice = new asmSerialLine(theBaudRate, deviceRxBufferSize);
+        asmSerialLine toHost = new asmSerialLine(theBaudRate, HOST_RX_BUFFER_SIZE);
+        asmPipeTransport theHost = new asmPipeTransport(theName, theBaudRate, toHost, toDevice);
+        asmPipeTransport theDevice = new asmPipeTransport(theName + ".device", theBaudRate, toDevice, toHost);
+        theHost.peer = theDevice;
+        theDevice.peer = theHost;
+        return theHost;
+    }
+
+    public static asmPipeTransport create(String theName, int theBaudRate) {
+        return create(theName, theBaudRate, DEVICE_RX_BUFFER_SIZE);
+    }
+
+    public asmPipeTransport getPeer() {
+        return peer;
+    }
+
+    // The line this end receives on, for its dropped byte count.
+    public asmSerialLine getRxLine() {
+        return rxLine;
+    }
+
+    // -------------------------------------------------------------------------
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean open() {
+        isOpen = true;
+        return true;
+    }
+
+    // Closing either end closes both directions, the same as unplugging the cable.
+    @Override
+    public void close() {
+        isOpen = false;
+        rxLine.close();
+        txLine.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return rxLine.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return txLine.getOutputStream();
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void setReadTimeout(int theTimeout) {
+        rxLine.setReadTimeout(theTimeout);
+    }
+}
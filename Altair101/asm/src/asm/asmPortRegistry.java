@@ -0,0 +1,274 @@
+/*
+    Registry of the serial ports, and the open connections to them.
+
+    Listing the serial ports is slow on a computer with many tty devices.
+    The registry lists the ports once, then a background thread lists them again every few seconds,
+    and prints when a device is plugged in or removed.
+
+    All the ports are listed except Bluetooth ports, including ports without a "tty" name, such as the Mac "cu." ports.
+    Ports are found by their system name, with or without the Mac "tty." or "cu." prefix,
+    or by their USB description, for example: "CP2102" for /dev/tty.SLAB_USBtoUART.
+    When a Mac device has both a tty. and a cu. port, the tty. port is found.
+
+    Connections stay open after an upload, so the next upload doesn't wait for the port to open,
+    and an Arduino that resets when the port opens isn't reset again.
+    A connection that isn't used for the idle timeout is closed. An idle timeout of 0 closes connections after each use.
+    If a device is removed, its connection is closed, and is opened again on the next use when the device is back.
+
+ */
+package asm;
+
+import com.fazecast.jSerialComm.SerialPort;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class asmPortRegistry {
+
+    private static final int REFRESH_INTERVAL = 2000;
+
+    // Milliseconds an open connection stays open, when not used.
+    private static int idleTimeout = 30000;
+
+    private static volatile SerialPort[] ports = null;
+    private static ScheduledExecutorService monitor = null;
+
+    // Open connections, and the time each was last used. A connection in use has a time of 0.
+    private static final Map<String, asmTransport> connections = new HashMap<>();
+    private static final Map<String, Long> lastUsed = new HashMap<>();
+
+    public static int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public static void setIdleTimeout(int theIdleTimeout) {
+        idleTimeout = theIdleTimeout;
+    }
+
+    // -------------------------------------------------------------------------
+    // The serial ports, listed on first use, then kept current by the monitor thread.
+    public static SerialPort[] getPorts() {
+        if (ports == null) {
+            synchronized (asmPortRegistry.class) {
+                if (ports == null) {
+                    ports = SerialPort.getCommPorts();
+                    startMonitor();
+                }
+            }
+        }
+        return ports;
+    }
+
+    private static void startMonitor() {
+        monitor = Executors.newSingleThreadScheduledExecutor(theRunnable -> {
+            Thread theThread = new Thread(theRunnable, "asmPortRegistry");
+            theThread.setDaemon(true);
+            return theThread;
+        });
+        monitor.scheduleWithFixedDelay(asmPortRegistry::refresh, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // List the ports again, print the changes, and close the idle connections.
+    // Synchronized, so the monitor thread and refreshNow() don't both print the same changes.
+    private static synchronized void refresh() {
+        SerialPort[] oldPorts = ports;
+        SerialPort[] newPorts = SerialPort.getCommPorts();
+        Set<String> oldNames = new HashSet<>();
+        for (SerialPort serial : oldPorts) {
+            oldNames.add(serial.getSystemPortName());
+        }
+        Set<String> newNames = new HashSet<>();
+        for (SerialPort serial : newPorts) {
+            newNames.add(serial.getSystemPortName());
+            if (!oldNames.contains(serial.getSystemPortName())) {
+                System.out.println("\n+ Serial port added: " + serial.getSystemPortName() + " : " + serial.getPortDescription());
+            }
+        }
+        ports = newPorts;
+        for (String theName : oldNames) {
+            if (!newNames.contains(theName)) {
+                System.out.println("\n+ Serial port removed: " + theName);
+                closeConnection("/dev/" + theName);
+            }
+        }
+        closeIdleConnections();
+    }
+
+    // Refresh now, for example, before listing the ports.
+    public static void refreshNow() {
+        if (ports == null) {
+            getPorts();
+        } else {
+            refresh();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // All ports except Bluetooth ports, such as: tty.Bluetooth-Incoming-Port.
+    public static boolean isListed(SerialPort serial) {
+        return !shortName(serial.getSystemPortName()).startsWith("Bluetooth")
+                && !serial.getPortDescription().contains("Bluetooth");
+    }
+
+    private static String shortName(String theSystemPortName) {
+        if (theSystemPortName.startsWith("tty.")) {
+            return theSystemPortName.substring(4);
+        }
+        if (theSystemPortName.startsWith("cu.")) {
+            return theSystemPortName.substring(3);
+        }
+        return theSystemPortName;
+    }
+
+    // The listed ports with a name or USB description that contains the match, ignoring case.
+    // A cu. port only matches by its full name when the device has a tty. port, so a device is only matched once.
+    public static List<SerialPort> findPorts(String theMatch) {
+        String theMatchLower = theMatch.toLowerCase();
+        SerialPort[] thePorts = getPorts();
+        Set<String> ttyNames = new HashSet<>();
+        for (SerialPort serial : thePorts) {
+            if (serial.getSystemPortName().startsWith("tty.")) {
+                ttyNames.add(shortName(serial.getSystemPortName()));
+            }
+        }
+        List<SerialPort> theMatches = new ArrayList<>();
+        for (SerialPort serial : thePorts) {
+            String theName = serial.getSystemPortName();
+            if (theName.startsWith("cu.") && ttyNames.contains(shortName(theName)) && !theName.equalsIgnoreCase(theMatch)) {
+                continue;
+            }
+            if (isListed(serial) && (theName.toLowerCase().contains(theMatchLower)
+                    || serial.getPortDescription().toLowerCase().contains(theMatchLower))) {
+                theMatches.add(serial);
+            }
+        }
+        return theMatches;
+    }
+
+    // Find one port by name or USB description. Returns its system port name, or null if not found, or not one port.
+    // A port with the exact name is used before ports that contain the name.
+    public static String findPort(String theName) {
+        List<SerialPort> theMatches = findPorts(theName);
+        for (SerialPort serial : theMatches) {
+            if (serial.getSystemPortName().equalsIgnoreCase(theName) || shortName(serial.getSystemPortName()).equalsIgnoreCase(theName)) {
+                return serial.getSystemPortName();
+            }
+        }
+        if (theMatches.size() == 1) {
+            return theMatches.get(0).getSystemPortName();
+        }
+        if (theMatches.size() > 1) {
+            System.out.print("- Error, more than one serial port matches: " + theName + " :");
+            for (SerialPort serial : theMatches) {
+                System.out.print(" " + serial.getSystemPortName());
+            }
+            System.out.println("");
+        }
+        return null;
+    }
+
+    // -------------------------------------------------------------------------
+    // Get an open connection to the port, opening it if it's not open, or was closed.
+    // Returns null if the port fails to open.
+    public static synchronized asmTransport acquire(String thePortName, int theBaudRate) {
+        asmTransport theTransport = connections.get(thePortName);
+        if (theTransport != null && (!theTransport.isOpen() || theTransport.getBaudRate() != theBaudRate)) {
+            theTransport.close();
+            theTransport = null;
+        }
+        if (theTransport == null) {
+            if (thePortName.startsWith(asmUpload.PTY_PORT_PREFIX)) {
+                theTransport = new asmPtyTransport(thePortName, theBaudRate);
+            } else {
+                theTransport = new asmSerialTransport(thePortName, theBaudRate);
+            }
+            if (!theTransport.open()) {
+                connections.remove(thePortName);
+                lastUsed.remove(thePortName);
+                return null;
+            }
+            connections.put(thePortName, theTransport);
+        } else {
+            // Skip bytes the device sent since the last use.
+            try {
+                InputStream in = theTransport.getInputStream();
+                while (in.available() > 0) {
+                    in.read();
+                }
+            } catch (IOException ioe) {
+                System.out.print("+ *** IOException: ");
+                System.out.println(ioe.toString());
+            }
+        }
+        lastUsed.put(thePortName, 0L);
+        return theTransport;
+    }
+
+    // Done using the connection, it stays open for the idle timeout.
+    public static synchronized void release(asmTransport theTransport) {
+        String thePortName = theTransport.getName();
+        if (connections.get(thePortName) != theTransport) {
+            theTransport.close();
+            return;
+        }
+        if (idleTimeout <= 0) {
+            closeConnection(thePortName);
+            return;
+        }
+        theTransport.setReadTimeout(0);
+        lastUsed.put(thePortName, System.currentTimeMillis());
+    }
+
+    public static synchronized boolean isRegistered(asmTransport theTransport) {
+        return connections.get(theTransport.getName()) == theTransport;
+    }
+
+    private static synchronized void closeConnection(String thePortName) {
+        asmTransport theTransport = connections.remove(thePortName);
+        lastUsed.remove(thePortName);
+        if (theTransport != null) {
+            theTransport.close();
+        }
+    }
+
+    private static synchronized void closeIdleConnections() {
+        long theTime = System.currentTimeMillis();
+        Iterator<Map.Entry<String, asmTransport>> theEntries = connections.entrySet().iterator();
+        while (theEntries.hasNext()) {
+            Map.Entry<String, asmTransport> theEntry = theEntries.next();
+            long theLastUsed = lastUsed.get(theEntry.getKey());
+            if (theLastUsed > 0 && theTime - theLastUsed >= idleTimeout) {
+                theEntry.getValue().close();
+                lastUsed.remove(theEntry.getKey());
+                theEntries.remove();
+            }
+        }
+    }
+
+    // Close all the connections, for example, when exiting.
+    public static synchronized void closeAll() {
+        for (asmTransport theTransport : connections.values()) {
+            theTransport.close();
+        }
+        connections.clear();
+        lastUsed.clear();
+    }
+
+    public static synchronized void listConnections() {
+        long theTime = System.currentTimeMillis();
+        for (Map.Entry<String, asmTransport> theEntry : connections.entrySet()) {
+            long theLastUsed = lastUsed.get(theEntry.getKey());
+            System.out.println("++ Open connection: " + theEntry.getKey()
+                    + (theLastUsed == 0 ? ", in use." : ", idle seconds: " + (theTime - theLastUsed) / 1000));
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+    Serial port server: holds the serial port open, and shares it with several local clients over sockets.
+
+    Without the server, each tool opens the serial port itself, so an upload and a terminal can't both be connected,
+    and each switch between tools waits for the port to open, and may reset the Arduino.
+    With the server running, set the port to tcp:<port number> in each client, for example, asm shells,
+    and upload, verify, and monitor all use the one open serial port.
+
+    Bytes from the device are sent to the clients:
+    + Listeners, for example, the serial monitor, receive all the bytes.
+    + Writers, for example, uploads, receive the bytes while they hold the write turn.
+    Writes are arbitrated: a client takes the write turn when it sends, and keeps it until it hasn't sent
+    for the writer idle time. Other clients that send wait for the turn, in the order they asked.
+    Each client has its own send queue, so a slow client doesn't slow the others. When its queue is full, bytes are dropped.
+
+    The server only accepts connections from the local computer.
+
+ */
+package asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class asmPortServer {
+
+    public static final String SOCKET_PORT_PREFIX = "tcp:";
+    public static final int DEFAULT_PORT_NUMBER = 10101;
+    private static final int READ_SIZE = 1024;
+    private static final int CLIENT_QUEUE_SIZE = 256;
+    private static final int READ_TIMEOUT = 200;
+    private static final byte[] END_CHUNK = new byte[0];
+
+    // Milliseconds a writer keeps the write turn after it last sent, longer than the block upload reply timeout.
+    private static int writerIdleTime = 3000;
+    private static asmPortServer server = null;
+
+    private final asmTransport transport;
+    private final ServerSocket serverSocket;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final ReentrantLock writeTurn = new ReentrantLock(true);
+    private volatile boolean running = true;
+    private long deviceCount = 0;
+
+    public static int getWriterIdleTime() {
+        return writerIdleTime;
+    }
+
+    public static void setWriterIdleTime(int theWriterIdleTime) {
+        writerIdleTime = theWriterIdleTime;
+    }
+
+    // -------------------------------------------------------------------------
+    private class Client {
+
+        final Socket socket;
+        final int id;
+        int role = asmSocketTransport.ROLE_WRITER;
+        volatile boolean isWriting = false;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CLIENT_QUEUE_SIZE);
+        long droppedCount = 0;
+
+        Client(Socket socket, int id) {
+            this.socket = socket;
+            this.id = id;
+        }
+
+        void send(byte[] theChunk) {
+            if (role == asmSocketTransport.ROLE_LISTENER || isWriting) {
+                if (!queue.offer(theChunk)) {
+                    droppedCount += theChunk.length;
+                }
+            }
+        }
+
+        // Send the queued device bytes to the client.
+        void sendQueued() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                byte[] theChunk = queue.take();
+                while (theChunk != END_CHUNK) {
+                    out.write(theChunk);
+                    out.flush();
+                    theChunk = queue.take();
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client closed.
+            }
+            close();
+        }
+
+        // Write the client's bytes to the device, taking the write turn, and giving it up when idle.
+        void receive() {
+            byte[] theBytes = new byte[READ_SIZE];
+            try {
+                InputStream in = socket.getInputStream();
+                role = in.read();
+                int theCount = in.read(theBytes);
+                while (theCount >= 0) {
+                    if (theCount > 0) {
+                        if (!isWriting) {
+                            writeTurn.lockInterruptibly();
+                            isWriting = true;
+                            socket.setSoTimeout(writerIdleTime);
+                        }
+                        OutputStream out = transport.getOutputStream();
+                        out.write(theBytes, 0, theCount);
+                        out.flush();
+                    }
+                    try {
+                        theCount = in.read(theBytes);
+                    } catch (SocketTimeoutException e) {
+                        endTurn();
+                        theCount = 0;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client closed.
+            }
+            endTurn();
+            queue.clear();
+            queue.offer(END_CHUNK);
+        }
+
+        void endTurn() {
+            if (isWriting) {
+                isWriting = false;
+                writeTurn.unlock();
+                try {
+                    socket.setSoTimeout(0);
+                } catch (IOException e) {
+                    // The client closed.
+                }
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private asmPortServer(asmTransport theTransport, int thePortNumber) throws IOException {
+        transport = theTransport;
+        serverSocket = new ServerSocket(thePortNumber, 8, InetAddress.getLoopbackAddress());
+    }
+
+    // Send the device's bytes to the clients.
+    private void readDevice() {
+        InputStream in = transport.getInputStream();
+        transport.setReadTimeout(READ_TIMEOUT);
+        byte[] theBytes = new byte[READ_SIZE];
+        try {
+            while (running) {
+                try {
+                    int theCount = in.read(theBytes);
+                    if (theCount < 0) {
+                        if (running) {
+                            System.out.println("\n+ Port server, the device closed the connection.");
+                        }
+                        break;
+                    }
+                    deviceCount += theCount;
+                    byte[] theChunk = Arrays.copyOf(theBytes, theCount);
+                    for (Client theClient : clients) {
+                        theClient.send(theChunk);
+                    }
+                } catch (InterruptedIOException e) {
+                    // Read timeout, no bytes.
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    private void acceptClients() {
+        int theId = 0;
+        while (running) {
+            try {
+                Socket theSocket = serverSocket.accept();
+                theSocket.setTcpNoDelay(true);
+                Client theClient = new Client(theSocket, ++theId);
+                clients.add(theClient);
+                startThread("asmPortServer receive " + theId, theClient::receive);
+                startThread("asmPortServer send " + theId, theClient::sendQueued);
+            } catch (IOException ioe) {
+                // The server socket closed.
+            }
+        }
+    }
+
+    private static void startThread(String theName, Runnable theRunnable) {
+        Thread theThread = new Thread(theRunnable, theName);
+        theThread.setDaemon(true);
+        theThread.start();
+    }
+
+    private void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        for (Client theClient : clients) {
+            theClient.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Start the server for the current serial port.
+    public static void start(int thePortNumber) {
+        if (server != null) {
+            System.out.println("- Error, the port server is already running, on: " + server.serverSocket.getLocalPort());
+            return;
+        }
+        if (asmUpload.getSerialPortName().startsWith(SOCKET_PORT_PREFIX)) {
+            System.out.println("- Error, the serial port is a port server: " + asmUpload.getSerialPortName());
+            return;
+        }
+        asmTransport theTransport = asmUpload.openTransport(false);
+        if (theTransport == null) {
+            return;
+        }
+        try {
+            server = new asmPortServer(theTransport, thePortNumber);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            asmUpload.closeTransport(theTransport);
+            return;
+        }
+        startThread("asmPortServer device", server::readDevice);
+        startThread("asmPortServer accept", server::acceptClients);
+        System.out.println("+ Port server started for serial port: " + theTransport.getName()
+                + ", clients use port: " + SOCKET_PORT_PREFIX + thePortNumber);
+    }
+
+    public static void stop() {
+        if (server == null) {
+            System.out.println("+ The port server isn't running.");
+            return;
+        }
+        server.shutdown();
+        asmUpload.closeTransport(server.transport);
+        server = null;
+        System.out.println("+ Port server stopped.");
+    }
+
+    // Stop the server, if it's running, for example, when exiting.
+    public static void shutdownServer() {
+        if (server != null) {
+            stop();
+        }
+    }
+
+    public static void printStatus() {
+        if (server == null) {
+            System.out.println("+ The port server isn't running.");
+            return;
+        }
+        System.out.println("+ Port server for serial port: " + server.transport.getName() + ", on port: "
+                + SOCKET_PORT_PREFIX + server.serverSocket.getLocalPort() + ", bytes from the device: " + server.deviceCount);
+        for (Client theClient : server.clients) {
+            System.out.println("++ Client " + theClient.id + ", "
+                    + (theClient.role == asmSocketTransport.ROLE_LISTENER ? "listener" : "writer")
+                    + (theClient.isWriting ? ", has the write turn" : "") + ", dropped bytes: " + theClient.droppedCount);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: serve the loopback device, and upload from 2 writers at the same time, while a listener counts the replies.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.out.println("+++ Start.");
+        asmUpload.setSerialPortName(asmUpload.LOOPBACK_PORT_NAME);
+        setWriterIdleTime(500);
+        start(DEFAULT_PORT_NUMBER);
+        String thePortName = SOCKET_PORT_PREFIX + DEFAULT_PORT_NUMBER;
+        asmSocketTransport theListener = new asmSocketTransport(thePortName, asmSocketTransport.ROLE_LISTENER);
+        theListener.open();
+        long[] theListenerCount = new long[1];
+        Thread theListenerThread = new Thread(() -> {
+            try {
+                while (theListener.getInputStream().read() >= 0) {
+                    theListenerCount[0]++;
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        });
+        theListenerThread.start();
+        byte[] theBytes = new byte[2048];
+        for (int i = 0; i < theBytes.length; i++) {
+            theBytes[i] = (byte) (i * 3);
+        }
+        Thread[] theWriters = new Thread[2];
+        for (int w = 0; w < theWriters.length; w++) {
+            int theAddress = 0x1000 * (w + 1);
+            theWriters[w] = new Thread(() -> {
+                asmSocketTransport theTransport = new asmSocketTransport(thePortName);
+                theTransport.open();
+                theTransport.setReadTimeout(asmBlockUpload.getReplyTimeout());
+                asmBlockUpload theUpload = new asmBlockUpload(theTransport);
+                try {
+                    theUpload.upload(theBytes, 0, theBytes.length, theAddress);
+                    asmUploadVerify theVerify = new asmUploadVerify(theTransport);
+                    int theDiffers = theVerify.verify(theBytes, 0, theBytes.length, theAddress)[0].length;
+                    System.out.println(String.format("+ Writer at %04X, blocks sent again: %d, blocks that differ: %d",
+                            theAddress, theUpload.getRetransmitCount(), theDiffers));
+                } catch (IOException ioe) {
+                    System.out.println(String.format("- Error, writer at %04X: %s", theAddress, ioe.getMessage()));
+                }
+                theTransport.close();
+            });
+            theWriters[w].start();
+        }
+        for (Thread theWriter : theWriters) {
+            theWriter.join();
+        }
+        printStatus();
+        theListener.close();
+        theListenerThread.join();
+        System.out.println("+ Listener received bytes: " + theListenerCount[0]);
+        stop();
+        System.out.println("\n+++ Exit.\n");
+    }
+}
@@ -158,6 +158,7 @@
 package asm;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -203,6 +204,11 @@ public class asmProcessor {
     private final static List<String> variableName = new ArrayList<>();
     private final static List<Integer> variableValue = new ArrayList<>();
 
+    // Source line number for each source line that generates program bytes, for the debug map.
+    private String sourceFilename = "";
+    private final static List<Integer> lineAddress = new ArrayList<>();
+    private final static List<Integer> lineNumber = new ArrayList<>();
+
     // -------------------------------------------------------------------------
     // Error handling
     //
@@ -367,6 +373,46 @@ public class asmProcessor {
         System.out.println("\n+ End of list. Number of bytes = " + theLength);
     }
 
+    // -------------------------------------------------------------------------
+    // Program image: the machine code bytes of the parsed program, in memory, without listing or writing a file.
+    // Returns null if the program wasn't parsed, or has errors.
+    public ByteBuffer getProgramImage() {
+        if (sourceFilename.equals("") || errorCount > 0) {
+            return null;
+        }
+        byte[] imageBytes = new byte[programBytes.size()];
+        int theAddress = 0;
+        for (String theValue : programBytes) {
+            imageBytes[theAddress++] = (byte) programByteValue(theValue.split(SEPARATOR));
+        }
+        return ByteBuffer.wrap(imageBytes);
+    }
+
+    // The byte value of a program byte, the same values that programBytesListAndWrite() writes to the file.
+    private int programByteValue(String[] opcodeValues) {
+        switch (opcodeValues[0]) {
+            case "opcode":
+                return Integer.parseInt(opcodeValues[2], 2);
+            case "hb":
+                return Integer.parseInt(opcodeValues[1]);
+            case "lb":
+            case "immediate":
+            case "dbbyte":
+            case "dsname":
+                return Integer.parseInt(opcodeValues[2]);
+            case "databyte":
+                if (opcodeValues[2].charAt(0) == '\'') {
+                    return Integer.parseInt(convertValueToInt(opcodeValues[2]));
+                } else if (opcodeValues[2].equals(SEPARATOR_TEMP)) {
+                    return SEPARATOR.charAt(0);
+                }
+                return opcodeValues[2].charAt(0);
+            default:
+                System.out.println("- Error, unknown keyword: " + opcodeValues[0]);
+                return 0;
+        }
+    }
+
     // -------------------------------------------------------------------------
     // -------------------------------------------------------------------------
     // Program byte output: Listing byte information to screen
@@ -544,6 +590,11 @@ public class asmProcessor {
                 System.out.println("-- Error, writing to file: " + e);
                 System.exit(1);
             }
+            // Sidecar file of source line numbers and labels, for the emulator tools.
+            asmDebugMap theMap = getDebugMap();
+            if (theMap != null) {
+                theMap.writeFile(theFileNameTo + asmDebugMap.FILE_EXTENSION);
+            }
         }
 
     }
@@ -1472,6 +1523,9 @@ public class asmProcessor {
         labelAddress.clear();
         variableName.clear();
         variableValue.clear();
+        lineAddress.clear();
+        lineNumber.clear();
+        sourceFilename = theReadFilename;
         try {
             readFile = new File(theReadFilename);
             if (!readFile.exists()) {
@@ -1486,7 +1540,12 @@ public class asmProcessor {
             theLineCounter = 0;
             while (theLine != null && !opcode.equals("end")) {
                 theLineCounter++;
+                int theLineAddress = programTop;
                 parseLine(theLine);
+                if (programTop > theLineAddress) {
+                    lineAddress.add(theLineAddress);
+                    lineNumber.add(theLineCounter);
+                }
                 theLine = pin.readLine();
             }
             pin.close();
@@ -1515,6 +1574,30 @@ public class asmProcessor {
         }
     }
 
+    // -------------------------------------------------------------------------
+    // Debug map of the parsed program: source line numbers and address labels.
+    // Returns null if there is no successfully parsed program.
+    public asmDebugMap getDebugMap() {
+        if (sourceFilename.equals("") || errorCount > 0) {
+            return null;
+        }
+        List<Integer> symbolAddresses = new ArrayList<>();
+        List<String> symbolNames = new ArrayList<>();
+        Iterator<String> lName = labelName.iterator();
+        Iterator<Integer> lAddress = labelAddress.iterator();
+        while (lName.hasNext()) {
+            String theName = lName.next();
+            int theAddress = lAddress.next();
+            // Skip DB statements without a label, and EQU names, which are in the EQU table with their values.
+            if (!theName.equals("") && getVariableValue(theName).equals(NAME_NOT_FOUND_STR)) {
+                symbolAddresses.add(theAddress);
+                symbolNames.add(theName);
+            }
+        }
+        return asmDebugMap.fromLists(sourceFilename, programBytes.size(), lineAddress, lineNumber, symbolAddresses, symbolNames,
+                variableValue, variableName);
+    }
+
     // -------------------------------------------------------------------------
     public void listFile(String theReadFilename) {
         File readFile;
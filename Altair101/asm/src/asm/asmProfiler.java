@@ -0,0 +1,196 @@
+/*
+    Emulator profiler: counts opcode executions and clock cycles for each memory address.
+
+    Counts are kept in primitive arrays, one entry per 64K address,
+    so that counting an opcode step is 2 array increments and no objects are created.
+    Loops are found from backward jumps: a jump to an address at, or before, the jump opcode.
+
+    The report maps the counts to source lines and labels using the program's debug map:
+    + Hot spots: the addresses using the most cycles, with their source lines.
+    + Routines: cycles totaled by address label.
+    + Loops: cycles totaled for each backward jump range, with the number of iterations.
+
+    Use the cycle totals to tune timing critical loops, such as delay loops and game loops
+    (Kill the Bit, Pong). The processor runs at 2MHz, which is 2,000,000 cycles per second.
+
+ */
+package asm;
+
+import java.util.Arrays;
+
+public class asmProfiler {
+
+    private static final int MEMSIZE = 65536;
+    private static final int NO_LOOP = -1;
+    private static final double CYCLES_PER_SECOND = 2000000.0;
+
+    private final long[] addressCount = new long[MEMSIZE];
+    private final long[] addressCycles = new long[MEMSIZE];
+    // For each backward jump opcode address: the jump address, and number of times the jump was taken.
+    private final int[] loopStart = new int[MEMSIZE];
+    private final long[] loopCount = new long[MEMSIZE];
+    private long totalSteps = 0;
+    private long totalCycles = 0;
+
+    private static int hotSpotCount = 20;
+
+    public static int getHotSpotCount() {
+        return hotSpotCount;
+    }
+
+    public static void setHotSpotCount(int theValue) {
+        hotSpotCount = theValue;
+    }
+
+    public asmProfiler() {
+        clear();
+    }
+
+    public final void clear() {
+        Arrays.fill(addressCount, 0);
+        Arrays.fill(addressCycles, 0);
+        Arrays.fill(loopStart, NO_LOOP);
+        Arrays.fill(loopCount, 0);
+        totalSteps = 0;
+        totalCycles = 0;
+    }
+
+    // Called by the emulator after each opcode step.
+    void count(int theAddress, int theCycles) {
+        addressCount[theAddress]++;
+        addressCycles[theAddress] += theCycles;
+        totalSteps++;
+        totalCycles += theCycles;
+    }
+
+    // Called by the emulator when a jump is taken back to the same, or a lower, address.
+    void countLoop(int fromAddress, int toAddress) {
+        loopStart[fromAddress] = toAddress;
+        loopCount[fromAddress]++;
+    }
+
+    public long getCount(int theAddress) {
+        return addressCount[theAddress];
+    }
+
+    public long getCycles(int theAddress) {
+        return addressCycles[theAddress];
+    }
+
+    public long getTotalCycles() {
+        return totalCycles;
+    }
+
+    // -------------------------------------------------------------------------
+    private String percent(long theCycles) {
+        if (totalCycles == 0) {
+            return "  0.0%";
+        }
+        return String.format("%5.1f%%", theCycles * 100.0 / totalCycles);
+    }
+
+    private String lineText(asmDebugMap theMap, int theAddress) {
+        if (theMap == null) {
+            return "";
+        }
+        int theLine = theMap.getLineNumber(theAddress);
+        if (theLine == asmDebugMap.NOT_FOUND) {
+            return "";
+        }
+        return String.format("%5d: ", theLine) + theMap.getSourceLine(theLine);
+    }
+
+    // Sort addresses by cycles, highest first.
+    private Integer[] sortByCycles(final long[] theCycles, int theCount) {
+        Integer[] order = new Integer[theCount];
+        int n = 0;
+        for (int i = 0; i < theCycles.length && n < theCount; i++) {
+            if (theCycles[i] > 0) {
+                order[n++] = i;
+            }
+        }
+        order = Arrays.copyOf(order, n);
+        Arrays.sort(order, (a, b) -> Long.compare(theCycles[b], theCycles[a]));
+        return order;
+    }
+
+    private int countNonZero(long[] theValues) {
+        int n = 0;
+        for (long theValue : theValues) {
+            if (theValue > 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // -------------------------------------------------------------------------
+    // Print the report. The debug map is optional; without it, addresses are listed without source lines.
+    public void printReport(asmDebugMap theMap, byte[] theMemory) {
+        System.out.println("+ Profile, steps: " + totalSteps + ", cycles: " + totalCycles
+                + String.format(", run time at 2MHz: %.3f seconds", totalCycles / CYCLES_PER_SECOND));
+        if (totalSteps == 0) {
+            return;
+        }
+        //
+        System.out.println("+ Hot spots, by cycles:");
+        System.out.println("++ Address Label          Count       Cycles      %    Line: Source");
+        Integer[] order = sortByCycles(addressCycles, countNonZero(addressCycles));
+        for (int i = 0; i < order.length && i < hotSpotCount; i++) {
+            int theAddress = order[i];
+            String theLabel = (theMap == null) ? "" : theMap.getSymbolText(theAddress);
+            System.out.println(String.format("++    %04X %-12s %9d %12d ", theAddress, theLabel,
+                    addressCount[theAddress], addressCycles[theAddress])
+                    + percent(addressCycles[theAddress]) + " " + lineText(theMap, theAddress));
+        }
+        //
+        if (theMap != null && theMap.getSymbolCount() > 0) {
+            System.out.println("+ Routines, by cycles:");
+            System.out.println("++ Address Label               Steps       Cycles      %");
+            long[] routineSteps = new long[theMap.getSymbolCount() + 1];
+            long[] routineCycles = new long[theMap.getSymbolCount() + 1];
+            for (int theAddress = 0; theAddress < MEMSIZE; theAddress++) {
+                if (addressCount[theAddress] > 0) {
+                    // Index 0 is for addresses before the first label.
+                    int theIndex = theMap.getSymbolIndex(theAddress) + 1;
+                    routineSteps[theIndex] += addressCount[theAddress];
+                    routineCycles[theIndex] += addressCycles[theAddress];
+                }
+            }
+            order = sortByCycles(routineCycles, routineCycles.length);
+            for (Integer theIndex : order) {
+                String theLabel = "(no label)";
+                int theAddress = 0;
+                if (theIndex > 0) {
+                    theLabel = theMap.getSymbolName(theIndex - 1);
+                    theAddress = theMap.getSymbolAddress(theIndex - 1);
+                }
+                System.out.println(String.format("++    %04X %-16s %9d %12d ", theAddress, theLabel,
+                        routineSteps[theIndex], routineCycles[theIndex])
+                        + percent(routineCycles[theIndex]));
+            }
+        }
+        //
+        System.out.println("+ Loops, by cycles:");
+        System.out.println("++ From-To   Label           Iterations       Cycles      %    Line: Source");
+        long[] loopCycles = new long[MEMSIZE];
+        for (int fromAddress = 0; fromAddress < MEMSIZE; fromAddress++) {
+            if (loopCount[fromAddress] > 0) {
+                int toAddress = fromAddress + asmEmulator.OPCODE_LENGTH[theMemory[fromAddress] & 0xff];
+                for (int theAddress = loopStart[fromAddress]; theAddress < toAddress && theAddress < MEMSIZE; theAddress++) {
+                    loopCycles[fromAddress] += addressCycles[theAddress];
+                }
+            }
+        }
+        order = sortByCycles(loopCycles, countNonZero(loopCycles));
+        for (int i = 0; i < order.length && i < hotSpotCount; i++) {
+            int fromAddress = order[i];
+            int theStart = loopStart[fromAddress];
+            String theLabel = (theMap == null) ? "" : theMap.getSymbolText(theStart);
+            System.out.println(String.format("++ %04X-%04X %-14s %10d %12d ", theStart, fromAddress, theLabel,
+                    loopCount[fromAddress], loopCycles[fromAddress])
+                    + percent(loopCycles[fromAddress]) + " " + lineText(theMap, theStart));
+        }
+        System.out.println("+ End of report.");
+    }
+}
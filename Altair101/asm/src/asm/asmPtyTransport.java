@@ -0,0 +1,154 @@
+/*
+    Linux pseudo terminal connection.
+
+    Connects to one end of a pseudo terminal pair, for example, created with:
+        $ socat -d -d pty,raw,echo=0 pty,raw,echo=0
+        ... N PTY is /dev/pts/3
+        ... N PTY is /dev/pts/4
+    A device stand-in, or another emulator, uses the other end.
+
+    A pseudo terminal has no baud rate, so writes are paced at the baud rate,
+    and received bytes go through a receive buffer of a set size, that drops bytes when it's full.
+    A reader thread moves bytes from the pseudo terminal into the receive buffer.
+
+ */
+package asm;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.LockSupport;
+
+public class asmPtyTransport implements asmTransport {
+
+    private static final int BITS_PER_BYTE = 10;
+
+    private final String name;
+    private final int baudRate;
+    private final long nanosPerByte;
+    private final asmSerialLine rxLine;
+    private RandomAccessFile pty = null;
+    private OutputStream ptyOut = null;
+    private long lineFreeTime = 0;
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int theByte) throws IOException {
+            if (nanosPerByte > 0) {
+                long theTime = System.nanoTime();
+                lineFreeTime = Math.max(lineFreeTime, theTime) + nanosPerByte;
+                while (theTime < lineFreeTime) {
+                    LockSupport.parkNanos(lineFreeTime - theTime);
+                    theTime = System.nanoTime();
+                }
+            }
+            ptyOut.write(theByte);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ptyOut.flush();
+        }
+    };
+
+    public asmPtyTransport(String thePtyName, int theBaudRate, int theRxBufferSize) {
+        name = thePtyName;
+        baudRate = theBaudRate;
+        nanosPerByte = theBaudRate > 0 ? BITS_PER_BYTE * 1000000000L / theBaudRate : 0;
+        // Bytes arrive already paced by the sender.
+        rxLine = new asmSerialLine(0, theRxBufferSize);
+    }
+
+    public asmPtyTransport(String thePtyName, int theBaudRate) {
+        this(thePtyName, theBaudRate, asmPipeTransport.HOST_RX_BUFFER_SIZE);
+    }
+
+    public asmSerialLine getRxLine() {
+        return rxLine;
+    }
+
+    // Move bytes from the pseudo terminal into the receive buffer, until the transport is closed.
+    private void readPty(RandomAccessFile thePty) {
+        byte[] theBytes = new byte[256];
+        try (InputStream in = new FileInputStream(thePty.getFD())) {
+            int theCount = in.read(theBytes);
+            while (theCount >= 0) {
+                for (int i = 0; i < theCount; i++) {
+                    rxLine.put(theBytes[i]);
+                }
+                theCount = in.read(theBytes);
+            }
+        } catch (IOException ioe) {
+            // Closed.
+        }
+        rxLine.close();
+    }
+
+    // -------------------------------------------------------------------------
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean open() {
+        RandomAccessFile thePty;
+        try {
+            thePty = new RandomAccessFile(name, "rw");
+            ptyOut = new FileOutputStream(thePty.getFD());
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return false;
+        }
+        pty = thePty;
+        Thread theThread = new Thread(() -> readPty(thePty), "asmPtyTransport " + name);
+        theThread.setDaemon(true);
+        theThread.start();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // Closed already, or the open failed.
+        if (pty == null) {
+            return;
+        }
+        try {
+            pty.close();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        pty = null;
+        rxLine.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return pty != null;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return rxLine.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void setReadTimeout(int theTimeout) {
+        rxLine.setReadTimeout(theTimeout);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+    One direction of a simulated serial line.
+
+    Bytes written to the line arrive in the receiver's buffer at the baud rate: 10 bits per byte,
+    a start bit, 8 data bits, and a stop bit.
+    The receive buffer has a fixed size. When it's full, arriving bytes are dropped and counted,
+    the same as a UART receive buffer that isn't read fast enough.
+    A baud rate of 0 delivers bytes without a delay.
+    Line noise can be added for testing: a rate of corrupted bytes, with one bit changed, and a rate of lost bytes.
+
+ */
+package asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+public class asmSerialLine {
+
+    private static final int BITS_PER_BYTE = 10;
+
+    private final byte[] rxBuffer;
+    private int rxHead = 0;
+    private int rxCount = 0;
+    private long droppedCount = 0;
+    private long receivedCount = 0;
+    private final long nanosPerByte;
+    private long lineFreeTime = 0;
+    private int readTimeout = 0;
+    private boolean closed = false;
+    private double corruptRate = 0;
+    private double lostRate = 0;
+    private Random noise = null;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            return take();
+        }
+
+        @Override
+        public int read(byte[] theBytes, int theOffset, int theLength) throws IOException {
+            if (theLength == 0) {
+                return 0;
+            }
+            int theByte = take();
+            if (theByte < 0) {
+                return -1;
+            }
+            theBytes[theOffset] = (byte) theByte;
+            return 1 + takeAvailable(theBytes, theOffset + 1, theLength - 1);
+        }
+
+        @Override
+        public int available() {
+            return getAvailable();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int theByte) throws IOException {
+            transmit(theByte);
+        }
+
+        @Override
+        public void close() {
+            asmSerialLine.this.close();
+        }
+    };
+
+    public asmSerialLine(int theBaudRate, int theRxBufferSize) {
+        nanosPerByte = theBaudRate > 0 ? BITS_PER_BYTE * 1000000000L / theBaudRate : 0;
+        rxBuffer = new byte[theRxBufferSize];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public synchronized void setReadTimeout(int theTimeout) {
+        readTimeout = theTimeout;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized int getAvailable() {
+        return rxCount;
+    }
+
+    public int getRxBufferSize() {
+        return rxBuffer.length;
+    }
+
+    // Add line noise, the random number seed makes the noise repeatable.
+    public synchronized void setNoise(double theCorruptRate, double theLostRate, long theSeed) {
+        corruptRate = theCorruptRate;
+        lostRate = theLostRate;
+        noise = new Random(theSeed);
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    // -------------------------------------------------------------------------
+    // Sender side: wait for the byte's line time, then deliver it.
+    // Bytes sent back to back keep the line's schedule, so a late wake up from parkNanos is made up on the next bytes,
+    // instead of adding to every byte's time. The schedule restarts after the line was idle for a byte time.
+    public void transmit(int theByte) throws IOException {
+        if (nanosPerByte > 0) {
+            long theTime = System.nanoTime();
+            if (theTime - lineFreeTime > nanosPerByte) {
+                lineFreeTime = theTime;
+            }
+            lineFreeTime += nanosPerByte;
+            while (theTime < lineFreeTime) {
+                LockSupport.parkNanos(lineFreeTime - theTime);
+                theTime = System.nanoTime();
+            }
+        }
+        if (!put(theByte)) {
+            throw new IOException("Serial line is closed.");
+        }
+    }
+
+    // Deliver a byte into the receive buffer. Returns false if the line is closed.
+    public synchronized boolean put(int theByte) {
+        if (closed) {
+            return false;
+        }
+        if (noise != null) {
+            if (noise.nextDouble() < lostRate) {
+                return true;
+            }
+            if (noise.nextDouble() < corruptRate) {
+                theByte ^= 1 << noise.nextInt(8);
+            }
+        }
+        if (rxCount == rxBuffer.length) {
+            droppedCount++;
+            return true;
+        }
+        rxBuffer[(rxHead + rxCount) % rxBuffer.length] = (byte) theByte;
+        rxCount++;
+        receivedCount++;
+        notifyAll();
+        return true;
+    }
+
+    // Receiver side: wait for a byte. Returns -1 when the line is closed and empty.
+    public synchronized int take() throws InterruptedIOException {
+        long theDeadline = System.currentTimeMillis() + readTimeout;
+        while (rxCount == 0) {
+            if (closed) {
+                return -1;
+            }
+            long theWait = 0;
+            if (readTimeout > 0) {
+                theWait = theDeadline - System.currentTimeMillis();
+                if (theWait <= 0) {
+                    throw new InterruptedIOException("Read timed out.");
+                }
+            }
+            try {
+                wait(theWait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Read interrupted.");
+            }
+        }
+        int theByte = rxBuffer[rxHead] & 0xff;
+        rxHead = (rxHead + 1) % rxBuffer.length;
+        rxCount--;
+        return theByte;
+    }
+
+    private synchronized int takeAvailable(byte[] theBytes, int theOffset, int theLength) {
+        int theCount = Math.min(theLength, rxCount);
+        for (int i = 0; i < theCount; i++) {
+            theBytes[theOffset + i] = rxBuffer[rxHead];
+            rxHead = (rxHead + 1) % rxBuffer.length;
+        }
+        rxCount -= theCount;
+        return theCount;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+    Serial port connection, using jSerialComm.
+
+    Connection settings must match the Arduino program settings: baud rate, 8 data bits, 1 stop bit, no parity.
+    Writes block until the bytes are written.
+
+ */
+package asm;
+
+import com.fazecast.jSerialComm.SerialPort;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class asmSerialTransport implements asmTransport {
+
+    private final SerialPort sp;
+    private final String name;
+    private final int baudRate;
+    private int readTimeout = 0;
+
+    public asmSerialTransport(String theSerialPortName, int theBaudRate) {
+        name = theSerialPortName;
+        baudRate = theBaudRate;
+        sp = SerialPort.getCommPort(theSerialPortName);
+    }
+
+    public SerialPort getSerialPort() {
+        return sp;
+    }
+
+    private void setTimeouts() {
+        if (readTimeout > 0) {
+            sp.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING | SerialPort.TIMEOUT_WRITE_BLOCKING, readTimeout, 0);
+        } else {
+            sp.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING | SerialPort.TIMEOUT_WRITE_BLOCKING, 0, 0);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean open() {
+        sp.setComPortParameters(baudRate, 8, 1, 0);
+        setTimeouts();
+        return sp.openPort();
+    }
+
+    @Override
+    public void close() {
+        if (!sp.closePort()) {
+            System.out.println("- Error: Failed to close serial port.");
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return sp.isOpen();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return sp.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return sp.getOutputStream();
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void setReadTimeout(int theTimeout) {
+        readTimeout = theTimeout;
+        setTimeouts();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+    Emulator machine state snapshots.
+
+    A snapshot holds the processor registers, the 64K memory, device state, and the step and cycle counts.
+    Snapshot files are memory mapped, and the memory is stored page aligned,
+    so saving and restoring is a bulk copy of 64K bytes plus a small header.
+
+    One snapshot can be restored into any number of emulators, for example,
+    boot 8K Basic and load a program once, save a snapshot, then start each test from the snapshot.
+
+    File layout:
+        Offset  Bytes   Value
+        0       8       "A101SNAP"
+        8       4       Version
+        12      8       Registers: A, Flags, B, C, D, E, H, L
+        20      2       SP
+        22      2       PC
+        24      1       Interrupts enabled
+        25      1       Halted
+        26      8       Cycle count
+        34      8       Step count
+        42      4       Sense switches
+        46      4       4K Basic port 0 input byte
+        50      2       Number of serial input characters waiting, followed by the characters
+        4096    65536   Memory
+
+ */
+package asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+public class asmSnapshot {
+
+    public static final String FILE_EXTENSION = ".snap";
+    private static final String SNAPSHOT_MAGIC = "A101SNAP";
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int MEMORY_OFFSET = 4096;
+    private static final int MEMSIZE = 65536;
+    private static final int SNAPSHOT_SIZE = MEMORY_OFFSET + MEMSIZE;
+
+    private final ByteBuffer state;
+
+    private asmSnapshot(ByteBuffer state) {
+        this.state = state;
+    }
+
+    // -------------------------------------------------------------------------
+    // Copy the emulator state into the snapshot buffer.
+    private static void copyFrom(asmEmulator theEmulator, ByteBuffer theState) {
+        theState.clear();
+        theState.put(SNAPSHOT_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        theState.putInt(SNAPSHOT_VERSION);
+        theState.put((byte) theEmulator.regA);
+        theState.put((byte) theEmulator.regF);
+        theState.put((byte) theEmulator.regB);
+        theState.put((byte) theEmulator.regC);
+        theState.put((byte) theEmulator.regD);
+        theState.put((byte) theEmulator.regE);
+        theState.put((byte) theEmulator.regH);
+        theState.put((byte) theEmulator.regL);
+        theState.putShort((short) theEmulator.regSP);
+        theState.putShort((short) theEmulator.regPC);
+        theState.put((byte) (theEmulator.interruptsEnabled ? 1 : 0));
+        theState.put((byte) (theEmulator.halted ? 1 : 0));
+        theState.putLong(theEmulator.cycleCount);
+        theState.putLong(theEmulator.stepCount);
+        theState.putInt(theEmulator.senseSwitches);
+        theState.putInt(theEmulator.inputBytePort0);
+        int inputCount = (theEmulator.inputTail - theEmulator.inputHead) & 0xff;
+        theState.putShort((short) inputCount);
+        for (int i = 0; i < inputCount; i++) {
+            theState.put((byte) theEmulator.inputQueue[(theEmulator.inputHead + i) & 0xff]);
+        }
+        theState.position(MEMORY_OFFSET);
+        theState.put(theEmulator.memory);
+    }
+
+    // Copy the snapshot buffer into the emulator state.
+    private static void copyTo(ByteBuffer theState, asmEmulator theEmulator) {
+        theState.clear();
+        theState.position(SNAPSHOT_MAGIC.length() + 4);
+        theEmulator.reset();
+        theEmulator.regA = theState.get() & 0xff;
+        theEmulator.regF = theState.get() & 0xff;
+        theEmulator.regB = theState.get() & 0xff;
+        theEmulator.regC = theState.get() & 0xff;
+        theEmulator.regD = theState.get() & 0xff;
+        theEmulator.regE = theState.get() & 0xff;
+        theEmulator.regH = theState.get() & 0xff;
+        theEmulator.regL = theState.get() & 0xff;
+        theEmulator.regSP = theState.getShort() & 0xffff;
+        theEmulator.regPC = theState.getShort() & 0xffff;
+        theEmulator.interruptsEnabled = theState.get() != 0;
+        theEmulator.halted = theState.get() != 0;
+        theEmulator.cycleCount = theState.getLong();
+        theEmulator.stepCount = theState.getLong();
+        theEmulator.senseSwitches = theState.getInt();
+        theEmulator.inputBytePort0 = theState.getInt();
+        int inputCount = theState.getShort();
+        for (int i = 0; i < inputCount; i++) {
+            theEmulator.addInput(theState.get());
+        }
+        theState.position(MEMORY_OFFSET);
+        theState.get(theEmulator.memory);
+    }
+
+    // -------------------------------------------------------------------------
+    // Take an in-memory snapshot, for forking emulators without a file.
+    public static asmSnapshot take(asmEmulator theEmulator) {
+        ByteBuffer theState = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        copyFrom(theEmulator, theState);
+        return new asmSnapshot(theState);
+    }
+
+    // Save the emulator state to a memory mapped snapshot file.
+    public static asmSnapshot save(asmEmulator theEmulator, String theFilename) throws IOException {
+        try (FileChannel theChannel = FileChannel.open(new File(theFilename).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer theState = theChannel.map(FileChannel.MapMode.READ_WRITE, 0, SNAPSHOT_SIZE);
+            copyFrom(theEmulator, theState);
+            theState.force();
+            return new asmSnapshot(theState);
+        }
+    }
+
+    // Open a snapshot file. The file is memory mapped, read only.
+    public static asmSnapshot open(String theFilename) throws IOException {
+        File theFile = new File(theFilename);
+        if (!theFile.exists() || theFile.length() != SNAPSHOT_SIZE) {
+            throw new IOException("Not a snapshot file: " + theFilename);
+        }
+        try (FileChannel theChannel = FileChannel.open(theFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer theState = theChannel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_SIZE);
+            byte[] theMagic = new byte[SNAPSHOT_MAGIC.length()];
+            theState.get(theMagic);
+            if (!SNAPSHOT_MAGIC.equals(new String(theMagic, StandardCharsets.US_ASCII)) || theState.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a snapshot file: " + theFilename);
+            }
+            return new asmSnapshot(theState);
+        }
+    }
+
+    // Restore the snapshot into an existing emulator.
+    public void restore(asmEmulator theEmulator) {
+        // A duplicate, so that several emulators can be restored from the same snapshot at the same time.
+        copyTo(state.duplicate(), theEmulator);
+    }
+
+    // The 64K memory, read only, without copying it out of the snapshot. Index 0 is address 0.
+    public ByteBuffer getMemory() {
+        ByteBuffer theMemory = state.duplicate();
+        theMemory.clear();
+        theMemory.position(MEMORY_OFFSET);
+        return theMemory.slice().asReadOnlyBuffer();
+    }
+
+    // Fork a new emulator instance from the snapshot.
+    public asmEmulator newEmulator() {
+        asmEmulator theEmulator = new asmEmulator();
+        restore(theEmulator);
+        return theEmulator;
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing.
+    public static void main(String[] args) throws IOException {
+        System.out.println("+++ Start.");
+        asmEmulator emulator = new asmEmulator();
+        emulator.setConsoleInput(false);
+        //
+        // Add 1 to memory byte 20h, forever.
+        //      Loop: lda 20h / inr a / sta 20h / jmp Loop
+        byte[] theProgram = {
+            (byte) 0x3A, (byte) 0x20, (byte) 0x00,
+            (byte) 0x3C,
+            (byte) 0x32, (byte) 0x20, (byte) 0x00,
+            (byte) 0xC3, (byte) 0x00, (byte) 0x00
+        };
+        emulator.loadBytes(theProgram, 0);
+        emulator.run(400);
+        asmSnapshot theSnapshot = asmSnapshot.save(emulator, "test" + FILE_EXTENSION);
+        System.out.println("+ Saved, steps: " + emulator.stepCount + ", memory byte 20h: " + emulator.readMemory(0x20));
+        //
+        // Each fork continues from the same state.
+        asmEmulator fork1 = asmSnapshot.open("test" + FILE_EXTENSION).newEmulator();
+        asmEmulator fork2 = theSnapshot.newEmulator();
+        fork1.setConsoleInput(false);
+        fork2.setConsoleInput(false);
+        fork1.run(40);
+        fork2.run(40);
+        emulator.run(40);
+        System.out.println("+ Original, fork 1, fork 2, memory byte 20h: "
+                + emulator.readMemory(0x20) + ", " + fork1.readMemory(0x20) + ", " + fork2.readMemory(0x20));
+        new File("test" + FILE_EXTENSION).delete();
+        System.out.println("\n+++ Exit.\n");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+    Connection to a serial port shared through asmPortServer, over a local socket.
+
+    Port names: tcp:<port number>, for example: tcp:10101. A name without a valid port number fails to open.
+    On connect, the client sends its role:
+    + Writer   : for example, an upload. Receives the device's bytes only while it holds the write turn,
+                 so it doesn't read replies meant for another writer.
+    + Listener : for example, the serial monitor. Receives all the device's bytes, and can also write.
+    Socket read timeouts throw SocketTimeoutException, an InterruptedIOException, the same as the other transports.
+
+ */
+package asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+public class asmSocketTransport implements asmTransport {
+
+    public static final int ROLE_WRITER = 'W';
+    public static final int ROLE_LISTENER = 'L';
+
+    private final String name;
+    private final int portNumber;
+    private final int role;
+    private Socket socket = null;
+
+    public asmSocketTransport(String thePortName, int theRole) {
+        name = thePortName;
+        portNumber = parsePortNumber(thePortName);
+        role = theRole;
+    }
+
+    public asmSocketTransport(String thePortName) {
+        this(thePortName, ROLE_WRITER);
+    }
+
+    // The port number of a tcp: port name, or -1 if it isn't a number from 1 to 65535.
+    public static int parsePortNumber(String thePortName) {
+        if (!thePortName.startsWith(asmPortServer.SOCKET_PORT_PREFIX)) {
+            return -1;
+        }
+        try {
+            int thePortNumber = Integer.parseInt(thePortName.substring(asmPortServer.SOCKET_PORT_PREFIX.length()));
+            return thePortNumber >= 1 && thePortNumber <= 65535 ? thePortNumber : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean open() {
+        if (portNumber < 0) {
+            System.out.println("- Error, invalid port server port number: " + name);
+            return false;
+        }
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), portNumber);
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(role);
+            socket.getOutputStream().flush();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            socket = null;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        try {
+            return socket.getInputStream();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        try {
+            return socket.getOutputStream();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    @Override
+    public int getBaudRate() {
+        return asmUpload.getBaudRate();
+    }
+
+    @Override
+    public void setReadTimeout(int theTimeout) {
+        try {
+            socket.setSoTimeout(theTimeout);
+        } catch (SocketException e) {
+            System.out.println("- Error, setting the socket read timeout: " + e.getMessage());
+        }
+    }
+}
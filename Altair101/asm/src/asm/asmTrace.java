@@ -0,0 +1,247 @@
+/*
+    Emulator execution trace recorder.
+
+    Records each opcode step into a fixed size ring buffer, outside of the Java heap (ByteBuffer.allocateDirect).
+    When the buffer is full, the oldest steps are overwritten, so the buffer always holds the last steps.
+    Recording a step is a few absolute buffer puts, no strings and no objects,
+    so tracing slows the emulator down by a small amount, instead of printing log messages for each step.
+
+    Trace record, fixed width, 20 bytes:
+        Offset  Bytes   Value
+        0       2       PC, address of the opcode
+        2       1       Opcode
+        3       2       Opcode data bytes: immediate byte, or address lb and hb
+        5       1       A
+        6       1       Flags
+        7       6       B, C, D, E, H, L
+        13      2       SP
+        15      1       Number of memory bytes written by the opcode: 0, 1 or 2
+        16      2       Lowest address written
+        18      2       Bytes written, at the address and at the address + 1
+    Registers are the values before the opcode is processed. Words are stored high byte first.
+
+    A dump file has a header: "A101TRCE", the record size (int), and the number of records (int),
+    followed by the records, oldest first.
+
+ */
+package asm;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class asmTrace {
+
+    public static final int RECORD_SIZE = 20;
+    // The buffer size, capacity * RECORD_SIZE, is an int.
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE / RECORD_SIZE;
+    private static final String DUMP_MAGIC = "A101TRCE";
+
+    private final ByteBuffer records;
+    private final int capacity;
+    private long recordCount = 0;
+    private int currentOffset = 0;
+
+    // Constructor, the capacity is the number of steps kept.
+    public asmTrace(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Trace capacity must be from 1 to " + MAX_CAPACITY + ": " + capacity);
+        }
+        this.capacity = capacity;
+        this.records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public void clear() {
+        recordCount = 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // Called by the emulator before each opcode step.
+    void record(asmEmulator theEmulator) {
+        currentOffset = (int) (recordCount % capacity) * RECORD_SIZE;
+        recordCount++;
+        int pc = theEmulator.regPC;
+        byte[] memory = theEmulator.memory;
+        records.putShort(currentOffset, (short) pc);
+        records.put(currentOffset + 2, memory[pc]);
+        records.put(currentOffset + 3, memory[(pc + 1) & 0xffff]);
+        records.put(currentOffset + 4, memory[(pc + 2) & 0xffff]);
+        records.put(currentOffset + 5, (byte) theEmulator.regA);
+        records.put(currentOffset + 6, (byte) theEmulator.regF);
+        records.put(currentOffset + 7, (byte) theEmulator.regB);
+        records.put(currentOffset + 8, (byte) theEmulator.regC);
+        records.put(currentOffset + 9, (byte) theEmulator.regD);
+        records.put(currentOffset + 10, (byte) theEmulator.regE);
+        records.put(currentOffset + 11, (byte) theEmulator.regH);
+        records.put(currentOffset + 12, (byte) theEmulator.regL);
+        records.putShort(currentOffset + 13, (short) theEmulator.regSP);
+        records.put(currentOffset + 15, (byte) 0);
+    }
+
+    // Called by the emulator for each memory write of the current step.
+    // Opcodes that write 2 bytes (PUSH, CALL, SHLD, XTHL) write to 2 consecutive addresses.
+    void recordWrite(int theAddress, int theByte) {
+        int writeCount = records.get(currentOffset + 15);
+        if (writeCount == 0) {
+            records.putShort(currentOffset + 16, (short) theAddress);
+            records.put(currentOffset + 18, (byte) theByte);
+        } else {
+            int firstAddress = records.getShort(currentOffset + 16) & 0xffff;
+            if (theAddress == ((firstAddress - 1) & 0xffff)) {
+                // Stack writes, high byte then low byte.
+                records.put(currentOffset + 19, records.get(currentOffset + 18));
+                records.putShort(currentOffset + 16, (short) theAddress);
+                records.put(currentOffset + 18, (byte) theByte);
+            } else {
+                records.put(currentOffset + 19, (byte) theByte);
+            }
+        }
+        records.put(currentOffset + 15, (byte) (writeCount + 1));
+    }
+
+    // -------------------------------------------------------------------------
+    // Number of records held, and the buffer offset of the oldest one.
+    private int heldCount() {
+        return (int) Math.min(recordCount, capacity);
+    }
+
+    private int oldestIndex() {
+        if (recordCount <= capacity) {
+            return 0;
+        }
+        return (int) (recordCount % capacity);
+    }
+
+    // Write the held records to a file, oldest first.
+    public void dumpToFile(String theFilename) {
+        int theCount = heldCount();
+        int theStart = oldestIndex();
+        try (FileOutputStream fout = new FileOutputStream(theFilename)) {
+            FileChannel theChannel = fout.getChannel();
+            ByteBuffer theHeader = ByteBuffer.allocate(DUMP_MAGIC.length() + 8);
+            theHeader.put(DUMP_MAGIC.getBytes());
+            theHeader.putInt(RECORD_SIZE);
+            theHeader.putInt(theCount);
+            theHeader.flip();
+            theChannel.write(theHeader);
+            // Oldest records are from the start index to the end of the buffer, then from the beginning.
+            ByteBuffer theRecords = records.duplicate();
+            int firstPart = Math.min(theCount, capacity - theStart);
+            theRecords.limit((theStart + firstPart) * RECORD_SIZE);
+            theRecords.position(theStart * RECORD_SIZE);
+            while (theRecords.hasRemaining()) {
+                theChannel.write(theRecords);
+            }
+            theRecords.clear();
+            theRecords.limit((theCount - firstPart) * RECORD_SIZE);
+            while (theRecords.hasRemaining()) {
+                theChannel.write(theRecords);
+            }
+        } catch (IOException e) {
+            System.out.println("-- Error, writing trace file: " + e);
+            return;
+        }
+        System.out.println("+ Trace file created: " + theFilename + ", steps: " + theCount);
+    }
+
+    // -------------------------------------------------------------------------
+    private static String recordText(ByteBuffer theBuffer, int theOffset, asmDebugMap theMap) {
+        int pc = theBuffer.getShort(theOffset) & 0xffff;
+        int opcode = theBuffer.get(theOffset + 2) & 0xff;
+        int theLength = asmEmulator.OPCODE_LENGTH[opcode];
+        String theBytes = String.format("%02X", opcode);
+        for (int i = 1; i < 3; i++) {
+            theBytes += (i < theLength) ? String.format(" %02X", theBuffer.get(theOffset + 2 + i)) : "   ";
+        }
+        String theText = String.format("++ %04X %s A:%02X F:%02X B:%02X C:%02X D:%02X E:%02X H:%02X L:%02X SP:%04X",
+                pc, theBytes,
+                theBuffer.get(theOffset + 5), theBuffer.get(theOffset + 6),
+                theBuffer.get(theOffset + 7), theBuffer.get(theOffset + 8),
+                theBuffer.get(theOffset + 9), theBuffer.get(theOffset + 10),
+                theBuffer.get(theOffset + 11), theBuffer.get(theOffset + 12),
+                theBuffer.getShort(theOffset + 13) & 0xffff);
+        int writeCount = theBuffer.get(theOffset + 15);
+        if (writeCount > 0) {
+            int theAddress = theBuffer.getShort(theOffset + 16) & 0xffff;
+            theText += String.format(" [%04X]=%02X", theAddress, theBuffer.get(theOffset + 18));
+            if (writeCount > 1) {
+                theText += String.format(" [%04X]=%02X", (theAddress + 1) & 0xffff, theBuffer.get(theOffset + 19));
+            }
+        }
+        if (theMap != null) {
+            theText += " " + theMap.getSymbolText(pc);
+        }
+        return theText;
+    }
+
+    // Print the most recent steps, oldest first.
+    public void printLast(int theNumber, asmDebugMap theMap) {
+        if (theNumber < 1) {
+            System.out.println("- Error, the number of trace steps to list must be 1 or more: " + theNumber);
+            return;
+        }
+        int theCount = heldCount();
+        int theStart = oldestIndex();
+        int theSkip = Math.max(0, theCount - theNumber);
+        System.out.println("+ Trace, last " + (theCount - theSkip) + " of " + recordCount + " steps:");
+        for (int i = theSkip; i < theCount; i++) {
+            int theIndex = (theStart + i) % capacity;
+            System.out.println(recordText(records, theIndex * RECORD_SIZE, theMap));
+        }
+        System.out.println("+ End of trace.");
+    }
+
+    // Print the last steps from a trace dump file.
+    public static void listFile(String theFilename, int theNumber, asmDebugMap theMap) {
+        if (theNumber < 1) {
+            System.out.println("- Error, the number of trace steps to list must be 1 or more: " + theNumber);
+            return;
+        }
+        File theFile = new File(theFilename);
+        if (!theFile.exists()) {
+            System.out.println("- Error, trace file does not exist: " + theFilename);
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(theFile))) {
+            byte[] theMagic = new byte[DUMP_MAGIC.length()];
+            in.readFully(theMagic);
+            int theRecordSize = in.readInt();
+            int theCount = in.readInt();
+            if (!DUMP_MAGIC.equals(new String(theMagic)) || theRecordSize != RECORD_SIZE) {
+                System.out.println("- Error, not a trace file: " + theFilename);
+                return;
+            }
+            // The header is the magic, and 2 ints.
+            long theRecordsLength = theFile.length() - DUMP_MAGIC.length() - 8;
+            if (theCount < 0 || theCount > MAX_CAPACITY || (long) theCount * RECORD_SIZE > theRecordsLength) {
+                System.out.println("- Error, the trace file doesn't hold its " + theCount + " steps: " + theFilename);
+                return;
+            }
+            int theSkip = Math.max(0, theCount - theNumber);
+            in.skipBytes(theSkip * RECORD_SIZE);
+            byte[] theRecords = new byte[(theCount - theSkip) * RECORD_SIZE];
+            in.readFully(theRecords);
+            ByteBuffer theBuffer = ByteBuffer.wrap(theRecords);
+            System.out.println("+ Trace file: " + theFilename + ", last " + (theCount - theSkip) + " of " + theCount + " steps:");
+            for (int i = 0; i < theCount - theSkip; i++) {
+                System.out.println(recordText(theBuffer, i * RECORD_SIZE, theMap));
+            }
+            System.out.println("+ End of trace.");
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+    A serial connection to an Altair 101, or to a stand-in for one.
+
+    Implementations:
+    + asmSerialTransport : a serial port, using jSerialComm.
+    + asmPipeTransport   : an in-memory pipe, with simulated baud rate timing and receive buffer size.
+    + asmPtyTransport    : a Linux pseudo terminal, for example, one end of: socat -d -d pty,raw,echo=0 pty,raw,echo=0
+
+    Reads that time out throw an InterruptedIOException, the same as jSerialComm.
+
+ */
+package asm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface asmTransport {
+
+    String getName();
+
+    boolean open();
+
+    void close();
+
+    boolean isOpen();
+
+    InputStream getInputStream();
+
+    OutputStream getOutputStream();
+
+    int getBaudRate();
+
+    // Milliseconds to wait for a read, 0 waits forever.
+    void setReadTimeout(int theTimeout);
+}
@@ -0,0 +1,282 @@
+/*
+    Model of the Arduino receiving an upload through its UART.
+
+    The Arduino's serial receive buffer is a 64 byte ring. The UART adds a byte each time one arrives,
+    and the program removes a byte each time it reads one. When a byte arrives and the ring is full, the byte is dropped.
+    The program takes time to process each byte, for example, running the 8080 emulator and updating the front panel,
+    and more time to process a carriage return or line feed, for example, when Basic tokenizes a program line.
+
+    asmUpload's baudSleepTime and baudSleepTimeCr were set by trial and error until bytes weren't dropped.
+    The model replays an upload: line timing at the baud rate, the host's sleep times, and the device's processing times,
+    to count dropped bytes, and to find the fastest sleep times that don't drop bytes.
+
+    The model is also a live device, for the device end of an asmPipeTransport:
+    it reads bytes at the processing rate, into memory, and the pipe's receive buffer drops bytes when full.
+    It can echo the bytes, the same as Basic, for testing echo paced uploads.
+
+    Default processing times are estimates from the sleep times that worked on the board.
+
+ */
+package asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+public class asmUartModel implements Runnable {
+
+    private static final int BITS_PER_BYTE = 10;
+    private static final int MEMSIZE = 65536;
+    private static final int MAX_SLEEP_TIME = 20;
+    private static final int MAX_SLEEP_TIME_CR = 2000;
+    private static final byte[] ECHO_NEWLINE = {13, 10};
+    private static final byte[] ECHO_OK = "OK\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Microseconds for the device to process a byte, and the extra time for a CR or LF.
+    private static int byteCost = 4000;
+    private static int crCost = 50000;
+
+    private final int baudRate;
+    private final int rxBufferSize;
+    private final int[] rxRing;
+    private InputStream in = null;
+    private OutputStream out = null;
+    final byte[] memory = new byte[MEMSIZE];
+    private int receivedCount = 0;
+
+    // Results of the last simulation.
+    private long droppedCount = 0;
+    private long doneNanos = 0;
+
+    public asmUartModel(int theBaudRate, int theRxBufferSize) {
+        baudRate = theBaudRate;
+        rxBufferSize = theRxBufferSize;
+        rxRing = new int[theRxBufferSize];
+    }
+
+    public asmUartModel(int theBaudRate) {
+        this(theBaudRate, asmPipeTransport.DEVICE_RX_BUFFER_SIZE);
+    }
+
+    public static int getByteCost() {
+        return byteCost;
+    }
+
+    public static void setByteCost(int theByteCost) {
+        byteCost = theByteCost;
+    }
+
+    public static int getCrCost() {
+        return crCost;
+    }
+
+    public static void setCrCost(int theCrCost) {
+        crCost = theCrCost;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getDoneNanos() {
+        return doneNanos;
+    }
+
+    public int getReceivedCount() {
+        return receivedCount;
+    }
+
+    private static boolean isNewline(int theByte) {
+        return theByte == 10 || theByte == 13;
+    }
+
+    private static long processNanos(int theByte) {
+        return (isNewline(theByte) ? byteCost + crCost : byteCost) * 1000L;
+    }
+
+    // -------------------------------------------------------------------------
+    // Replay an upload of the bytes, with the host sleep times in milliseconds, the same as asmUpload.sendFile().
+    // Returns the number of dropped bytes. getDoneNanos() is the time the device finished processing.
+    public long simulate(byte[] theBytes, int theLength, int theSleepTime, int theSleepTimeCr) {
+        long nanosPerByte = BITS_PER_BYTE * 1000000000L / baudRate;
+        long hostTime = 0;
+        long lineFree = 0;
+        long deviceFree = 0;
+        int ringHead = 0;
+        int ringCount = 0;
+        long[] ringArrival = new long[rxBufferSize];
+        droppedCount = 0;
+        for (int i = 0; i < theLength; i++) {
+            int theByte = theBytes[i] & 0xff;
+            long theStart = Math.max(hostTime, lineFree);
+            long theArrival = theStart + nanosPerByte;
+            lineFree = theArrival;
+            // The device reads the bytes that arrived before this one, each when it's done with the previous byte.
+            while (ringCount > 0 && Math.max(deviceFree, ringArrival[ringHead]) <= theArrival) {
+                deviceFree = Math.max(deviceFree, ringArrival[ringHead]) + processNanos(rxRing[ringHead]);
+                ringHead = (ringHead + 1) % rxBufferSize;
+                ringCount--;
+            }
+            if (ringCount == rxBufferSize) {
+                droppedCount++;
+            } else {
+                int theIndex = (ringHead + ringCount) % rxBufferSize;
+                rxRing[theIndex] = theByte;
+                ringArrival[theIndex] = theArrival;
+                ringCount++;
+            }
+            hostTime = theStart + theSleepTime * 1000000L;
+            if (isNewline(theByte)) {
+                hostTime += theSleepTimeCr * 1000000L;
+            }
+        }
+        while (ringCount > 0) {
+            deviceFree = Math.max(deviceFree, ringArrival[ringHead]) + processNanos(rxRing[ringHead]);
+            ringHead = (ringHead + 1) % rxBufferSize;
+            ringCount--;
+        }
+        doneNanos = deviceFree;
+        return droppedCount;
+    }
+
+    // Find the sleep times that upload the bytes in the least time, without dropping bytes.
+    // Returns {sleep time, sleep time CR}, or null if even the longest sleep times drop bytes.
+    public int[] findSafePacing(byte[] theBytes, int theLength) {
+        int[] thePacing = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (int theSleepTime = 0; theSleepTime <= MAX_SLEEP_TIME; theSleepTime++) {
+            // Binary search for the shortest CR sleep time, more sleep time doesn't drop more bytes.
+            if (simulate(theBytes, theLength, theSleepTime, MAX_SLEEP_TIME_CR) > 0) {
+                continue;
+            }
+            int low = 0;
+            int high = MAX_SLEEP_TIME_CR;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (simulate(theBytes, theLength, theSleepTime, mid) == 0) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            simulate(theBytes, theLength, theSleepTime, low);
+            if (doneNanos < bestNanos) {
+                bestNanos = doneNanos;
+                thePacing = new int[]{theSleepTime, low};
+            }
+        }
+        if (thePacing != null) {
+            simulate(theBytes, theLength, thePacing[0], thePacing[1]);
+        }
+        return thePacing;
+    }
+
+    // Print the safe sleep times for uploading the bytes at the common baud rates.
+    public static void printSafePacing(byte[] theBytes) {
+        System.out.println("+ Device processing time, per byte: " + byteCost + " microseconds, extra per CR or LF: " + crCost + " microseconds.");
+        for (int theBaudRate : new int[]{9600, 19200, 57600, 115200}) {
+            asmUartModel theModel = new asmUartModel(theBaudRate);
+            int[] thePacing = theModel.findSafePacing(theBytes, theBytes.length);
+            if (thePacing == null) {
+                System.out.println(String.format("++ Baud rate %6d : bytes are dropped, even with the longest sleep times.", theBaudRate));
+            } else {
+                System.out.println(String.format("++ Baud rate %6d : baudst %2d, baudcr %4d, upload time %.2f seconds.",
+                        theBaudRate, thePacing[0], thePacing[1], theModel.getDoneNanos() / 1e9));
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Live device: read bytes into memory, taking the processing time for each byte.
+    // With echo on, the device echoes the same as Basic: each character as it's read, CR as CR LF,
+    // and after a direct command, a line without a line number, the OK prompt.
+    public Thread start(asmTransport theTransport, boolean doEcho) {
+        in = theTransport.getInputStream();
+        if (doEcho) {
+            out = theTransport.getOutputStream();
+        }
+        Thread theThread = new Thread(this, "asmUartModel");
+        theThread.setDaemon(true);
+        theThread.start();
+        return theThread;
+    }
+
+    public Thread start(asmTransport theTransport) {
+        return start(theTransport, false);
+    }
+
+    @Override
+    public void run() {
+        boolean isLineStart = true;
+        boolean isDirectCommand = false;
+        try {
+            int theByte = in.read();
+            while (theByte >= 0) {
+                memory[receivedCount & 0xffff] = (byte) theByte;
+                receivedCount++;
+                if (out != null) {
+                    if (isNewline(theByte)) {
+                        out.write(ECHO_NEWLINE);
+                    } else {
+                        out.write(theByte);
+                    }
+                    out.flush();
+                }
+                LockSupport.parkNanos(processNanos(theByte));
+                if (isNewline(theByte)) {
+                    if (out != null && isDirectCommand) {
+                        out.write(ECHO_OK);
+                        out.flush();
+                    }
+                    isLineStart = true;
+                    isDirectCommand = false;
+                } else if (isLineStart) {
+                    isLineStart = false;
+                    isDirectCommand = !Character.isDigit(theByte);
+                }
+                theByte = in.read();
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: compare the model with an upload through a pipe to the live device.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.out.println("+++ Start.");
+        StringBuilder theProgram = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            theProgram.append(i * 10).append(" PRINT \"HELLO, LINE ").append(i).append("\"\r");
+        }
+        byte[] theBytes = theProgram.toString().getBytes();
+        printSafePacing(theBytes);
+        //
+        int theBaudRate = 115200;
+        int theSleepTime = 1;
+        int theSleepTimeCr = 0;
+        asmUartModel theModel = new asmUartModel(theBaudRate);
+        System.out.println("+ Model, baud rate " + theBaudRate + ", baudst " + theSleepTime + ", baudcr " + theSleepTimeCr
+                + ", dropped bytes: " + theModel.simulate(theBytes, theBytes.length, theSleepTime, theSleepTimeCr));
+        //
+        asmPipeTransport thePipe = asmPipeTransport.create("test", theBaudRate);
+        asmUartModel theDevice = new asmUartModel(theBaudRate);
+        Thread theThread = theDevice.start(thePipe.getPeer());
+        for (byte theByte : theBytes) {
+            thePipe.getOutputStream().write(theByte);
+            Thread.sleep(theSleepTime);
+            if (isNewline(theByte)) {
+                Thread.sleep(theSleepTimeCr);
+            }
+        }
+        // Closing the pipe ends the device thread, after it reads the bytes in its buffer.
+        thePipe.close();
+        theThread.join(10000);
+        System.out.println("+ Pipe,  baud rate " + theBaudRate + ", received: " + theDevice.getReceivedCount()
+                + ", dropped bytes: " + thePipe.getPeer().getRxLine().getDroppedCount());
+        System.out.println("\n+++ Exit.\n");
+    }
+}
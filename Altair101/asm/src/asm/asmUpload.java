@@ -28,8 +28,13 @@ import com.fazecast.jSerialComm.SerialPort;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
 
 // -----------------------------------------------------------------------------
 // -----------------------------------------------------------------------------
@@ -43,10 +48,18 @@ public class asmUpload {
     // Set to 20 if baud rate is 9600.
     private static int baudSleepTime = 10;
     private static int baudSleepTimeCr = 0;
+    // Echo paced uploads: milliseconds to wait for the echo, and the number of bytes sent ahead of the echo.
+    private static int echoTimeout = 3000;
+    private static final int ECHO_WINDOW = 48;
+    private static final int ECHO_TIMEOUT_LIMIT = 3;
 
     // Uses the device name that can be found in the Arduino IDE, under the menu item Tools/Port.
     // Sample default ports: tty.wchusbserial14230 /dev/cu.wchusbserial141230 /dev/tty.SLAB_USBtoUART
     private static String SerialPortName = "/dev/tty.wchusbserial14220";
+    public static final String LOOPBACK_PORT_NAME = "loopback";
+    public static final String PTY_PORT_PREFIX = "/dev/pts/";
+    // The loopback device keeps its memory between connections, the same as a board.
+    private static final byte[] loopbackMemory = new byte[65536];
 
     // -------------------------------------------------------------------------
     // Constructor to ...
@@ -78,23 +91,32 @@ public class asmUpload {
         asmUpload.baudSleepTimeCr = theBaudSleepTimeCr;
     }
 
+    public static int getEchoTimeout() {
+        return asmUpload.echoTimeout;
+    }
+
+    public static void setEchoTimeout(int theEchoTimeout) {
+        asmUpload.echoTimeout = theEchoTimeout;
+    }
+
     public static String getSerialPortName() {
         return asmUpload.SerialPortName;
     }
 
+    // The port can be a system port name, with or without the Mac "tty." prefix, or a part of the USB description.
     public static void setSerialPortName(String theSerialPortName) {
-        SerialPort serials[] = SerialPort.getCommPorts();
-        boolean IsFound = false;
-        String theSystemPortName = "tty." + theSerialPortName;
-        for (SerialPort serial : serials) {
-            // System.out.println("+++ serial.getSystemPortName().toLowerCase(): " + serial.getSystemPortName().toLowerCase());
-            if (theSystemPortName.toLowerCase().startsWith(serial.getSystemPortName().toLowerCase())) {
-                // System.out.println("++ Found: " + theSerialPortName);
-                IsFound = true;
-                theSystemPortName = serial.getSystemPortName();
-            }
+        if (theSerialPortName.startsWith(asmPortServer.SOCKET_PORT_PREFIX) && asmSocketTransport.parsePortNumber(theSerialPortName) < 0) {
+            System.out.println("- Error, invalid port server port number, 1 to 65535: " + theSerialPortName);
+            return;
+        }
+        if (theSerialPortName.equals(LOOPBACK_PORT_NAME) || theSerialPortName.startsWith(PTY_PORT_PREFIX)
+                || theSerialPortName.startsWith(asmPortServer.SOCKET_PORT_PREFIX)) {
+            asmUpload.SerialPortName = theSerialPortName;
+            System.out.println("+ Serial port set to: " + theSerialPortName);
+            return;
         }
-        if (!IsFound) {
+        String theSystemPortName = asmPortRegistry.findPort(theSerialPortName);
+        if (theSystemPortName == null) {
             System.out.println("+ Serial port name not found: " + theSerialPortName);
             return;
         }
@@ -105,13 +127,14 @@ public class asmUpload {
 
     public static void listSerialPorts() {
         System.out.println("+ List of available serial ports:");
-        SerialPort serials[] = SerialPort.getCommPorts();
-        for (SerialPort serial : serials) {
-            if (serial.getSystemPortName().startsWith("tty") && !serial.getSystemPortName().startsWith("tty.Bluetooth")) {
+        asmPortRegistry.refreshNow();
+        for (SerialPort serial : asmPortRegistry.getPorts()) {
+            if (asmPortRegistry.isListed(serial)) {
                 // ++ cu.Bluetooth-Incoming-Port : Bluetooth-Incoming-Port BaudRate:9600 Data Bits:8 Stop Bits:1 Parity:0
                 // ++ tty.Bluetooth-Incoming-Port : Bluetooth-Incoming-Port (Dial-In) BaudRate:9600 Data Bits:8 Stop Bits:1 Parity:0
+                String theName = serial.getSystemPortName();
                 System.out.println(
-                        "++ " + serial.getSystemPortName().substring(4)
+                        "++ " + (theName.startsWith("tty.") ? theName.substring(4) : theName)
                         + " : " + serial.getPortDescription()
                         + " BaudRate:" + serial.getBaudRate()
                         + " Data Bits:" + serial.getNumDataBits()
@@ -120,10 +143,10 @@ public class asmUpload {
                 );
             }
         }
+        asmPortRegistry.listConnections();
         System.out.println("+ End of list.");
     }
 
-    // -------------------------------------------------------------------------
     public static String byteToString(byte aByte) {
         return toBinary(aByte, 8);
     }
@@ -136,77 +159,206 @@ public class asmUpload {
         }
     }
 
+    // Open the connection to the serial port name:
+    // + loopback     : an in-memory pipe to a device stand-in.
+    //                  For text, asmUartModel echoing the same as Basic, else asmUploadDevice.
+    // + /dev/pts/<n> : a Linux pseudo terminal.
+    // + tcp:<n>      : a serial port shared by asmPortServer.
+    // + Else, a serial port.
+    // Pseudo terminal and serial port connections come from asmPortRegistry, and may already be open.
+    // Returns null if the connection fails to open.
+    public static asmTransport openTransport(String thePortName, boolean isText) {
+        asmTransport theTransport;
+        if (thePortName.equals(LOOPBACK_PORT_NAME)) {
+            asmPipeTransport thePipe = asmPipeTransport.create(LOOPBACK_PORT_NAME, baudRate);
+            thePipe.getPeer().open();
+            if (isText) {
+                new asmUartModel(baudRate).start(thePipe.getPeer(), true);
+            } else {
+                new asmUploadDevice(thePipe.getPeer(), loopbackMemory).start();
+            }
+            theTransport = thePipe;
+            if (!theTransport.open()) {
+                System.out.println("- Error, failed to open serial port: " + thePortName);
+                return null;
+            }
+        } else if (thePortName.startsWith(asmPortServer.SOCKET_PORT_PREFIX)) {
+            theTransport = new asmSocketTransport(thePortName);
+            if (!theTransport.open()) {
+                System.out.println("- Error, failed to connect to the port server: " + thePortName);
+                return null;
+            }
+        } else {
+            theTransport = asmPortRegistry.acquire(thePortName, baudRate);
+            if (theTransport == null) {
+                System.out.println("- Error, failed to open serial port: " + thePortName);
+                return null;
+            }
+        }
+        return theTransport;
+    }
+
+    public static asmTransport openTransport(boolean isText) {
+        return openTransport(SerialPortName, isText);
+    }
+
+    public static asmTransport openTransport() {
+        return openTransport(false);
+    }
+
+    // Done with the connection. A registry connection stays open for the idle timeout.
+    public static void closeTransport(asmTransport theTransport) {
+        if (asmPortRegistry.isRegistered(theTransport)) {
+            asmPortRegistry.release(theTransport);
+        } else {
+            theTransport.close();
+        }
+        if (theTransport.isOpen()) {
+            System.out.println("+ Serial port is idle, closes after seconds: " + asmPortRegistry.getIdleTimeout() / 1000.0);
+        } else {
+            System.out.println("+ Serial port is closed.");
+        }
+    }
+
     public static void sendFile(String theReadFilename) {
-        SerialPort sp = SerialPort.getCommPort(SerialPortName);
-        // Connection settings must match Arduino program settings.
-        // Baud rate, data bits, stop bits, and parity
-        sp.setComPortParameters(baudRate, 8, 1, 0); // 9600 19200
-        // block until bytes can be written
-        sp.setComPortTimeouts(SerialPort.TIMEOUT_WRITE_BLOCKING, 0, 0);
-        if (!sp.openPort()) {
-            System.out.println("- Error, failed to open serial port: " + SerialPortName);
+        asmTransport theTransport = openTransport(!theReadFilename.endsWith(".bin"));
+        if (theTransport == null) {
             return;
         }
         System.out.println("+ Serial port is open.");
+        asmUploadDelta.clearHashes(getSerialPortName());
         //
-        System.out.println("++ Load the program binary file: " + theReadFilename);
-        int theLength = 0;
-        byte bArray[] = null;
-        try {
-            File theFile = new File(theReadFilename);
-            theLength = (int) theFile.length();
-            bArray = new byte[(int) theLength];
-            FileInputStream in = new FileInputStream(theReadFilename);
-            in.read(bArray);
-            in.close();
+        // The echo to the screen is printed by the pipeline's reporter, so a slow terminal doesn't slow the upload.
+        File theFile = new File(theReadFilename);
+        long theLength = theFile.length();
+        System.out.println("+ Write to serial port. Number of bytes: " + theLength + " in the file: " + theReadFilename);
+        boolean printBinary = theReadFilename.endsWith(".bin");
+        try (FileInputStream in = new FileInputStream(theFile)) {
+            asmUploadPipeline thePipeline = new asmUploadPipeline(theTransport.getOutputStream(), theLength, printBinary);
+            thePipeline.upload(in);
+            thePipeline.getMetrics().printSummary();
         } catch (IOException ioe) {
-            System.out.print("IOException: ");
+            System.out.print("+ *** IOException: ");
             System.out.println(ioe.toString());
         }
-        System.out.println("+ Write to serial port. Number of bytes: " + theLength + " in the file: " + theReadFilename);
-        Integer i;
-        int tenCount = 0;
-        boolean printBinary = theReadFilename.endsWith(".bin");
+        // ---------------------------------------------------------------------
+        closeTransport(theTransport);
+        //
+        System.out.println("\n+ Write completed.");
+    }
+
+    // Upload a program image from memory, for example, asmProcessor.getProgramImage(), without a machine code file.
+    public static void sendImage(ByteBuffer theImage, String theName) {
+        asmTransport theTransport = openTransport(false);
+        if (theTransport == null) {
+            return;
+        }
+        System.out.println("+ Serial port is open.");
+        asmUploadDelta.clearHashes(getSerialPortName());
+        System.out.println("+ Write to serial port. Number of bytes: " + theImage.remaining() + " in the program: " + theName);
         try {
-            for (i = 0; i < theLength; i++) {
-                byte theByte = bArray[i];
-                // --------------------------------------
-                // Echo bytes to the screen.
-                if (printBinary) {
-                    // Print bytes in binary format.
-                    if (tenCount == 10) {
-                        tenCount = 0;
-                        System.out.println("");
+            asmUploadPipeline thePipeline = new asmUploadPipeline(theTransport.getOutputStream(), theImage.remaining(), true);
+            thePipeline.upload(theImage);
+            thePipeline.getMetrics().printSummary();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        closeTransport(theTransport);
+        System.out.println("\n+ Write completed.");
+    }
+
+    // -------------------------------------------------------------------------
+    // Upload a text file, such as a Basic program, paced by the device's echo.
+    // Sends each line, ending with a CR, then waits for the echo of the end of the line.
+    // After a direct command, a line without a line number, also waits for the OK prompt.
+    // At most ECHO_WINDOW bytes are sent ahead of the echo, so the device's receive buffer doesn't overrun.
+    // If the device doesn't answer within the echo timeout, the upload continues with the next line,
+    // and stops after a number of timeouts in a row.
+    public static boolean sendLines(asmTransport theTransport, List<String> theLines) throws IOException {
+        InputStream in = theTransport.getInputStream();
+        OutputStream out = theTransport.getOutputStream();
+        theTransport.setReadTimeout(echoTimeout);
+        int timeoutCount = 0;
+        for (String theLine : theLines) {
+            byte[] theBytes = (theLine + "\r").getBytes(StandardCharsets.ISO_8859_1);
+            boolean isDirectCommand = theLine.isEmpty() || !Character.isDigit(theLine.charAt(0));
+            int pendingCount = 0;
+            boolean isNewlineEchoed = false;
+            boolean isOkEchoed = !isDirectCommand;
+            boolean isOkLine = false;
+            int lastByte = 0;
+            try {
+                for (byte theByte : theBytes) {
+                    while (pendingCount >= ECHO_WINDOW) {
+                        int theEcho = in.read();
+                        if (theEcho < 0) {
+                            throw new IOException("Device closed the connection.");
+                        }
+                        System.out.write(theEcho);
+                        if (theEcho != 10 && theEcho != 13) {
+                            pendingCount--;
+                        }
                     }
-                    tenCount++;
-                    System.out.print(byteToString(theByte) + " ");
-                } else {
-                    // Print text to screen, such as a Basic program.
-                    System.out.write(theByte);
+                    out.write(theByte);
+                    pendingCount++;
                 }
-                // --------------------------------------
-                // Write out to serial port.
-                sp.getOutputStream().write(theByte);
-                sp.getOutputStream().flush();
-                Thread.sleep(baudSleepTime);
-                if (theByte == 10 || theByte == 13) {
-                    // Allow Basic time to process the newline/carriage return.
-                    Thread.sleep(baudSleepTimeCr);
+                out.flush();
+                while (!isNewlineEchoed || !isOkEchoed) {
+                    int theEcho = in.read();
+                    if (theEcho < 0) {
+                        throw new IOException("Device closed the connection.");
+                    }
+                    System.out.write(theEcho);
+                    if (theEcho == 10) {
+                        // The end of the line echo, or of the OK prompt line.
+                        isNewlineEchoed = true;
+                        isOkEchoed = isOkEchoed || isOkLine;
+                    } else if (isNewlineEchoed && lastByte == 'O' && theEcho == 'K') {
+                        isOkLine = true;
+                    }
+                    lastByte = theEcho;
+                }
+                System.out.flush();
+                timeoutCount = 0;
+            } catch (InterruptedIOException e) {
+                timeoutCount++;
+                System.out.println("\n- Warning, no echo from the device within " + echoTimeout + " ms, for the line: " + theLine);
+                if (timeoutCount == ECHO_TIMEOUT_LIMIT) {
+                    System.out.println("- Error, the device stopped answering, upload stopped.");
+                    return false;
                 }
             }
-        } catch (IOException ex) {
-            Logger.getLogger(asm.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(asmUpload.class.getName()).log(Level.SEVERE, null, ex);
         }
-        // ---------------------------------------------------------------------
-        if (sp.closePort()) {
-            System.out.println("\n+ Serial port is closed.");
-        } else {
-            System.out.println("- Error: Failed to close serial port.");
+        return true;
+    }
+
+    public static void sendFileEcho(String theReadFilename) {
+        List<String> theLines;
+        try {
+            theLines = Files.readAllLines(new File(theReadFilename).toPath(), StandardCharsets.ISO_8859_1);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
         }
-        //
-        System.out.println("\n+ Write completed.");
+        asmTransport theTransport = openTransport(true);
+        if (theTransport == null) {
+            return;
+        }
+        System.out.println("+ Serial port is open.");
+        asmUploadDelta.clearHashes(getSerialPortName());
+        System.out.println("+ Write to serial port, paced by the echo. Number of lines: " + theLines.size() + " in the file: " + theReadFilename);
+        long startTime = System.currentTimeMillis();
+        try {
+            if (sendLines(theTransport, theLines)) {
+                System.out.println("+ Write completed, seconds: " + (System.currentTimeMillis() - startTime) / 1000.0);
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        closeTransport(theTransport);
     }
 
     // -------------------------------------------------------------------------
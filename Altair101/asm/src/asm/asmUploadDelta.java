@@ -0,0 +1,237 @@
+/*
+    Delta upload: upload only the memory that changed since the last upload to the same port.
+
+    After each block upload, a hash of each 16 byte chunk of the image is saved, one file per port.
+    On the next delta upload, the new image's chunk hashes are compared with the saved ones,
+    and only the changed chunks are uploaded, as address and length ranges, using the block upload protocol.
+    In an edit, assemble, upload cycle, that's usually a few chunks of a multi kilobyte program.
+
+    The saved hashes are what the board had after the last upload.
+    Every other upload to the port deletes the hash file when it starts, because it changes the board's memory
+    without saving hashes: byte, echo, Basic, and asmup uploads, and block uploads that fail.
+    The next delta upload then uploads all the bytes.
+    If the board was reset, or its memory changed, use a full upload: upload block.
+
+    Hash file layout:
+        "A101HASH", chunk size, image length, number of chunks, then the 8 byte hash of each chunk.
+
+ */
+package asm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class asmUploadDelta {
+
+    public static final int CHUNK_SIZE = 16;
+    private static final String HASH_MAGIC = "A101HASH";
+    private static final String HASH_FILE_EXTENSION = ".hash";
+
+    // Directory for the per port hash files.
+    private static String hashDirectory = ".";
+
+    public static String getHashDirectory() {
+        return hashDirectory;
+    }
+
+    public static void setHashDirectory(String theDirectory) {
+        hashDirectory = theDirectory;
+    }
+
+    // For example, port /dev/tty.SLAB_USBtoUART uses the file: ./upload_dev_tty.SLAB_USBtoUART.hash
+    public static String getHashFilename(String theSerialPortName) {
+        return hashDirectory + File.separator + "upload" + theSerialPortName.replaceAll("[^A-Za-z0-9.-]", "_") + HASH_FILE_EXTENSION;
+    }
+
+    // -------------------------------------------------------------------------
+    // An 8 byte hash of each chunk, the first 8 bytes of its SHA-256.
+    public static long[] chunkHashes(byte[] theBytes, int theLength) {
+        MessageDigest theDigest;
+        try {
+            theDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long[] theHashes = new long[(theLength + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        for (int i = 0; i < theHashes.length; i++) {
+            int theOffset = i * CHUNK_SIZE;
+            theDigest.update(theBytes, theOffset, Math.min(CHUNK_SIZE, theLength - theOffset));
+            theHashes[i] = ByteBuffer.wrap(theDigest.digest()).getLong();
+        }
+        return theHashes;
+    }
+
+    // Return the changed ranges: {offsets, lengths}. Adjacent changed chunks are one range.
+    // A chunk is changed if its hash is different, or the last upload didn't include it.
+    public static int[][] changedRanges(long[] oldHashes, int oldLength, long[] newHashes, int newLength) {
+        int[] theOffsets = new int[newHashes.length];
+        int[] theLengths = new int[newHashes.length];
+        int theCount = 0;
+        for (int i = 0; i < newHashes.length; i++) {
+            int theOffset = i * CHUNK_SIZE;
+            int theChunkLength = Math.min(CHUNK_SIZE, newLength - theOffset);
+            boolean isChanged = i >= oldHashes.length
+                    || oldHashes[i] != newHashes[i]
+                    || Math.min(CHUNK_SIZE, oldLength - theOffset) != theChunkLength;
+            if (!isChanged) {
+                continue;
+            }
+            if (theCount > 0 && theOffsets[theCount - 1] + theLengths[theCount - 1] == theOffset) {
+                theLengths[theCount - 1] += theChunkLength;
+            } else {
+                theOffsets[theCount] = theOffset;
+                theLengths[theCount] = theChunkLength;
+                theCount++;
+            }
+        }
+        int[][] theRanges = new int[2][theCount];
+        System.arraycopy(theOffsets, 0, theRanges[0], 0, theCount);
+        System.arraycopy(theLengths, 0, theRanges[1], 0, theCount);
+        return theRanges;
+    }
+
+    // -------------------------------------------------------------------------
+    public static void saveHashes(String theSerialPortName, byte[] theBytes, int theLength) {
+        long[] theHashes = chunkHashes(theBytes, theLength);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(getHashFilename(theSerialPortName)))) {
+            out.write(HASH_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(CHUNK_SIZE);
+            out.writeInt(theLength);
+            out.writeInt(theHashes.length);
+            for (long theHash : theHashes) {
+                out.writeLong(theHash);
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    // The device memory is about to change, the saved hashes no longer match it.
+    public static void clearHashes(String theSerialPortName) {
+        File theFile = new File(getHashFilename(theSerialPortName));
+        if (theFile.exists() && !theFile.delete()) {
+            System.out.println("- Error, cannot delete the hash file: " + theFile.getName());
+        }
+    }
+
+    // Returns the saved hashes, and the image length in theLength[0]. Returns null if there's no hash file for the port.
+    private static long[] readHashes(String theSerialPortName, int[] theLength) {
+        File theFile = new File(getHashFilename(theSerialPortName));
+        if (!theFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(theFile))) {
+            byte[] theMagic = new byte[HASH_MAGIC.length()];
+            in.readFully(theMagic);
+            if (!HASH_MAGIC.equals(new String(theMagic, StandardCharsets.US_ASCII)) || in.readInt() != CHUNK_SIZE) {
+                System.out.println("- Error, not a hash file: " + theFile.getName());
+                return null;
+            }
+            theLength[0] = in.readInt();
+            long[] theHashes = new long[in.readInt()];
+            for (int i = 0; i < theHashes.length; i++) {
+                theHashes[i] = in.readLong();
+            }
+            return theHashes;
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return null;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Upload the changes in a machine code file, starting at address 0.
+    public static void sendFile(String theReadFilename) {
+        byte[] theBytes;
+        try {
+            theBytes = Files.readAllBytes(new File(theReadFilename).toPath());
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
+        }
+        String theSerialPortName = asmUpload.getSerialPortName();
+        int[] oldLength = new int[1];
+        long[] oldHashes = readHashes(theSerialPortName, oldLength);
+        if (oldHashes == null) {
+            System.out.println("+ No previous upload to this port, upload all the bytes.");
+            oldHashes = new long[0];
+        }
+        int[][] theRanges = changedRanges(oldHashes, oldLength[0], chunkHashes(theBytes, theBytes.length), theBytes.length);
+        int theChangedCount = 0;
+        for (int theRangeLength : theRanges[1]) {
+            theChangedCount += theRangeLength;
+        }
+        System.out.println("+ Delta upload, changed bytes: " + theChangedCount + " of " + theBytes.length
+                + ", in " + theRanges[0].length + " ranges, file: " + theReadFilename);
+        if (theChangedCount == 0) {
+            System.out.println("+ No changes since the last upload.");
+            return;
+        }
+        asmTransport theTransport = asmUpload.openTransport();
+        if (theTransport == null) {
+            return;
+        }
+        theTransport.setReadTimeout(asmBlockUpload.getReplyTimeout());
+        System.out.println("+ Serial port is open.");
+        asmBlockUpload theUpload = new asmBlockUpload(theTransport);
+        clearHashes(theSerialPortName);
+        try {
+            theUpload.uploadRanges(theBytes, theRanges[0], theRanges[1], 0, 0);
+            theUpload.printSummary();
+            saveHashes(theSerialPortName, theBytes, theBytes.length);
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        asmUpload.closeTransport(theTransport);
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: upload, change a few bytes, then upload the changes.
+    public static void main(String[] args) throws IOException {
+        System.out.println("+++ Start.");
+        byte[] theBytes = new byte[4096];
+        for (int i = 0; i < theBytes.length; i++) {
+            theBytes[i] = (byte) (i * 13);
+        }
+        long[] oldHashes = chunkHashes(theBytes, theBytes.length);
+        byte[] newBytes = Arrays.copyOf(theBytes, theBytes.length + 10);
+        newBytes[100]++;
+        newBytes[101]++;
+        newBytes[2000]++;
+        int[][] theRanges = changedRanges(oldHashes, theBytes.length, chunkHashes(newBytes, newBytes.length), newBytes.length);
+        int theChangedCount = 0;
+        for (int i = 0; i < theRanges[0].length; i++) {
+            System.out.println(String.format("++ Changed range, address: %04X, length: %d", theRanges[0][i], theRanges[1][i]));
+            theChangedCount += theRanges[1][i];
+        }
+        //
+        byte[] theMemory = new byte[65536];
+        System.arraycopy(theBytes, 0, theMemory, 0, theBytes.length);
+        asmPipeTransport thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        new asmUploadDevice(thePipe.getPeer(), theMemory).start();
+        asmBlockUpload theUpload = new asmBlockUpload(thePipe);
+        theUpload.uploadRanges(newBytes, theRanges[0], theRanges[1], 0, 0);
+        thePipe.close();
+        theUpload.printSummary();
+        boolean isMatch = true;
+        for (int i = 0; i < newBytes.length; i++) {
+            isMatch = isMatch && theMemory[i] == newBytes[i];
+        }
+        System.out.println("+ Device memory matches: " + isMatch);
+        System.out.println("\n+++ Exit.\n");
+    }
+}
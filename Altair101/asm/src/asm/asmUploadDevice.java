@@ -0,0 +1,288 @@
+/*
+    Loopback stand-in for an Altair 101 receiving a block upload.
+
+    Implements the device side of the block upload protocol, see asmBlockUpload.
+    Blocks are written into a 64K memory array, so an upload can be tested and benchmarked without a board.
+    The device grants credits based on its serial receive buffer size,
+    the same as an Arduino Mega's 64 byte buffer, and returns one credit with each ACK or NAK.
+    Frames are checked with their CRC-16. Run length encoded frames are decoded with asmUploadEncoding.
+    Data frames that fail the CRC check are NAKed, and so are the sequence numbers skipped when a frame was lost.
+    Answers the verify requests with the CRC-16 of a block of memory, or the block, see asmUploadVerify.
+
+    Run on its own thread, reading frames from the host and writing replies back to the host,
+    for example, on the device end of an asmPipeTransport.
+
+ */
+package asm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class asmUploadDevice implements Runnable {
+
+    private static final int MEMSIZE = 65536;
+
+    final byte[] memory;
+    private final byte[] frame = new byte[asmBlockUpload.FRAME_HEADER_SIZE + asmBlockUpload.MAX_BLOCK_SIZE + asmBlockUpload.FRAME_CRC_SIZE];
+    private final byte[] replyFrame = new byte[3 + asmBlockUpload.MAX_BLOCK_SIZE + asmBlockUpload.FRAME_CRC_SIZE];
+    private final byte[] shortReply = new byte[asmBlockUpload.REPLY_SIZE];
+    private final InputStream in;
+    private final OutputStream out;
+    private int rxBufferSize = 64;
+    private int blockCount = 0;
+    private int byteCount = 0;
+    private boolean uploadComplete = false;
+    private int crcErrorCount = 0;
+    private int gapNakCount = 0;
+    // The sequence number of the next new data frame.
+    private int expectedSequence = 0;
+    // NAKed sequence numbers, a frame is only NAKed once for each time it's sent. Each NAK returns a credit.
+    private final boolean[] isNaked = new boolean[256];
+    private asmTransport transport = null;
+    private int frameTimeout = 50;
+    private int frameTimeoutCount = 0;
+
+    public asmUploadDevice(InputStream in, OutputStream out, byte[] memory) {
+        this.in = in;
+        this.out = out;
+        this.memory = memory;
+    }
+
+    public asmUploadDevice(InputStream in, OutputStream out) {
+        this(in, out, new byte[MEMSIZE]);
+    }
+
+    public asmUploadDevice(asmTransport theTransport) {
+        this(theTransport.getInputStream(), theTransport.getOutputStream());
+        transport = theTransport;
+    }
+
+    // The memory stays the same when the device reconnects, for resuming an upload.
+    public asmUploadDevice(asmTransport theTransport, byte[] memory) {
+        this(theTransport.getInputStream(), theTransport.getOutputStream(), memory);
+        transport = theTransport;
+    }
+
+    // Milliseconds between the bytes of a frame, before the device gives up on the frame, and looks for the next one.
+    // Less than the host's reply timeout, so a frame sent again after a reply timeout isn't read as the rest of a broken frame.
+    public int getFrameTimeout() {
+        return frameTimeout;
+    }
+
+    public void setFrameTimeout(int theFrameTimeout) {
+        frameTimeout = theFrameTimeout;
+    }
+
+    public int getFrameTimeoutCount() {
+        return frameTimeoutCount;
+    }
+
+    public int getRxBufferSize() {
+        return rxBufferSize;
+    }
+
+    public void setRxBufferSize(int theSize) {
+        rxBufferSize = theSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getByteCount() {
+        return byteCount;
+    }
+
+    public boolean isUploadComplete() {
+        return uploadComplete;
+    }
+
+    // -------------------------------------------------------------------------
+    private int readByte() throws IOException {
+        int theByte = in.read();
+        if (theByte < 0) {
+            throw new EOFException("Host closed the connection.");
+        }
+        return theByte;
+    }
+
+    private void reply(int theType, int theValue) throws IOException {
+        out.write(shortReply, 0, asmBlockUpload.buildReply(shortReply, theType, theValue));
+        out.flush();
+    }
+
+    // A data frame arrived with its CRC OK. NAK the sequence numbers that were skipped, because their frames were lost.
+    // Sequence numbers in the half before the expected one are frames sent again, see asmBlockUpload.
+    private void checkSequence(int theSequence) throws IOException {
+        isNaked[theSequence] = false;
+        int theDistance = (theSequence - expectedSequence) & 0xff;
+        if (theDistance >= 128) {
+            return;
+        }
+        for (int i = 0; i < theDistance; i++) {
+            int theGap = (expectedSequence + i) & 0xff;
+            if (!isNaked[theGap]) {
+                nak(theGap);
+                gapNakCount++;
+            }
+        }
+        expectedSequence = (theSequence + 1) & 0xff;
+    }
+
+    private void nak(int theSequence) throws IOException {
+        isNaked[theSequence] = true;
+        reply(asmBlockUpload.FRAME_NAK, theSequence);
+    }
+
+    // Read the rest of a frame into the frame buffer, and check its CRC.
+    private boolean readFrame(int theStart, int theLength) throws IOException {
+        for (int i = theStart; i < theStart + theLength + asmBlockUpload.FRAME_CRC_SIZE; i++) {
+            frame[i] = (byte) readByte();
+        }
+        int theCrc = (frame[theStart + theLength] & 0xff) << 8 | (frame[theStart + theLength + 1] & 0xff);
+        if (theCrc != asmBlockUpload.crc16(frame, 0, theStart + theLength)) {
+            crcErrorCount++;
+            return false;
+        }
+        return true;
+    }
+
+    // Process frames until the host closes the connection.
+    // Frames that fail the CRC check are not used. A data frame that fails is NAKed, so the host sends it again.
+    @Override
+    public void run() {
+        if (transport != null) {
+            transport.setReadTimeout(frameTimeout);
+        }
+        try {
+            while (true) {
+                try {
+                    frame[0] = 0;
+                    int theType = readByte();
+                    frame[0] = (byte) theType;
+                    switch (theType) {
+                        case asmBlockUpload.FRAME_START:
+                            if (readFrame(1, 1)) {
+                                int theBlockSize = frame[1] & 0xff;
+                                // Number of frames that fit in the receive buffer.
+                                int theCredits = Math.max(1, rxBufferSize
+                                        / (asmBlockUpload.FRAME_HEADER_SIZE + theBlockSize + asmBlockUpload.FRAME_CRC_SIZE));
+                                blockCount = 0;
+                                byteCount = 0;
+                                uploadComplete = false;
+                                expectedSequence = 0;
+                                Arrays.fill(isNaked, false);
+                                reply(asmBlockUpload.FRAME_CREDIT, theCredits);
+                            }
+                            break;
+                        case asmBlockUpload.FRAME_DATA:
+                            for (int i = 1; i < asmBlockUpload.FRAME_HEADER_SIZE; i++) {
+                                frame[i] = (byte) readByte();
+                            }
+                            int theLength = frame[4] & 0xff;
+                            if (!readFrame(asmBlockUpload.FRAME_HEADER_SIZE, theLength)) {
+                                nak(frame[1] & 0xff);
+                                break;
+                            }
+                            checkSequence(frame[1] & 0xff);
+                            int theAddress = (frame[2] & 0xff) << 8 | (frame[3] & 0xff);
+                            for (int i = 0; i < theLength; i++) {
+                                memory[(theAddress + i) & 0xffff] = frame[asmBlockUpload.FRAME_HEADER_SIZE + i];
+                            }
+                            blockCount++;
+                            byteCount += theLength;
+                            reply(asmBlockUpload.FRAME_ACK, frame[1] & 0xff);
+                            break;
+                        case asmBlockUpload.FRAME_RECORDS:
+                            for (int i = 1; i < asmBlockUpload.FRAME_HEADER_SIZE; i++) {
+                                frame[i] = (byte) readByte();
+                            }
+                            int theRecordsLength = frame[4] & 0xff;
+                            if (!readFrame(asmBlockUpload.FRAME_HEADER_SIZE, theRecordsLength)) {
+                                nak(frame[1] & 0xff);
+                                break;
+                            }
+                            checkSequence(frame[1] & 0xff);
+                            int theStart = (frame[2] & 0xff) << 8 | (frame[3] & 0xff);
+                            int theDecodedLength = asmUploadEncoding.decode(frame, asmBlockUpload.FRAME_HEADER_SIZE, theRecordsLength, memory, theStart);
+                            if (theDecodedLength < 0) {
+                                nak(frame[1] & 0xff);
+                                break;
+                            }
+                            blockCount++;
+                            byteCount += theDecodedLength;
+                            reply(asmBlockUpload.FRAME_ACK, frame[1] & 0xff);
+                            break;
+                        case asmBlockUpload.FRAME_HASH_REQUEST:
+                        case asmBlockUpload.FRAME_READ_REQUEST:
+                            for (int i = 1; i < asmBlockUpload.FRAME_HEADER_SIZE; i++) {
+                                frame[i] = (byte) readByte();
+                            }
+                            if (!readFrame(asmBlockUpload.FRAME_HEADER_SIZE, 0)) {
+                                reply(asmBlockUpload.FRAME_NAK, frame[1] & 0xff);
+                                break;
+                            }
+                            int theBlockAddress = (frame[2] & 0xff) << 8 | (frame[3] & 0xff);
+                            int theBlockLength = frame[4] & 0xff;
+                            for (int i = 0; i < theBlockLength; i++) {
+                                replyFrame[3 + i] = memory[(theBlockAddress + i) & 0xffff];
+                            }
+                            if (theType == asmBlockUpload.FRAME_HASH_REQUEST) {
+                                int theCrc = asmBlockUpload.crc16(replyFrame, 3, theBlockLength);
+                                out.write(asmBlockUpload.FRAME_HASH);
+                                out.write(frame[1] & 0xff);
+                                out.write(theCrc >> 8);
+                                out.write(theCrc & 0xff);
+                            } else {
+                                replyFrame[0] = (byte) asmBlockUpload.FRAME_MEMORY;
+                                replyFrame[1] = frame[1];
+                                replyFrame[2] = (byte) theBlockLength;
+                                out.write(replyFrame, 0, asmBlockUpload.addCrc(replyFrame, 3 + theBlockLength));
+                            }
+                            out.flush();
+                            break;
+                        case asmBlockUpload.FRAME_END:
+                            if (readFrame(1, 1)) {
+                                uploadComplete = true;
+                                reply(asmBlockUpload.FRAME_ACK, frame[1] & 0xff);
+                            }
+                            break;
+                        default:
+                            // Not a frame type, for example, line noise, or the rest of a frame that lost bytes.
+                            break;
+                    }
+                } catch (InterruptedIOException e) {
+                    // The line is idle, or a frame stopped arriving because it lost bytes. Look for the next frame.
+                    if (frame[0] != 0) {
+                        frameTimeoutCount++;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // The host closed the connection.
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+    }
+
+    public int getCrcErrorCount() {
+        return crcErrorCount;
+    }
+
+    public int getGapNakCount() {
+        return gapNakCount;
+    }
+
+    // Start the device on its own thread.
+    public Thread start() {
+        Thread theThread = new Thread(this, "asmUploadDevice");
+        theThread.setDaemon(true);
+        theThread.start();
+        return theThread;
+    }
+}
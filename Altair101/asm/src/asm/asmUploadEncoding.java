@@ -0,0 +1,258 @@
+/*
+    Run length encoding of memory images, for uploading and loading sparse images.
+
+    Assembled images have long runs of the same byte: org space filler, and zeroed DS areas.
+    The encoding has 2 record types:
+    + Literal : a count byte, 00h to 7Fh, for 1 to 128 bytes, followed by the bytes.
+    + Run     : 2 count bytes, 8000h to FFFFh, for 1 to 32768 bytes, followed by the byte value to repeat.
+    A run is used for 4 or more of the same byte, shorter runs cost less as literals.
+
+    Encoded block upload frames ('R') hold records, decoded starting at the frame's address.
+    Each frame holds whole records, so frames can be decoded in any order, and sent again.
+
+    Encoded files (.rle) hold segments, for images with gaps:
+        "A101RLE1", then for each segment: address (2 bytes), encoded length (2 bytes), the records.
+    The emulator loads encoded files with the same decoder as the loopback device.
+
+ */
+package asm;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class asmUploadEncoding {
+
+    public static final String FILE_EXTENSION = ".rle";
+    private static final String FILE_MAGIC = "A101RLE1";
+    private static final int MAX_LITERAL = 128;
+    private static final int MAX_RUN = 32768;
+    private static final int MIN_RUN = 4;
+    private static final int MAX_SEGMENT = 65535;
+    // A block holds whole records, the smallest block that holds a run record.
+    public static final int MIN_BLOCK_SIZE = 3;
+
+    // Encoded blocks: the encoded bytes, with each block's offset and length, and the device address it decodes to.
+    private byte[] encoded;
+    private int encodedLength = 0;
+    private int[] blockOffset = new int[64];
+    private int[] blockLength = new int[64];
+    private int[] blockAddress = new int[64];
+    private int blockCount = 0;
+
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int[] getBlockOffsets() {
+        return Arrays.copyOf(blockOffset, blockCount);
+    }
+
+    public int[] getBlockLengths() {
+        return Arrays.copyOf(blockLength, blockCount);
+    }
+
+    public int[] getBlockAddresses() {
+        return Arrays.copyOf(blockAddress, blockCount);
+    }
+
+    // -------------------------------------------------------------------------
+    // Length of the run of the same byte, starting at the position.
+    private static int runLength(byte[] theBytes, int thePosition, int theEnd) {
+        int theLength = 1;
+        while (thePosition + theLength < theEnd && theLength < MAX_RUN && theBytes[thePosition + theLength] == theBytes[thePosition]) {
+            theLength++;
+        }
+        return theLength;
+    }
+
+    private void addBlock(int theOffset, int theAddress) {
+        if (blockCount == blockOffset.length) {
+            blockOffset = Arrays.copyOf(blockOffset, blockCount * 2);
+            blockLength = Arrays.copyOf(blockLength, blockCount * 2);
+            blockAddress = Arrays.copyOf(blockAddress, blockCount * 2);
+        }
+        blockOffset[blockCount] = theOffset;
+        blockLength[blockCount] = 0;
+        blockAddress[blockCount] = theAddress & 0xffff;
+        blockCount++;
+    }
+
+    // Encode ranges of the bytes into blocks of at most the block size. The device address of theBytes[i] is: theAddress + i.
+    public void encodeBlocks(byte[] theBytes, int[] rangeOffsets, int[] rangeLengths, int theAddress, int theBlockSize) {
+        if (theBlockSize < MIN_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size is less than " + MIN_BLOCK_SIZE + ": " + theBlockSize);
+        }
+        // Worst case, every byte is a literal, plus a count byte per block.
+        int theMaximum = 0;
+        for (int theRangeLength : rangeLengths) {
+            theMaximum += theRangeLength * 2 + 1;
+        }
+        encoded = new byte[theMaximum];
+        encodedLength = 0;
+        blockCount = 0;
+        for (int r = 0; r < rangeOffsets.length; r++) {
+            if (rangeLengths[r] == 0) {
+                continue;
+            }
+            int thePosition = rangeOffsets[r];
+            int theEnd = rangeOffsets[r] + rangeLengths[r];
+            addBlock(encodedLength, theAddress + thePosition);
+            while (thePosition < theEnd) {
+                int theRoom = theBlockSize - blockLength[blockCount - 1];
+                int theRun = runLength(theBytes, thePosition, theEnd);
+                int theRecordLength;
+                int theDecodedLength;
+                if (theRun >= MIN_RUN) {
+                    if (theRoom < 3) {
+                        addBlock(encodedLength, theAddress + thePosition);
+                        continue;
+                    }
+                    int theCount = theRun - 1;
+                    encoded[encodedLength] = (byte) (0x80 | theCount >> 8);
+                    encoded[encodedLength + 1] = (byte) theCount;
+                    encoded[encodedLength + 2] = theBytes[thePosition];
+                    theRecordLength = 3;
+                    theDecodedLength = theRun;
+                } else {
+                    if (theRoom < 2) {
+                        addBlock(encodedLength, theAddress + thePosition);
+                        continue;
+                    }
+                    // Literal bytes, up to the next run, the end of the range, or the room in the block.
+                    int theLength = 0;
+                    int theLimit = Math.min(MAX_LITERAL, theRoom - 1);
+                    while (theLength < theLimit && thePosition + theLength < theEnd
+                            && runLength(theBytes, thePosition + theLength, theEnd) < MIN_RUN) {
+                        theLength++;
+                    }
+                    encoded[encodedLength] = (byte) (theLength - 1);
+                    System.arraycopy(theBytes, thePosition, encoded, encodedLength + 1, theLength);
+                    theRecordLength = theLength + 1;
+                    theDecodedLength = theLength;
+                }
+                encodedLength += theRecordLength;
+                blockLength[blockCount - 1] += theRecordLength;
+                thePosition += theDecodedLength;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // The number of bytes the records decode to, or -1 if a record runs past the end of the records.
+    private static int decodedLength(byte[] theRecords, int theOffset, int theLength) {
+        int theDecodedLength = 0;
+        int thePosition = theOffset;
+        int theEnd = theOffset + theLength;
+        if (theOffset < 0 || theLength < 0 || theEnd > theRecords.length) {
+            return -1;
+        }
+        while (thePosition < theEnd) {
+            int theCount = theRecords[thePosition] & 0xff;
+            if (theCount < 0x80) {
+                thePosition += theCount + 2;
+                theDecodedLength += theCount + 1;
+            } else {
+                if (thePosition + 3 > theEnd) {
+                    return -1;
+                }
+                thePosition += 3;
+                theDecodedLength += ((theCount & 0x7f) << 8 | (theRecords[thePosition - 2] & 0xff)) + 1;
+            }
+        }
+        return thePosition == theEnd ? theDecodedLength : -1;
+    }
+
+    // Decode records into memory, starting at the address, wrapping at 64K.
+    // Returns the number of decoded bytes, or -1 if the records aren't valid, and then memory isn't changed.
+    public static int decode(byte[] theRecords, int theOffset, int theLength, byte[] theMemory, int theAddress) {
+        int theDecodedLength = decodedLength(theRecords, theOffset, theLength);
+        if (theDecodedLength < 0) {
+            return -1;
+        }
+        int thePosition = theOffset;
+        int theEnd = theOffset + theLength;
+        while (thePosition < theEnd) {
+            int theCount = theRecords[thePosition] & 0xff;
+            if (theCount < 0x80) {
+                for (int i = 0; i <= theCount; i++) {
+                    theMemory[theAddress & 0xffff] = theRecords[thePosition + 1 + i];
+                    theAddress++;
+                }
+                thePosition += theCount + 2;
+            } else {
+                theCount = ((theCount & 0x7f) << 8 | (theRecords[thePosition + 1] & 0xff)) + 1;
+                byte theValue = theRecords[thePosition + 2];
+                for (int i = 0; i < theCount; i++) {
+                    theMemory[theAddress & 0xffff] = theValue;
+                    theAddress++;
+                }
+                thePosition += 3;
+            }
+        }
+        return theDecodedLength;
+    }
+
+    // -------------------------------------------------------------------------
+    // Write an encoded file of the bytes, starting at address 0.
+    public static int writeFile(byte[] theBytes, int theLength, String theFilename) {
+        asmUploadEncoding theEncoding = new asmUploadEncoding();
+        theEncoding.encodeBlocks(theBytes, new int[]{0}, new int[]{theLength}, 0, MAX_SEGMENT);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(theFilename))) {
+            out.write(FILE_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < theEncoding.blockCount; i++) {
+                out.writeShort(theEncoding.blockAddress[i]);
+                out.writeShort(theEncoding.blockLength[i]);
+                out.write(theEncoding.encoded, theEncoding.blockOffset[i], theEncoding.blockLength[i]);
+            }
+            return out.size();
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return 0;
+        }
+    }
+
+    // Decode the segments of an encoded file into memory.
+    // Returns the number of decoded bytes, or -1 if not an encoded file, or a segment isn't valid.
+    public static int decodeFile(byte[] theFile, byte[] theMemory) {
+        ByteBuffer theBuffer = ByteBuffer.wrap(theFile);
+        byte[] theMagic = new byte[FILE_MAGIC.length()];
+        if (theBuffer.remaining() < theMagic.length) {
+            return -1;
+        }
+        theBuffer.get(theMagic);
+        if (!FILE_MAGIC.equals(new String(theMagic, StandardCharsets.US_ASCII))) {
+            return -1;
+        }
+        int theCount = 0;
+        while (theBuffer.hasRemaining()) {
+            if (theBuffer.remaining() < 4) {
+                return -1;
+            }
+            int theAddress = theBuffer.getShort() & 0xffff;
+            int theLength = theBuffer.getShort() & 0xffff;
+            if (theLength > theBuffer.remaining()) {
+                return -1;
+            }
+            int theDecodedLength = decode(theFile, theBuffer.position(), theLength, theMemory, theAddress);
+            if (theDecodedLength < 0) {
+                return -1;
+            }
+            theCount += theDecodedLength;
+            theBuffer.position(theBuffer.position() + theLength);
+        }
+        return theCount;
+    }
+}
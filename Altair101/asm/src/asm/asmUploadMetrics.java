@@ -0,0 +1,244 @@
+/*
+    Upload metrics: what the serial link achieved during an upload.
+
+    Tuning the baud rate, the block size, and the byte and line sleep times is guesswork without measurements.
+    An upload records:
+    + Bytes       : program bytes, and bytes written to the line, which includes frame headers, CRCs, and frames sent again.
+    + Throughput  : program bytes per second, compared to the nominal rate of the baud rate,
+                    10 bits per byte: a start bit, 8 data bits, and a stop bit.
+    + Blocks      : the time from first sending a block to its ACK, frames sent again, and reply timeouts.
+    + ACK latency : a histogram of the round trip time, from the last send of a frame to its ACK.
+    + Stall time  : time the upload had bytes to send, but wasn't writing.
+                    Block upload: waiting for an ACK with no credits left. Byte upload: the sleep times between writes.
+
+    When the Java runtime has Flight Recorder (jdk.jfr, Java 11, and Java 8 from update 262),
+    and the build compiled src-jfr/asm/asmUploadEvents.java,
+    the metrics are also recorded as Flight Recorder events, see asmUploadEvents:
+        java -XX:StartFlightRecording=filename=upload.jfr -cp ... asm.asm
+        jfr print --events asm.Upload,asm.UploadBlock upload.jfr
+
+ */
+package asm;
+
+import java.io.PrintStream;
+
+public class asmUploadMetrics {
+
+    // Histogram bucket upper limits, in milliseconds. The last bucket holds the longer round trips.
+    private static final int[] LATENCY_LIMITS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000};
+    private static final int HISTOGRAM_WIDTH = 40;
+    private static final int SEQUENCES = 256;
+    private static final Recorder RECORDER = loadRecorder();
+
+    private final String portName;
+    private final int baudRate;
+    private long startNanos = 0;
+    private long endNanos = 0;
+    private long byteCount = 0;
+    private long lineByteCount = 0;
+    private int blockCount = 0;
+    private int retransmitCount = 0;
+    private int timeoutCount = 0;
+    private long stallNanos = 0;
+    private long blockNanos = 0;
+    private long minBlockNanos = Long.MAX_VALUE;
+    private long maxBlockNanos = 0;
+    private final int[] latencyCounts = new int[LATENCY_LIMITS.length + 1];
+    private int latencyCount = 0;
+    private long latencyNanos = 0;
+    private long maxLatencyNanos = 0;
+    // Per sequence number: when the frame was first sent, and last sent.
+    private final long[] firstSentNanos = new long[SEQUENCES];
+    private final long[] lastSentNanos = new long[SEQUENCES];
+
+    public asmUploadMetrics(String thePortName, int theBaudRate) {
+        portName = thePortName;
+        baudRate = theBaudRate;
+    }
+
+    // Implemented by asmUploadEvents, which is only compiled when the JDK has jdk.jfr.
+    interface Recorder {
+
+        void commitUpload(asmUploadMetrics theMetrics);
+
+        void commitBlock(String thePortName, int theSequence, int theBlock, int theAddress, int theRetries,
+                long theRoundTrip, long theBlockTime);
+    }
+
+    // The Flight Recorder events, or null if the runtime doesn't have jdk.jfr, or the build didn't compile them.
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("asm.asmUploadEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public static boolean isFlightRecorder() {
+        return RECORDER != null;
+    }
+
+    // -------------------------------------------------------------------------
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    public void end(long theByteCount) {
+        endNanos = System.nanoTime();
+        byteCount = theByteCount;
+        if (RECORDER != null) {
+            RECORDER.commitUpload(this);
+        }
+    }
+
+    // Bytes written to the line, without a frame sequence number. For example, byte upload writes, and control frames.
+    public void written(int theLength) {
+        lineByteCount += theLength;
+    }
+
+    public void frameSent(int theSequence, int theLength) {
+        long theNanos = System.nanoTime();
+        firstSentNanos[theSequence] = theNanos;
+        lastSentNanos[theSequence] = theNanos;
+        lineByteCount += theLength;
+        blockCount++;
+    }
+
+    public void frameResent(int theSequence, int theLength) {
+        lastSentNanos[theSequence] = System.nanoTime();
+        lineByteCount += theLength;
+        retransmitCount++;
+    }
+
+    public void controlResent(int theLength) {
+        lineByteCount += theLength;
+        retransmitCount++;
+    }
+
+    public void timeout() {
+        timeoutCount++;
+    }
+
+    public void stalled(long theNanos) {
+        stallNanos += theNanos;
+    }
+
+    public void frameAcked(int theSequence, int theBlock, int theAddress, int theRetries) {
+        long theNanos = System.nanoTime();
+        long theLatency = theNanos - lastSentNanos[theSequence];
+        long theBlockNanos = theNanos - firstSentNanos[theSequence];
+        blockNanos += theBlockNanos;
+        minBlockNanos = Math.min(minBlockNanos, theBlockNanos);
+        maxBlockNanos = Math.max(maxBlockNanos, theBlockNanos);
+        latencyCount++;
+        latencyNanos += theLatency;
+        maxLatencyNanos = Math.max(maxLatencyNanos, theLatency);
+        int theBucket = 0;
+        while (theBucket < LATENCY_LIMITS.length && theLatency >= LATENCY_LIMITS[theBucket] * 1000000L) {
+            theBucket++;
+        }
+        latencyCounts[theBucket]++;
+        if (RECORDER != null) {
+            RECORDER.commitBlock(portName, theSequence, theBlock, theAddress, theRetries, theLatency, theBlockNanos);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public String getPortName() {
+        return portName;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public long getNanos() {
+        return endNanos - startNanos;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getLineByteCount() {
+        return lineByteCount;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    public int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getStallNanos() {
+        return stallNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    public long getAverageLatencyNanos() {
+        return latencyCount > 0 ? latencyNanos / latencyCount : 0;
+    }
+
+    public long getAverageBlockNanos() {
+        return latencyCount > 0 ? blockNanos / latencyCount : 0;
+    }
+
+    public double getBytesPerSecond() {
+        long theNanos = getNanos();
+        return theNanos > 0 ? byteCount * 1e9 / theNanos : 0;
+    }
+
+    // 10 bits per byte on the line.
+    public double getNominalBytesPerSecond() {
+        return baudRate / 10.0;
+    }
+
+    // -------------------------------------------------------------------------
+    public void printSummary(PrintStream out) {
+        double theSeconds = getNanos() / 1e9;
+        double theNominal = getNominalBytesPerSecond();
+        out.println(String.format("+ Uploaded %d bytes, %d bytes on the line, %.3f seconds, %.0f bytes/second,"
+                + " %.1f%% of %.0f bytes/second at %d baud.",
+                byteCount, lineByteCount, theSeconds, getBytesPerSecond(),
+                theNominal > 0 ? getBytesPerSecond() * 100 / theNominal : 0, theNominal, baudRate));
+        if (lineByteCount != byteCount && theSeconds > 0) {
+            out.println(String.format("++ Line use: %.1f%% of the nominal rate, including frames and bytes sent again.",
+                    lineByteCount / theSeconds * 100 / theNominal));
+        }
+        out.println(String.format("++ Stalled: %.3f seconds, %.1f%% of the upload.",
+                stallNanos / 1e9, getNanos() > 0 ? stallNanos * 100.0 / getNanos() : 0));
+        if (latencyCount == 0) {
+            return;
+        }
+        out.println(String.format("++ Blocks: %d, sent again: %d, reply timeouts: %d, ms per block: %.2f average, %.2f min, %.2f max.",
+                blockCount, retransmitCount, timeoutCount, getAverageBlockNanos() / 1e6, minBlockNanos / 1e6, maxBlockNanos / 1e6));
+        out.println(String.format("++ ACK round trip, ms: %.2f average, %.2f max.",
+                getAverageLatencyNanos() / 1e6, maxLatencyNanos / 1e6));
+        int theMaxCount = 0;
+        for (int theCount : latencyCounts) {
+            theMaxCount = Math.max(theMaxCount, theCount);
+        }
+        for (int i = 0; i < latencyCounts.length; i++) {
+            if (latencyCounts[i] == 0) {
+                continue;
+            }
+            String theLabel = i < LATENCY_LIMITS.length ? "< " + LATENCY_LIMITS[i] : ">= " + LATENCY_LIMITS[i - 1];
+            int theWidth = Math.max(1, latencyCounts[i] * HISTOGRAM_WIDTH / theMaxCount);
+            out.println(String.format("++ %7s ms %6d %s", theLabel, latencyCounts[i], new String(new char[theWidth]).replace('\0', '#')));
+        }
+    }
+
+    public void printSummary() {
+        printSummary(System.out);
+    }
+}
@@ -0,0 +1,342 @@
+/*
+    Pipelined upload of a program file, so printing the echo doesn't slow the writes to the serial port.
+
+    Stages, each on its own thread, connected by bounded queues:
+    + Reader   : reads the file in chunks.
+    + Encoder  : splits the chunks into writes, with the sleep time after each write.
+                 With a byte sleep time, each byte is a write. Without, the bytes up to a newline are one write.
+    + Writer   : writes to the serial port, then sleeps, the same pacing as the byte at a time upload.
+    + Reporter : prints the echo of the bytes written, and once a second, the bytes/second and the time remaining.
+
+    The writer doesn't wait for the reporter. If the terminal is slower than the upload,
+    the echo queue fills, and the echo of the next writes is skipped and counted, rather than slowing the upload.
+
+ */
+package asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class asmUploadPipeline {
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int QUEUE_SIZE = 16;
+    private static final int ECHO_QUEUE_SIZE = 64;
+    private static final int MAX_WRITE_SIZE = 64;
+    private static final int REPORT_INTERVAL = 1000;
+    private static final byte[] END_CHUNK = new byte[0];
+    private static final Write END_WRITE = new Write(END_CHUNK, 0);
+
+    // Bytes to write, and the milliseconds to sleep after writing them.
+    private static class Write {
+
+        final byte[] bytes;
+        final int sleepTime;
+
+        Write(byte[] bytes, int sleepTime) {
+            this.bytes = bytes;
+            this.sleepTime = sleepTime;
+        }
+    }
+
+    private final OutputStream out;
+    private final long totalLength;
+    private final boolean printBinary;
+    private final PrintStream echo;
+    private final int sleepTime;
+    private final int sleepTimeCr;
+    private final BlockingQueue<byte[]> chunkQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Write> writeQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<byte[]> echoQueue = new ArrayBlockingQueue<>(ECHO_QUEUE_SIZE);
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong echoSkippedCount = new AtomicLong();
+    private volatile boolean writeDone = false;
+    private volatile IOException failure = null;
+    private long startTime = 0;
+    private long endTime = 0;
+    private final asmUploadMetrics metrics = new asmUploadMetrics(asmUpload.getSerialPortName(), asmUpload.getBaudRate());
+
+    // Echo column for binary echo, and whether the text echo is at the start of a line.
+    private int echoColumn = 0;
+    private boolean isLineStart = true;
+    private int lastEchoByte = 0;
+
+    public asmUploadPipeline(OutputStream out, long theLength, boolean printBinary, PrintStream theEcho) {
+        this.out = out;
+        this.totalLength = theLength;
+        this.printBinary = printBinary;
+        this.echo = theEcho;
+        this.sleepTime = asmUpload.getBaudSleepTime();
+        this.sleepTimeCr = asmUpload.getBaudSleepTimeCr();
+    }
+
+    public asmUploadPipeline(OutputStream out, long theLength, boolean printBinary) {
+        this(out, theLength, printBinary, System.out);
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getEchoSkippedCount() {
+        return echoSkippedCount.get();
+    }
+
+    public long getMillis() {
+        return endTime - startTime;
+    }
+
+    // The metrics, after the upload. The stall time is the sleep times, and waiting for the encoder.
+    public asmUploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static boolean isNewline(int theByte) {
+        return theByte == 10 || theByte == 13;
+    }
+
+    // -------------------------------------------------------------------------
+    // Reader stage: read chunks until the end of the input, then the end marker.
+    private void read(InputStream in) {
+        try {
+            while (true) {
+                byte[] theChunk = new byte[CHUNK_SIZE];
+                int theCount = in.read(theChunk);
+                if (theCount < 0) {
+                    break;
+                }
+                if (theCount > 0) {
+                    chunkQueue.put(theCount == CHUNK_SIZE ? theChunk : Arrays.copyOf(theChunk, theCount));
+                }
+            }
+            chunkQueue.put(END_CHUNK);
+        } catch (IOException ioe) {
+            failure = ioe;
+            // Wait for room, the encoder only stops at the end marker.
+            try {
+                chunkQueue.put(END_CHUNK);
+            } catch (InterruptedException e) {
+                // The upload stopped.
+            }
+        } catch (InterruptedException e) {
+            // The upload stopped.
+        }
+    }
+
+    // Encoder stage: split the chunks into paced writes.
+    private void encode() {
+        try {
+            byte[] thePending = new byte[MAX_WRITE_SIZE];
+            int pendingCount = 0;
+            byte[] theChunk = chunkQueue.take();
+            while (theChunk != END_CHUNK) {
+                for (byte theByte : theChunk) {
+                    int theSleep = isNewline(theByte) ? sleepTimeCr : 0;
+                    if (sleepTime > 0) {
+                        writeQueue.put(new Write(new byte[]{theByte}, sleepTime + theSleep));
+                        continue;
+                    }
+                    thePending[pendingCount++] = theByte;
+                    if (isNewline(theByte) || pendingCount == MAX_WRITE_SIZE) {
+                        writeQueue.put(new Write(Arrays.copyOf(thePending, pendingCount), theSleep));
+                        pendingCount = 0;
+                    }
+                }
+                theChunk = chunkQueue.take();
+            }
+            if (pendingCount > 0) {
+                writeQueue.put(new Write(Arrays.copyOf(thePending, pendingCount), 0));
+            }
+            writeQueue.put(END_WRITE);
+        } catch (InterruptedException e) {
+            // The upload stopped.
+        }
+    }
+
+    // Writer stage: write to the serial port, and hand the bytes to the reporter, without waiting for it.
+    private void write() {
+        try {
+            Write theWrite = writeQueue.take();
+            while (theWrite != END_WRITE) {
+                out.write(theWrite.bytes);
+                out.flush();
+                metrics.written(theWrite.bytes.length);
+                sentCount.addAndGet(theWrite.bytes.length);
+                if (!echoQueue.offer(theWrite.bytes)) {
+                    echoSkippedCount.addAndGet(theWrite.bytes.length);
+                }
+                long theStallTime = System.nanoTime();
+                if (theWrite.sleepTime > 0) {
+                    Thread.sleep(theWrite.sleepTime);
+                }
+                theWrite = writeQueue.take();
+                metrics.stalled(System.nanoTime() - theStallTime);
+            }
+        } catch (IOException ioe) {
+            failure = ioe;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Upload interrupted.");
+        }
+        endTime = System.currentTimeMillis();
+        metrics.end(sentCount.get());
+        writeDone = true;
+    }
+
+    // -------------------------------------------------------------------------
+    // Reporter stage: print the echo, and the progress once each report interval.
+    private void report() {
+        long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+        try {
+            while (!writeDone || !echoQueue.isEmpty()) {
+                byte[] theBytes = echoQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (theBytes != null) {
+                    printEcho(theBytes);
+                }
+                if (!writeDone && System.currentTimeMillis() >= nextReport && (printBinary || isLineStart)) {
+                    printProgress();
+                    nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The upload stopped.
+        }
+        if (echoColumn > 0 || !isLineStart || lastEchoByte == 13) {
+            echo.println("");
+        }
+        echo.flush();
+    }
+
+    private void printEcho(byte[] theBytes) {
+        for (byte theByte : theBytes) {
+            if (printBinary) {
+                // Print bytes in binary format.
+                if (echoColumn == 10) {
+                    echoColumn = 0;
+                    echo.println("");
+                }
+                echoColumn++;
+                echo.print(asmUpload.byteToString(theByte) + " ");
+            } else {
+                // Print text to screen, such as a Basic program.
+                echo.write(theByte);
+                isLineStart = isNewline(theByte);
+                lastEchoByte = theByte;
+            }
+        }
+        echo.flush();
+    }
+
+    private void printProgress() {
+        if (echoColumn > 0 || lastEchoByte == 13) {
+            // A CR on its own doesn't start a new line on the terminal.
+            echoColumn = 0;
+            lastEchoByte = 0;
+            echo.println("");
+        }
+        long theSent = sentCount.get();
+        long theMillis = Math.max(1, System.currentTimeMillis() - startTime);
+        long theRate = theSent * 1000 / theMillis;
+        String theEta = theRate > 0 ? String.format("%.1f", (totalLength - theSent) / (double) theRate) : "?";
+        echo.println("++ Sent " + theSent + " of " + totalLength + " bytes, " + theRate + " bytes/second, seconds remaining: " + theEta);
+        isLineStart = true;
+    }
+
+    // -------------------------------------------------------------------------
+    // Upload the input through the pipeline. Returns when the last byte is written, or on an error.
+    public void upload(InputStream in) throws IOException {
+        startTime = System.currentTimeMillis();
+        metrics.start();
+        Thread theReader = startStage("asmUploadReader", () -> read(in));
+        Thread theEncoder = startStage("asmUploadEncoder", this::encode);
+        Thread theWriter = startStage("asmUploadWriter", this::write);
+        Thread theReporter = startStage("asmUploadReporter", this::report);
+        try {
+            theWriter.join();
+            // If the writer failed, the reader and encoder may be waiting on full queues.
+            theReader.interrupt();
+            theEncoder.interrupt();
+            theReporter.join();
+        } catch (InterruptedException e) {
+            theReader.interrupt();
+            theEncoder.interrupt();
+            theWriter.interrupt();
+            theReporter.interrupt();
+            throw new InterruptedIOException("Upload interrupted.");
+        }
+        if (echoSkippedCount.get() > 0) {
+            echo.println("+ Echo skipped for " + echoSkippedCount.get() + " bytes, the terminal was slower than the upload.");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static Thread startStage(String theName, Runnable theStage) {
+        Thread theThread = new Thread(theStage, theName);
+        theThread.setDaemon(true);
+        theThread.start();
+        return theThread;
+    }
+
+    // Upload the bytes from the buffer's position to its limit. The buffer's position isn't changed.
+    public void upload(ByteBuffer theImage) throws IOException {
+        if (theImage.hasArray()) {
+            upload(new ByteArrayInputStream(theImage.array(), theImage.arrayOffset() + theImage.position(), theImage.remaining()));
+            return;
+        }
+        byte[] theBytes = new byte[theImage.remaining()];
+        theImage.duplicate().get(theBytes);
+        upload(new ByteArrayInputStream(theBytes));
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: upload a Basic program through a pipe, echoing to a slow terminal.
+    // The upload time stays the time of the line, not the time of the terminal.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.out.println("+++ Start.");
+        StringBuilder theProgram = new StringBuilder();
+        for (int i = 1; i <= 400; i++) {
+            theProgram.append(i * 10).append(" PRINT \"HELLO, LINE ").append(i).append("\"\r");
+        }
+        byte[] theBytes = theProgram.toString().getBytes();
+        // A terminal that takes 2 milliseconds for each write.
+        PrintStream theSlowTerminal = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int theByte) {
+                write(new byte[]{(byte) theByte}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] theBytes, int theOffset, int theLength) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.out.write(theBytes, theOffset, theLength);
+            }
+        }, true);
+        asmUpload.setBaudSleepTime(0);
+        asmUpload.setBaudSleepTimeCr(0);
+        asmPipeTransport thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate(), theBytes.length);
+        asmUploadPipeline thePipeline = new asmUploadPipeline(thePipe.getOutputStream(), theBytes.length, false, theSlowTerminal);
+        thePipeline.upload(new ByteArrayInputStream(theBytes));
+        long theReceived = thePipe.getPeer().getRxLine().getReceivedCount();
+        thePipe.close();
+        System.out.println("+ Sent " + thePipeline.getSentCount() + " bytes, received " + theReceived + ", in "
+                + thePipeline.getMillis() / 1000.0 + " seconds, line time at " + asmUpload.getBaudRate() + " baud: "
+                + String.format("%.3f", theBytes.length * 10.0 / asmUpload.getBaudRate()) + " seconds.");
+        thePipeline.getMetrics().printSummary();
+        System.out.println("\n+++ Exit.\n");
+    }
+}
@@ -0,0 +1,291 @@
+/*
+    Verify the device memory matches a machine code file, without reading all the memory back over the serial port.
+
+    The image is split into verify blocks of up to 255 bytes.
+    For each block, the host asks the device for the CRC-16 of its memory, the same CRC as the upload frames,
+    and compares it with the CRC of the image block. Only the blocks that don't match are read back in full,
+    to print the addresses that differ. The blocks that differ can then be uploaded again.
+    For an 8K program, that's 33 short requests and replies, instead of 8K bytes.
+
+    Frames, host to device, see asmBlockUpload:
+        'V' <sequence> <address high> <address low> <length> <CRC>      Request the CRC of a block of memory.
+        'Q' <sequence> <address high> <address low> <length> <CRC>      Request a block of memory.
+    Replies, device to host:
+        'H' <sequence> <CRC high> <CRC low>
+        'M' <sequence> <length> <length memory bytes> <CRC>
+        16h 'N' <sequence> <CRC>                                        The request failed its CRC check.
+    A request without a good reply within the reply timeout, is sent again.
+
+ */
+package asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+public class asmUploadVerify {
+
+    public static final int VERIFY_BLOCK_SIZE = asmBlockUpload.MAX_BLOCK_SIZE;
+    public static final int REQUEST_SIZE = asmBlockUpload.FRAME_HEADER_SIZE + asmBlockUpload.FRAME_CRC_SIZE;
+    private static final int MAX_RETRIES = 10;
+    private static final int MAX_PRINTED_DIFFERENCES = 8;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] request = new byte[REQUEST_SIZE];
+    private final byte[] reply = new byte[3 + VERIFY_BLOCK_SIZE + asmBlockUpload.FRAME_CRC_SIZE];
+    private int sequence = 0;
+    private int hashCount = 0;
+    private int readCount = 0;
+    private int retryCount = 0;
+
+    public asmUploadVerify(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    public asmUploadVerify(asmTransport theTransport) {
+        this(theTransport.getInputStream(), theTransport.getOutputStream());
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public int getReadCount() {
+        return readCount;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    // -------------------------------------------------------------------------
+    private int readByte() throws IOException {
+        int theByte = in.read();
+        if (theByte < 0) {
+            throw new IOException("Device closed the connection.");
+        }
+        return theByte;
+    }
+
+    // Send a request, and read its reply into the reply buffer. Other bytes, and replies to earlier requests, are skipped.
+    // Returns false for a NAK, or a reply that fails its CRC check.
+    private boolean sendRequest(int theType, int theAddress, int theLength) throws IOException {
+        sequence = (sequence + 1) & 0xff;
+        request[0] = (byte) theType;
+        request[1] = (byte) sequence;
+        request[2] = (byte) (theAddress >> 8);
+        request[3] = (byte) theAddress;
+        request[4] = (byte) theLength;
+        asmBlockUpload.addCrc(request, asmBlockUpload.FRAME_HEADER_SIZE);
+        out.write(request);
+        out.flush();
+        int theReplyType = theType == asmBlockUpload.FRAME_HASH_REQUEST ? asmBlockUpload.FRAME_HASH : asmBlockUpload.FRAME_MEMORY;
+        while (true) {
+            int theByte = readByte();
+            if (theByte == asmBlockUpload.REPLY_SYNC) {
+                for (int i = 1; i < asmBlockUpload.REPLY_SIZE; i++) {
+                    reply[i] = (byte) readByte();
+                }
+                if (asmBlockUpload.isReply(reply) && reply[1] == asmBlockUpload.FRAME_NAK && (reply[2] & 0xff) == sequence) {
+                    return false;
+                }
+                continue;
+            }
+            if (theByte != theReplyType) {
+                continue;
+            }
+            reply[0] = (byte) theByte;
+            reply[1] = (byte) readByte();
+            if ((reply[1] & 0xff) != sequence) {
+                continue;
+            }
+            if (theByte == asmBlockUpload.FRAME_HASH) {
+                reply[2] = (byte) readByte();
+                reply[3] = (byte) readByte();
+                return true;
+            }
+            reply[2] = (byte) readByte();
+            int theReplyLength = reply[2] & 0xff;
+            if (theReplyLength != theLength) {
+                return false;
+            }
+            for (int i = 3; i < 3 + theReplyLength + asmBlockUpload.FRAME_CRC_SIZE; i++) {
+                reply[i] = (byte) readByte();
+            }
+            int theCrc = (reply[3 + theReplyLength] & 0xff) << 8 | (reply[4 + theReplyLength] & 0xff);
+            return theCrc == asmBlockUpload.crc16(reply, 0, 3 + theReplyLength);
+        }
+    }
+
+    private void sendRequestWithRetries(int theType, int theAddress, int theLength) throws IOException {
+        for (int theTry = 0; theTry <= MAX_RETRIES; theTry++) {
+            try {
+                if (sendRequest(theType, theAddress, theLength)) {
+                    return;
+                }
+            } catch (InterruptedIOException e) {
+                // No reply within the reply timeout.
+            }
+            retryCount++;
+        }
+        throw new IOException(String.format("No reply from the device for address %04X, after %d retries.", theAddress, MAX_RETRIES));
+    }
+
+    // The CRC-16 of a block of device memory.
+    public int requestHash(int theAddress, int theLength) throws IOException {
+        sendRequestWithRetries(asmBlockUpload.FRAME_HASH_REQUEST, theAddress, theLength);
+        hashCount++;
+        return (reply[2] & 0xff) << 8 | (reply[3] & 0xff);
+    }
+
+    // Read a block of device memory into the bytes.
+    public void readBlock(int theAddress, int theLength, byte[] theBytes, int theOffset) throws IOException {
+        sendRequestWithRetries(asmBlockUpload.FRAME_READ_REQUEST, theAddress, theLength);
+        readCount++;
+        System.arraycopy(reply, 3, theBytes, theOffset, theLength);
+    }
+
+    // -------------------------------------------------------------------------
+    // Compare the device memory with the bytes. The device address of theBytes[theOffset] is theAddress.
+    // Returns the blocks that differ: {offsets, lengths}, offsets into theBytes. Prints the differences.
+    public int[][] verify(byte[] theBytes, int theOffset, int theLength, int theAddress) throws IOException {
+        int theBlocks = (theLength + VERIFY_BLOCK_SIZE - 1) / VERIFY_BLOCK_SIZE;
+        int[] theOffsets = new int[theBlocks];
+        int[] theLengths = new int[theBlocks];
+        int theCount = 0;
+        byte[] theDevice = new byte[VERIFY_BLOCK_SIZE];
+        for (int thePosition = 0; thePosition < theLength; thePosition += VERIFY_BLOCK_SIZE) {
+            int theBlockLength = Math.min(VERIFY_BLOCK_SIZE, theLength - thePosition);
+            int theBlockAddress = (theAddress + thePosition) & 0xffff;
+            int theCrc = asmBlockUpload.crc16(theBytes, theOffset + thePosition, theBlockLength);
+            if (requestHash(theBlockAddress, theBlockLength) == theCrc) {
+                continue;
+            }
+            readBlock(theBlockAddress, theBlockLength, theDevice, 0);
+            int theDifferences = 0;
+            for (int i = 0; i < theBlockLength; i++) {
+                if (theDevice[i] != theBytes[theOffset + thePosition + i]) {
+                    if (theDifferences < MAX_PRINTED_DIFFERENCES) {
+                        System.out.println(String.format("++ Address %04X, device: %02X, file: %02X",
+                                (theBlockAddress + i) & 0xffff, theDevice[i] & 0xff, theBytes[theOffset + thePosition + i] & 0xff));
+                    }
+                    theDifferences++;
+                }
+            }
+            if (theDifferences == 0) {
+                // The CRC reply has no CRC of its own, line noise changed it. The block read back has a CRC, and matches.
+                continue;
+            }
+            if (theDifferences > MAX_PRINTED_DIFFERENCES) {
+                System.out.println("++ ... and " + (theDifferences - MAX_PRINTED_DIFFERENCES) + " more in the block.");
+            }
+            theOffsets[theCount] = theOffset + thePosition;
+            theLengths[theCount] = theBlockLength;
+            theCount++;
+        }
+        int[][] theRanges = new int[2][theCount];
+        System.arraycopy(theOffsets, 0, theRanges[0], 0, theCount);
+        System.arraycopy(theLengths, 0, theRanges[1], 0, theCount);
+        return theRanges;
+    }
+
+    // -------------------------------------------------------------------------
+    // Verify the device memory matches a machine code file, starting at address 0.
+    // Optionally, upload the blocks that differ, then verify them again.
+    public static void verifyFile(String theReadFilename, boolean doFix) {
+        byte[] theBytes;
+        try {
+            theBytes = Files.readAllBytes(new File(theReadFilename).toPath());
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+            return;
+        }
+        asmTransport theTransport = asmUpload.openTransport();
+        if (theTransport == null) {
+            return;
+        }
+        theTransport.setReadTimeout(asmBlockUpload.getReplyTimeout());
+        System.out.println("+ Serial port is open.");
+        System.out.println("+ Verify the device memory, number of bytes: " + theBytes.length + ", file: " + theReadFilename);
+        asmUploadVerify theVerify = new asmUploadVerify(theTransport);
+        try {
+            long startTime = System.currentTimeMillis();
+            int[][] theRanges = theVerify.verify(theBytes, 0, theBytes.length, 0);
+            System.out.println("+ Blocks verified: " + theVerify.getHashCount() + ", blocks that differ: " + theRanges[0].length
+                    + ", requests sent again: " + theVerify.getRetryCount() + ", seconds: " + (System.currentTimeMillis() - startTime) / 1000.0);
+            if (theRanges[0].length > 0 && doFix) {
+                System.out.println("+ Upload the blocks that differ.");
+                asmBlockUpload theUpload = new asmBlockUpload(theTransport);
+                asmUploadDelta.clearHashes(asmUpload.getSerialPortName());
+                int theChangedCount = 0;
+                for (int theRangeLength : theRanges[1]) {
+                    theChangedCount += theRangeLength;
+                }
+                theUpload.uploadRanges(theBytes, theRanges[0], theRanges[1], 0, 0);
+                theUpload.printSummary();
+                int theDifferentCount = 0;
+                for (int i = 0; i < theRanges[0].length; i++) {
+                    theDifferentCount += theVerify.verify(theBytes, theRanges[0][i], theRanges[1][i], theRanges[0][i])[0].length;
+                }
+                theRanges[0] = new int[theDifferentCount];
+            }
+            if (theRanges[0].length == 0) {
+                System.out.println("+ Device memory matches the file.");
+                asmUploadDelta.saveHashes(asmUpload.getSerialPortName(), theBytes, theBytes.length);
+            } else {
+                System.out.println("- Error, device memory doesn't match the file.");
+            }
+        } catch (IOException ioe) {
+            System.out.print("+ *** IOException: ");
+            System.out.println(ioe.toString());
+        }
+        asmUpload.closeTransport(theTransport);
+    }
+
+    // -------------------------------------------------------------------------
+    // For testing: upload, change bytes in the device memory, verify, upload the blocks that differ, and verify again.
+    public static void main(String[] args) throws IOException {
+        System.out.println("+++ Start.");
+        byte[] theBytes = new byte[8192];
+        for (int i = 0; i < theBytes.length; i++) {
+            theBytes[i] = (byte) (i * 5);
+        }
+        byte[] theMemory = new byte[65536];
+        asmPipeTransport thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        new asmUploadDevice(thePipe.getPeer(), theMemory).start();
+        thePipe.setReadTimeout(asmBlockUpload.getReplyTimeout());
+        new asmBlockUpload(thePipe).upload(theBytes, 0, theBytes.length, 0);
+        theMemory[100] ^= 1;
+        theMemory[5000] = 0;
+        theMemory[5001] = 0;
+        //
+        asmUploadVerify theVerify = new asmUploadVerify(thePipe);
+        long startTime = System.currentTimeMillis();
+        int[][] theRanges = theVerify.verify(theBytes, 0, theBytes.length, 0);
+        System.out.println("+ Blocks verified: " + theVerify.getHashCount() + ", blocks that differ: " + theRanges[0].length
+                + ", blocks read: " + theVerify.getReadCount() + ", seconds: " + (System.currentTimeMillis() - startTime) / 1000.0);
+        System.out.println("+ Time to read all " + theBytes.length + " bytes at " + asmUpload.getBaudRate() + " baud: "
+                + String.format("%.3f", theBytes.length * 10.0 / asmUpload.getBaudRate()) + " seconds.");
+        new asmBlockUpload(thePipe).uploadRanges(theBytes, theRanges[0], theRanges[1], 0, 0);
+        System.out.println("+ After uploading the blocks that differ, blocks that differ: " + theVerify.verify(theBytes, 0, theBytes.length, 0)[0].length);
+        thePipe.close();
+        //
+        System.out.println("+ Verify over a noisy line.");
+        thePipe = asmPipeTransport.create("test", asmUpload.getBaudRate());
+        new asmUploadDevice(thePipe.getPeer(), theMemory).start();
+        thePipe.getRxLine().setNoise(0.003, 0.0005, 3);
+        thePipe.getPeer().getRxLine().setNoise(0.003, 0.0005, 4);
+        thePipe.setReadTimeout(100);
+        theVerify = new asmUploadVerify(thePipe);
+        System.out.println("+ Blocks that differ: " + theVerify.verify(theBytes, 0, theBytes.length, 0)[0].length
+                + ", requests sent again: " + theVerify.getRetryCount());
+        thePipe.close();
+        System.out.println("\n+++ Exit.\n");
+    }
+}
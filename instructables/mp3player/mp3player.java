@@ -9,69 +9,199 @@ package mp3player;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class mp3player {
 
     static private int countFiles = 1;
     static private int countDirs = 0;
+    static private int copyThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
 
-    public static void dfPlayerCopy(String theDirectoryNameFrom, File dirFrom, String theDirectoryNameTo, File dirTo) {
-        // Get directory & file info into a list
+    // Names in a stable order: ignoring case, then by case.
+    // File.list() order depends on the file system, and the numbering must not.
+    private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int c = a.compareToIgnoreCase(b);
+            return c != 0 ? c : a.compareTo(b);
+        }
+    };
+
+    // A numbered MP3 file: where it's copied from, and its DFPlayer name.
+    static class Track {
+
+        final File from;
+        final File to;
+        boolean copied = false;
+
+        Track(File theFrom, File theTo) {
+            from = theFrom;
+            to = theTo;
+        }
+    }
+
+    // Scan results, in numbering order.
+    static final List<File> toDirectories = new ArrayList<>();
+    static final List<Track> toTracks = new ArrayList<>();
+
+    public static void setCopyThreads(int theThreads) {
+        copyThreads = Math.max(1, theThreads);
+    }
+
+    public static int getCopyThreads() {
+        return copyThreads;
+    }
+
+    private static String zeroPad(int theNumber, int theDigits) {
+        String theName = String.valueOf(theNumber);
+        while (theName.length() < theDigits) {
+            theName = "0" + theName;
+        }
+        return theName;
+    }
+
+    // -------------------------------------------------------------------------
+    // Phase 1: scan the from-directory, and assign the folder and track numbers.
+    // Nothing is copied, so the numbering is decided before any copying starts.
+    public static void dfPlayerScan(String theDirectoryNameFrom, File dirFrom, String theDirectoryNameTo) {
         String[] children = dirFrom.list();
+        if (children == null) {
+            System.out.println("- Error, cannot list the directory: " + theDirectoryNameFrom);
+            return;
+        }
+        Arrays.sort(children, NAME_ORDER);
         for (int i = 0; i < children.length; i++) {
             String filename = children[i];
             File theName = new File(theDirectoryNameFrom + "/" + filename);
-            if (!theName.isFile()) {
+            if (theName.isDirectory()) {
                 // Process directories
-                // 
-                // Create to-directory.
                 countDirs++;
-                String countDirName = String.valueOf(countDirs);
-                if (countDirs < 10) {
-                    countDirName = "0" + countDirName;
-                }
-                System.out.println("++ From directory: " + theDirectoryNameTo + ", Create to-directory: " + countDirName);
+                String countDirName = zeroPad(countDirs, 2);
+                System.out.println("++ From directory: " + theName + ", to-directory: " + theDirectoryNameTo + "/" + countDirName);
                 File theNameTo = new File(theDirectoryNameTo + "/" + countDirName);
-                theNameTo.mkdir();
+                toDirectories.add(theNameTo);
                 //
                 // Use recursion to process subdirectories.
-                dfPlayerCopy(theDirectoryNameFrom + "/" + filename, theName, theDirectoryNameTo + "/" + countDirName, theNameTo);
+                dfPlayerScan(theDirectoryNameFrom + "/" + filename, theName, theDirectoryNameTo + "/" + countDirName);
                 //
             } else if (filename.toLowerCase().endsWith(".mp3")) {
                 // Process MP3 files.
-                File theFullPathNameFrom = new File(theDirectoryNameFrom + "/" + filename);
-                String countFilesName = String.valueOf(countFiles);
-                if (countFiles < 10) {
-                    countFilesName = "000" + countFilesName;
-                } else if (countFiles < 100) {
-                    countFilesName = "00" + countFilesName;
-                } else if (countFiles < 1000) {
-                    countFilesName = "0" + countFilesName;
-                }
-                File theFullPathNameTo = new File(theDirectoryNameTo + "/" + countFilesName + ".mp3");
-                // doCopyFile(theFullPathNameFrom, theFullPathNameTo);
+                String countFilesName = zeroPad(countFiles, 4);
+                toTracks.add(new Track(theName, new File(theDirectoryNameTo + "/" + countFilesName + ".mp3")));
+                countFiles++;
+            }
+        }
+    }
+
+    public static void dfPlayerScanAll(String theDirectoryNameFrom, File dirFrom, String theDirectoryNameTo) {
+        countFiles = 1;
+        countDirs = 0;
+        toDirectories.clear();
+        toTracks.clear();
+        dfPlayerScan(theDirectoryNameFrom, dirFrom, theDirectoryNameTo);
+        System.out.println("+ Scanned, directories: " + toDirectories.size() + ", MP3 files: " + toTracks.size() + ".");
+        if (countDirs > 99) {
+            System.out.println("- Warning, the DFPlayer module only plays directories 01 to 99.");
+        }
+    }
+
+    // Phase 2: create the to-directories, then the to-files in track order, then copy the tracks using a fixed number of threads.
+    // The DFPlayer's next and play commands use the order the directory entries were created, not the file names.
+    // The files are created on one thread, so the order is the same for any number of threads.
+    // Returns the number of files that failed to copy. Tracks that are copied, are marked copied.
+    public static int dfPlayerCopyTracks(List<Track> theTracks, int theThreads) {
+        for (File theDirectory : toDirectories) {
+            if (!theDirectory.isDirectory() && !theDirectory.mkdir()) {
+                System.out.println("- Error, cannot create the directory: " + theDirectory);
+                return theTracks.size();
+            }
+        }
+        long startNanos = System.nanoTime();
+        IOException[] createErrors = new IOException[theTracks.size()];
+        for (int i = 0; i < theTracks.size(); i++) {
+            try {
+                mp3playerCopy.createFile(theTracks.get(i).to);
+            } catch (IOException e) {
+                createErrors[i] = e;
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(theThreads);
+        List<Future<IOException>> results = new ArrayList<>(theTracks.size());
+        for (int i = 0; i < theTracks.size(); i++) {
+            final Track theTrack = theTracks.get(i);
+            if (createErrors[i] != null) {
+                results.add(CompletableFuture.completedFuture(createErrors[i]));
+                continue;
+            }
+            results.add(executor.submit(() -> {
                 try {
-                    Files.copy(theFullPathNameFrom.toPath(), theFullPathNameTo.toPath(), REPLACE_EXISTING, COPY_ATTRIBUTES);
-                    System.out.println("+ doCopyFile, copied from: " + theFullPathNameFrom + " to " + theFullPathNameTo);
-                    countFiles++;
+                    mp3playerCopy.copyFile(theTrack.from, theTrack.to);
+                    return null;
                 } catch (IOException e) {
-                    System.err.println("--- doCopyFile, Error: " + e.toString());
+                    return e;
                 }
-
+            }));
+        }
+        executor.shutdown();
+        //
+        // Report in track order, so the output is the same for any number of threads.
+        int errorCount = 0;
+        long byteCount = 0;
+        for (int i = 0; i < theTracks.size(); i++) {
+            Track theTrack = theTracks.get(i);
+            IOException theError;
+            try {
+                theError = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                executor.shutdownNow();
+                System.err.println("--- doCopyFile, Error: " + e.toString());
+                return theTracks.size() - i + errorCount;
+            }
+            if (theError == null) {
+                System.out.println("+ doCopyFile, copied from: " + theTrack.from + " to " + theTrack.to);
+                byteCount += theTrack.from.length();
+                theTrack.copied = true;
+            } else {
+                System.err.println("--- doCopyFile, Error: " + theError.toString());
+                theTrack.to.delete();
+                errorCount++;
             }
         }
-        System.out.println("eol...");
+        double theSeconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("+ Copied %d files, %.1f MB, in %.2f seconds, %.1f MB/second, using %d threads, %s.",
+                theTracks.size() - errorCount, byteCount / 1e6, theSeconds,
+                theSeconds > 0 ? byteCount / 1e6 / theSeconds : 0, theThreads, mp3playerCopy.getStrategyName()));
+        return errorCount;
+    }
 
+    public static void dfPlayerCopy(String theDirectoryNameFrom, File dirFrom, String theDirectoryNameTo, File dirTo) {
+        dfPlayerScanAll(theDirectoryNameFrom, dirFrom, theDirectoryNameTo);
+        int errorCount = dfPlayerCopyTracks(toTracks, copyThreads);
+        if (mp3playerCopy.isFsync()) {
+            mp3playerCopy.fsyncDirectories(toTracks);
+        }
+        if (errorCount > 0) {
+            System.out.println("- Error, number of files not copied: " + errorCount);
+        }
+        System.out.println("eol...");
     }
 
     public static void main(String[] args) {
         System.out.println("+++ Start, DFPlayer module copy program.");
         if (args.length == 0) {
             System.out.println("Syntax:");
-            System.out.println("   java -jar mp3player.jar copy [<IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory>]");
+            System.out.println("   java -jar mp3player.jar copy [<IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory> [<threads>]]");
+            System.out.println("   java -jar mp3player.jar sync [<IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory> [<threads>]]");
+            System.out.println("   java -jar mp3player.jar benchmark [<OUT: DFPlayer formatted MP3 directory> [<MB>]]");
+            System.out.println("+ Add fsync to copy or sync, to fsync each directory after its files are copied.");
             System.out.println("");
             System.out.println("----------------------");
             System.out.println("This program copies a directory of MP3 files");
@@ -88,12 +218,26 @@ public class mp3player {
             System.out.println("----------------------");
             System.out.println("+ Run this program.");
             System.out.println("+ Syntax:");
-            System.out.println("   java -jar mp3player.jar copy [<IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory>]");
+            System.out.println("   java -jar mp3player.jar copy [<IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory> [<threads>]]");
             System.out.println("+ Syntax using defaults:");
             System.out.println("   java -jar mp3player.jar copy");
             System.out.println("+ Default directory names: mp3player1 and mp3player2.");
             System.out.println("+ Same as:");
             System.out.println("   java -jar mp3player.jar copy mp3player1 mp3player2.");
+            System.out.println("+ Files are copied in parallel, default threads: " + copyThreads + ".");
+            System.out.println("++ The directory and file numbers are the same for any number of threads,");
+            System.out.println("++ directories and files are numbered in name order.");
+            System.out.println("----------------------");
+            System.out.println("+ To update an SD card after adding, changing, or removing MP3 files, use sync instead of copy.");
+            System.out.println("+ Sync copies new and changed files, renames files that have new numbers, and deletes files no longer used.");
+            System.out.println("++ The sync file list is kept in the <OUT: directory>: " + mp3playerSync.MANIFEST_NAME);
+            System.out.println("++ The SD card doesn't need to be emptied, when the card was last written by sync.");
+            System.out.println("----------------------");
+            System.out.println("+ SD cards differ in speed for large sequential writes, and for several files at the same time.");
+            System.out.println("+ The benchmark writes test files to the <OUT: directory> (default: 32 MB, at the most: " + mp3playerCopy.BENCHMARK_MAX_MEGABYTES + " MB),");
+            System.out.println("++ and measures MB/second for each copy method, chunk size, and number of threads.");
+            System.out.println("++ The fastest is saved as " + mp3playerCopy.STRATEGY_NAME + " in the <OUT: directory>,");
+            System.out.println("++ and used by copy and sync to the directory, unless threads are given.");
             System.out.println("----------------------");
             System.out.println("+ Insert the SD card into your computer.");
             System.out.println("+ Delete the directories and files from the SD card.");
@@ -108,13 +252,53 @@ public class mp3player {
         }
         String theDirectoryNameFrom = "mp3player1";
         String theDirectoryNameTo = "mp3player2";
-        if (args[0].compareToIgnoreCase("copy") == 0) {
-            if (args.length == 3) {
+        if (args[0].compareToIgnoreCase("benchmark") == 0) {
+            int theMegabytes = 32;
+            if (args.length >= 2) {
+                theDirectoryNameTo = args[1];
+            }
+            try {
+                if (args.length >= 3) {
+                    theMegabytes = Integer.parseInt(args[2]);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("- Error, MB must be a number: " + args[2]);
+                return;
+            }
+            File dirTo = new File(theDirectoryNameTo);
+            if (!dirTo.isDirectory() || theMegabytes <= 0) {
+                System.out.println("benchmark [<OUT: DFPlayer formatted MP3 directory> [<MB>]]");
+                return;
+            }
+            if (theMegabytes > mp3playerCopy.BENCHMARK_MAX_MEGABYTES) {
+                System.out.println("- Error, MB must be from 1 to " + mp3playerCopy.BENCHMARK_MAX_MEGABYTES + ": " + theMegabytes);
+                return;
+            }
+            mp3playerCopy.benchmark(dirTo, theMegabytes);
+            System.out.println("\n+++ Exit.");
+            return;
+        }
+        int theThreads = 0;
+        boolean isSync = args[0].compareToIgnoreCase("sync") == 0;
+        if (args[0].compareToIgnoreCase("copy") == 0 || isSync) {
+            if (args.length >= 3) {
                 theDirectoryNameFrom = args[1];
                 theDirectoryNameTo = args[2];
             }
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].compareToIgnoreCase("fsync") == 0) {
+                    mp3playerCopy.setFsync(true);
+                    continue;
+                }
+                try {
+                    theThreads = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    System.out.println("- Error, threads must be a number: " + args[i]);
+                    return;
+                }
+            }
             if (args.length == 2) {
-                System.out.println("copy <IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory>");
+                System.out.println(args[0].toLowerCase() + " <IN: MP3 directory>  <OUT: DFPlayer formatted MP3 directory>");
                 return;
             }
         }
@@ -136,10 +320,18 @@ public class mp3player {
             System.out.println("\n+++ Exit.");
             return;
         }
+        mp3playerCopy.readStrategy(dirTo);
+        if (theThreads > 0) {
+            setCopyThreads(theThreads);
+        }
         System.out.print("++ Copy into DFPlayer formatted file and directory names,");
         System.out.print(" the <IN: directory> (" + theDirectoryNameTo + ")");
         System.out.println(" to the <OUT: directory> (" + theDirectoryNameFrom + ").\n");
-        dfPlayerCopy(theDirectoryNameFrom, dirFrom, theDirectoryNameTo, dirTo);
+        if (isSync) {
+            mp3playerSync.dfPlayerSync(theDirectoryNameFrom, dirFrom, theDirectoryNameTo, dirTo);
+        } else {
+            dfPlayerCopy(theDirectoryNameFrom, dirFrom, theDirectoryNameTo, dirTo);
+        }
 
         System.out.println("\n+++ Exit.");
     }
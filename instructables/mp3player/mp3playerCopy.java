@@ -0,0 +1,321 @@
+/*
+    DFPlayer copy engine, and a benchmark to pick the fastest copy strategy for an SD card.
+
+    Copy methods:
+    + channel : FileChannel.transferTo, in chunks. The chunk size is a multiple of 64K,
+                so each write starts at an aligned file offset. The operating system can copy
+                without the data passing through Java buffers.
+    + files   : Files.copy, into an output stream.
+    Both copy into an existing to-file, without creating it again, so the order of the directory entries stays
+    the order the files were created in, see mp3player.dfPlayerCopyTracks.
+    Optionally, fsync each to-directory after its files are copied: the files, then the directory.
+    Slower, but the files are on the card, not in the computer's write cache, when the copy finishes.
+
+    SD cards are very different from each other. Some are fast with several files written at the same time,
+    others are faster with one large sequential write at a time. The benchmark copies test files
+    to the <OUT: directory>, with each method, chunk size and number of threads, and measures MB/second.
+    Each benchmark run ends with an fsync, so the card speed is measured, not the write cache.
+    The fastest strategy is saved into the <OUT: directory>, and used by copy and sync to that directory:
+        mp3player.strategy
+
+    Program is courtesy of Tiger Farm Press.
+    License: GPL.
+ */
+package mp3player;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class mp3playerCopy {
+
+    public static final String METHOD_CHANNEL = "channel";
+    public static final String METHOD_FILES = "files";
+    public static final String STRATEGY_NAME = "mp3player.strategy";
+    private static final String BENCHMARK_NAME = "mp3player.benchmark";
+    private static final int ALIGNMENT = 65536;
+    private static final int[] BENCHMARK_CHUNKS = {256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 16 * 1024 * 1024};
+    private static final int[] BENCHMARK_THREADS = {1, 2, 4};
+    private static final int BENCHMARK_FILES = 8;
+    // Each test file is built in memory, 128 MB at the most.
+    public static final int BENCHMARK_MAX_MEGABYTES = 1024;
+
+    static private String copyMethod = METHOD_CHANNEL;
+    static private int chunkSize = 4 * 1024 * 1024;
+    static private boolean fsync = false;
+
+    // -------------------------------------------------------------------------
+    public static void setCopyMethod(String theMethod) {
+        copyMethod = theMethod.equalsIgnoreCase(METHOD_FILES) ? METHOD_FILES : METHOD_CHANNEL;
+    }
+
+    public static String getCopyMethod() {
+        return copyMethod;
+    }
+
+    // Rounded up to a multiple of 64K.
+    public static void setChunkSize(int theChunkSize) {
+        chunkSize = Math.max(ALIGNMENT, (theChunkSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+    }
+
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    public static void setFsync(boolean theFsync) {
+        fsync = theFsync;
+    }
+
+    public static boolean isFsync() {
+        return fsync;
+    }
+
+    public static String getStrategyName() {
+        return strategyName(copyMethod, chunkSize) + (fsync ? ", fsync each directory" : "");
+    }
+
+    private static String strategyName(String theMethod, int theChunkSize) {
+        return theMethod.equals(METHOD_FILES) ? METHOD_FILES : METHOD_CHANNEL + " " + theChunkSize / 1024 + "K chunks";
+    }
+
+    // -------------------------------------------------------------------------
+    public static void copyFile(File theFrom, File theTo) throws IOException {
+        copyFile(theFrom, theTo, copyMethod, chunkSize);
+    }
+
+    public static void copyFile(File theFrom, File theTo, String theMethod, int theChunkSize) throws IOException {
+        if (theMethod.equals(METHOD_FILES)) {
+            try (OutputStream out = Files.newOutputStream(theTo.toPath(), WRITE, CREATE, TRUNCATE_EXISTING)) {
+                Files.copy(theFrom.toPath(), out);
+            }
+            Files.setLastModifiedTime(theTo.toPath(), Files.getLastModifiedTime(theFrom.toPath()));
+            return;
+        }
+        try (FileChannel in = FileChannel.open(theFrom.toPath(), READ);
+                FileChannel out = FileChannel.open(theTo.toPath(), WRITE, CREATE, TRUNCATE_EXISTING)) {
+            long theSize = in.size();
+            long thePosition = 0;
+            while (thePosition < theSize) {
+                long theCount = in.transferTo(thePosition, Math.min(theChunkSize, theSize - thePosition), out);
+                if (theCount <= 0) {
+                    throw new IOException("Copy stopped at byte " + thePosition + ": " + theFrom);
+                }
+                thePosition += theCount;
+            }
+        }
+        Files.setLastModifiedTime(theTo.toPath(), Files.getLastModifiedTime(theFrom.toPath()));
+    }
+
+    // Create an empty to-file, for its directory entry. A file that is already there is deleted first,
+    // so its new entry is created in order, in the first free entry of the directory.
+    public static void createFile(File theTo) throws IOException {
+        Files.deleteIfExists(theTo.toPath());
+        Files.createFile(theTo.toPath());
+    }
+
+    // fsync the files, then their directory.
+    // A directory can't be opened for fsync on all operating systems, for example, Windows. Then only the files are synced.
+    static void fsyncDirectory(File theDirectory, List<File> theFiles) throws IOException {
+        for (File theFile : theFiles) {
+            try (FileChannel theChannel = FileChannel.open(theFile.toPath(), WRITE)) {
+                theChannel.force(true);
+            }
+        }
+        try (FileChannel theChannel = FileChannel.open(theDirectory.toPath(), READ)) {
+            theChannel.force(true);
+        } catch (IOException e) {
+            // Directory fsync isn't supported.
+        }
+    }
+
+    // fsync each to-directory of the copied tracks, in directory number order.
+    static void fsyncDirectories(List<mp3player.Track> theTracks) {
+        Map<File, List<File>> theDirectories = new LinkedHashMap<>();
+        for (File theDirectory : mp3player.toDirectories) {
+            theDirectories.put(theDirectory, new ArrayList<File>());
+        }
+        for (mp3player.Track theTrack : theTracks) {
+            if (theTrack.copied) {
+                File theDirectory = theTrack.to.getParentFile();
+                if (!theDirectories.containsKey(theDirectory)) {
+                    theDirectories.put(theDirectory, new ArrayList<File>());
+                }
+                theDirectories.get(theDirectory).add(theTrack.to);
+            }
+        }
+        for (Map.Entry<File, List<File>> theDirectory : theDirectories.entrySet()) {
+            if (theDirectory.getValue().isEmpty()) {
+                continue;
+            }
+            try {
+                fsyncDirectory(theDirectory.getKey(), theDirectory.getValue());
+                System.out.println("+ fsync: " + theDirectory.getKey() + ", files: " + theDirectory.getValue().size());
+            } catch (IOException e) {
+                System.err.println("--- fsync, Error: " + e.toString());
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Strategy file, saved by the benchmark. Returns true if the <OUT: directory> has one.
+    public static boolean readStrategy(File dirTo) {
+        File theFile = new File(dirTo, STRATEGY_NAME);
+        if (!theFile.isFile()) {
+            return false;
+        }
+        Properties theStrategy = new Properties();
+        try (InputStream in = new FileInputStream(theFile)) {
+            theStrategy.load(in);
+            setCopyMethod(theStrategy.getProperty("method", METHOD_CHANNEL));
+            setChunkSize(Integer.parseInt(theStrategy.getProperty("chunk", String.valueOf(chunkSize))));
+            mp3player.setCopyThreads(Integer.parseInt(theStrategy.getProperty("threads", String.valueOf(mp3player.getCopyThreads()))));
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("- Warning, cannot read " + theFile + ": " + e.toString());
+            return false;
+        }
+        System.out.println("+ Copy strategy from " + theFile + ": " + strategyName(copyMethod, chunkSize)
+                + ", threads: " + mp3player.getCopyThreads());
+        return true;
+    }
+
+    static void writeStrategy(File dirTo, String theMethod, int theChunkSize, int theThreads, double theRate) throws IOException {
+        Properties theStrategy = new Properties();
+        theStrategy.setProperty("method", theMethod);
+        theStrategy.setProperty("chunk", String.valueOf(theChunkSize));
+        theStrategy.setProperty("threads", String.valueOf(theThreads));
+        try (OutputStream out = new FileOutputStream(new File(dirTo, STRATEGY_NAME))) {
+            theStrategy.store(out, String.format("mp3player benchmark, %.1f MB/second", theRate));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Copy the test files, with an fsync at the end. Returns MB/second.
+    private static double benchmarkRun(List<File> theFiles, File theDirectory, final String theMethod, final int theChunkSize,
+            int theThreads) throws IOException {
+        List<File> theTargets = new ArrayList<>();
+        List<Callable<Void>> theCopies = new ArrayList<>();
+        long theBytes = 0;
+        for (final File theFrom : theFiles) {
+            final File theTo = new File(theDirectory, theFrom.getName());
+            theTargets.add(theTo);
+            theBytes += theFrom.length();
+            theCopies.add(() -> {
+                copyFile(theFrom, theTo, theMethod, theChunkSize);
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(theThreads);
+        long startNanos = System.nanoTime();
+        try {
+            for (Future<Void> theResult : executor.invokeAll(theCopies)) {
+                theResult.get();
+            }
+            fsyncDirectory(theDirectory, theTargets);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e.getCause() != null ? e.getCause() : e);
+        } finally {
+            executor.shutdownNow();
+        }
+        double theSeconds = (System.nanoTime() - startNanos) / 1e9;
+        for (File theTo : theTargets) {
+            theTo.delete();
+        }
+        return theSeconds > 0 ? theBytes / 1e6 / theSeconds : 0;
+    }
+
+    public static void benchmark(File dirTo, int theMegabytes) {
+        File theDirectory = new File(dirTo, BENCHMARK_NAME);
+        File theSourceDirectory = null;
+        List<File> theFiles = new ArrayList<>();
+        try {
+            // Test files, in the temporary directory, so reading them is from the computer's disk or cache.
+            theSourceDirectory = Files.createTempDirectory("mp3player").toFile();
+            int theFileSize = (int) Math.max(1, Math.min(theMegabytes, BENCHMARK_MAX_MEGABYTES) * 1024L * 1024L / BENCHMARK_FILES);
+            Random theRandom = new Random(1);
+            byte[] theData = new byte[theFileSize];
+            for (int i = 0; i < BENCHMARK_FILES; i++) {
+                theRandom.nextBytes(theData);
+                File theFile = new File(theSourceDirectory, String.format("%04d.mp3", i + 1));
+                Files.write(theFile.toPath(), theData);
+                theFiles.add(theFile);
+            }
+            if (!theDirectory.isDirectory() && !theDirectory.mkdir()) {
+                System.out.println("- Error, cannot create the directory: " + theDirectory);
+                return;
+            }
+            System.out.println("+ Benchmark, " + theMegabytes + " MB in " + BENCHMARK_FILES + " files, to: " + theDirectory);
+            System.out.println(String.format("++ %-22s %8s %12s", "Method", "Threads", "MB/second"));
+            String bestMethod = null;
+            int bestChunk = 0;
+            int bestThreads = 0;
+            double bestRate = 0;
+            List<String> theMethods = new ArrayList<>();
+            List<Integer> theChunks = new ArrayList<>();
+            theMethods.add(METHOD_FILES);
+            theChunks.add(chunkSize);
+            for (int theChunk : BENCHMARK_CHUNKS) {
+                theMethods.add(METHOD_CHANNEL);
+                theChunks.add(theChunk);
+            }
+            for (int i = 0; i < theMethods.size(); i++) {
+                for (int theThreads : BENCHMARK_THREADS) {
+                    double theRate = benchmarkRun(theFiles, theDirectory, theMethods.get(i), theChunks.get(i), theThreads);
+                    System.out.println(String.format("++ %-22s %8d %12.1f",
+                            strategyName(theMethods.get(i), theChunks.get(i)), theThreads, theRate));
+                    if (theRate > bestRate) {
+                        bestMethod = theMethods.get(i);
+                        bestChunk = theChunks.get(i);
+                        bestThreads = theThreads;
+                        bestRate = theRate;
+                    }
+                }
+            }
+            if (bestMethod == null) {
+                System.out.println("- Error, no benchmark results.");
+                return;
+            }
+            System.out.println(String.format("+ Fastest: %s, threads: %d, %.1f MB/second.",
+                    strategyName(bestMethod, bestChunk), bestThreads, bestRate));
+            writeStrategy(dirTo, bestMethod, bestChunk, bestThreads, bestRate);
+            System.out.println("+ Saved to: " + new File(dirTo, STRATEGY_NAME) + ", used by copy and sync to this directory.");
+        } catch (IOException e) {
+            System.err.println("--- Benchmark, Error: " + e.toString());
+        } finally {
+            for (File theFile : theFiles) {
+                theFile.delete();
+            }
+            if (theSourceDirectory != null) {
+                theSourceDirectory.delete();
+            }
+            File[] theLeftovers = theDirectory.listFiles();
+            if (theLeftovers != null) {
+                for (File theFile : theLeftovers) {
+                    theFile.delete();
+                }
+            }
+            theDirectory.delete();
+        }
+    }
+}
+
+// eof
@@ -0,0 +1,443 @@
+/*
+    Incremental DFPlayer copy: sync a directory of MP3 files with a DFPlayer formatted directory.
+
+    Copying a large library to an SD card takes a long time, and most of the files haven't changed since the last copy.
+    The sync writes a manifest file into the <OUT: directory>, one line for each DFPlayer file:
+        <target>  <size>  <last modified milliseconds>  <SHA-256 content hash>  <source path>
+    The target and source paths are relative to the <OUT: directory> and the <IN: directory>. Values are tab separated.
+
+    The directory and file numbers are the same as the copy command. On a re-run, for each numbered target file:
+    + Unchanged : the manifest has the same content hash for the target, and the target file has the manifest size.
+    + Moved     : another target has the content, because a file was added or removed before it in name order.
+                  The target file is renamed, which is much faster than copying it again.
+    + Copied    : new or changed content.
+    Targets in the manifest that are no longer used are deleted, and then empty numbered directories.
+    Moves go through temporary "mp3player.move.<n>" files in the <OUT: directory>.
+    The DFPlayer plays a directory's files in the order their directory entries were created, see mp3player.dfPlayerCopyTracks.
+    Moved and copied files get new entries, in the first free places, so after the moves and copies,
+    each directory with a moved or copied file has its files moved out to "mp3player.order", and back in track order.
+    Temporary files left by an interrupted sync are hashed at the start of the next sync,
+    then moved to a target with the same content, or deleted.
+
+    Source file hashes are reused from the manifest when the source path, size, and last modified time are unchanged,
+    so a re-run with no changes reads the directories, but not the MP3 files.
+    Files in the <OUT: directory> that are not in the manifest, are only replaced when a numbered target has the same name.
+
+    Program is courtesy of Tiger Farm Press.
+    License: GPL.
+ */
+package mp3player;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class mp3playerSync {
+
+    public static final String MANIFEST_NAME = "mp3player.manifest";
+    private static final String MANIFEST_HEADER = "# mp3player sync manifest, version 1";
+    private static final String MOVE_PREFIX = "mp3player.move.";
+    private static final String ORDER_NAME = "mp3player.order";
+    private static final int HASH_BUFFER_SIZE = 65536;
+
+    // A manifest line.
+    static class Entry {
+
+        final String target;
+        final long size;
+        final long lastModified;
+        final String hash;
+        final String source;
+
+        Entry(String theTarget, long theSize, long theLastModified, String theHash, String theSource) {
+            target = theTarget;
+            size = theSize;
+            lastModified = theLastModified;
+            hash = theHash;
+            source = theSource;
+        }
+
+        String toLine() {
+            return target + "\t" + size + "\t" + lastModified + "\t" + hash + "\t" + source;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Manifest file, keyed by target.
+    static Map<String, Entry> readManifest(File theManifest) {
+        Map<String, Entry> theEntries = new LinkedHashMap<>();
+        if (!theManifest.isFile()) {
+            return theEntries;
+        }
+        try (BufferedReader in = Files.newBufferedReader(theManifest.toPath(), StandardCharsets.UTF_8)) {
+            String theLine;
+            while ((theLine = in.readLine()) != null) {
+                if (theLine.startsWith("#") || theLine.isEmpty()) {
+                    continue;
+                }
+                String[] theValues = theLine.split("\t", 5);
+                if (theValues.length != 5) {
+                    System.out.println("- Warning, ignored manifest line: " + theLine);
+                    continue;
+                }
+                try {
+                    theEntries.put(theValues[0], new Entry(theValues[0],
+                            Long.parseLong(theValues[1]), Long.parseLong(theValues[2]), theValues[3], theValues[4]));
+                } catch (NumberFormatException e) {
+                    System.out.println("- Warning, ignored manifest line: " + theLine);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("- Warning, cannot read the manifest, all files are copied: " + e.toString());
+            theEntries.clear();
+        }
+        return theEntries;
+    }
+
+    // Written to a temporary file, then renamed, so an interrupted sync leaves the previous manifest.
+    static void writeManifest(File theManifest, List<Entry> theEntries) throws IOException {
+        File theTemp = new File(theManifest.getPath() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(theTemp.toPath(), StandardCharsets.UTF_8)) {
+            out.write(MANIFEST_HEADER);
+            out.newLine();
+            for (Entry theEntry : theEntries) {
+                out.write(theEntry.toLine());
+                out.newLine();
+            }
+        }
+        Files.move(theTemp.toPath(), theManifest.toPath(), REPLACE_EXISTING);
+    }
+
+    // -------------------------------------------------------------------------
+    static String hashFile(File theFile) throws IOException {
+        MessageDigest theDigest;
+        try {
+            theDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] theBuffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(theFile)) {
+            int theLength;
+            while ((theLength = in.read(theBuffer)) > 0) {
+                theDigest.update(theBuffer, 0, theLength);
+            }
+        }
+        StringBuilder theHash = new StringBuilder();
+        for (byte b : theDigest.digest()) {
+            theHash.append(String.format("%02x", b & 0xff));
+        }
+        return theHash.toString();
+    }
+
+    // Paths in the manifest use "/", on any operating system.
+    private static String relativeName(File theDirectory, File theFile) {
+        Path thePath = theDirectory.toPath().toAbsolutePath().normalize().relativize(theFile.toPath().toAbsolutePath().normalize());
+        return thePath.toString().replace(File.separatorChar, '/');
+    }
+
+    // Files left at temporary move names, or in the order directory, by an interrupted sync, with their content hashes.
+    // A file that cannot be read is deleted, its content is copied again.
+    private static List<Entry> leftoverMoves(File dirTo) {
+        List<Entry> theLeftovers = new ArrayList<>();
+        List<File> theFiles = new ArrayList<>();
+        File[] theMoveFiles = dirTo.listFiles((theDirectory, theName) -> theName.startsWith(MOVE_PREFIX));
+        if (theMoveFiles != null) {
+            theFiles.addAll(Arrays.asList(theMoveFiles));
+        }
+        File[] theOrderFiles = new File(dirTo, ORDER_NAME).listFiles();
+        if (theOrderFiles != null) {
+            theFiles.addAll(Arrays.asList(theOrderFiles));
+        }
+        for (File theFile : theFiles) {
+            try {
+                theLeftovers.add(new Entry(relativeName(dirTo, theFile), theFile.length(), theFile.lastModified(), hashFile(theFile), ""));
+            } catch (IOException e) {
+                System.out.println("- Warning, cannot read a file left by an interrupted sync: " + e.toString());
+                if (!theFile.delete()) {
+                    System.out.println("- Error, cannot delete: " + theFile);
+                }
+            }
+        }
+        if (!theLeftovers.isEmpty()) {
+            System.out.println("+ Files left by an interrupted sync: " + theLeftovers.size() + ".");
+        }
+        return theLeftovers;
+    }
+
+    // Hash the source files, in parallel, reusing the manifest hash when the size and last modified time are unchanged.
+    // Returns null if a file cannot be read.
+    private static List<Entry> sourceEntries(File dirFrom, File dirTo, List<mp3player.Track> theTracks,
+            Map<String, Entry> theSourceEntries, int theThreads) {
+        ExecutorService executor = Executors.newFixedThreadPool(theThreads);
+        List<Future<Entry>> results = new ArrayList<>(theTracks.size());
+        int hashCount = 0;
+        for (final mp3player.Track theTrack : theTracks) {
+            final String theSource = relativeName(dirFrom, theTrack.from);
+            final String theTarget = relativeName(dirTo, theTrack.to);
+            final long theSize = theTrack.from.length();
+            final long theLastModified = theTrack.from.lastModified();
+            final Entry theOldEntry = theSourceEntries.get(theSource);
+            if (theOldEntry != null && theOldEntry.size == theSize && theOldEntry.lastModified == theLastModified) {
+                results.add(executor.submit(() -> new Entry(theTarget, theSize, theLastModified, theOldEntry.hash, theSource)));
+            } else {
+                hashCount++;
+                results.add(executor.submit(() -> new Entry(theTarget, theSize, theLastModified, hashFile(theTrack.from), theSource)));
+            }
+        }
+        executor.shutdown();
+        List<Entry> theEntries = new ArrayList<>(theTracks.size());
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                theEntries.add(results.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                executor.shutdownNow();
+                System.err.println("--- Hash, Error: " + theTracks.get(i).from + ", " + e.getCause());
+                return null;
+            }
+        }
+        System.out.println("+ Hashed, new or changed MP3 files: " + hashCount + ".");
+        return theEntries;
+    }
+
+    // -------------------------------------------------------------------------
+    public static void dfPlayerSync(String theDirectoryNameFrom, File dirFrom, String theDirectoryNameTo, File dirTo) {
+        mp3player.dfPlayerScanAll(theDirectoryNameFrom, dirFrom, theDirectoryNameTo);
+        List<mp3player.Track> theTracks = mp3player.toTracks;
+        File theManifest = new File(dirTo, MANIFEST_NAME);
+        Map<String, Entry> theOldEntries = readManifest(theManifest);
+        Map<String, Entry> theSourceEntries = new HashMap<>();
+        for (Entry theEntry : theOldEntries.values()) {
+            theSourceEntries.put(theEntry.source, theEntry);
+        }
+        List<Entry> theNewEntries = sourceEntries(dirFrom, dirTo, theTracks, theSourceEntries, mp3player.getCopyThreads());
+        if (theNewEntries == null) {
+            System.out.println("- Error, sync stopped, the <OUT: directory> is not changed.");
+            return;
+        }
+        //
+        // Old targets that are still on the card, and files left by an interrupted sync, by content hash.
+        List<Entry> theLeftovers = leftoverMoves(dirTo);
+        List<Entry> theCandidates = new ArrayList<>(theOldEntries.values());
+        theCandidates.addAll(theLeftovers);
+        Map<String, List<Entry>> theOldByHash = new HashMap<>();
+        for (Entry theEntry : theCandidates) {
+            File theFile = new File(dirTo, theEntry.target);
+            if (theFile.isFile() && theFile.length() == theEntry.size) {
+                List<Entry> theList = theOldByHash.get(theEntry.hash);
+                if (theList == null) {
+                    theList = new ArrayList<>();
+                    theOldByHash.put(theEntry.hash, theList);
+                }
+                theList.add(theEntry);
+            }
+        }
+        // First keep unchanged targets, then use the other old targets for moves.
+        Set<String> theUsedTargets = new HashSet<>();
+        boolean[] isUnchanged = new boolean[theTracks.size()];
+        for (int i = 0; i < theTracks.size(); i++) {
+            Entry theNew = theNewEntries.get(i);
+            Entry theOld = theOldEntries.get(theNew.target);
+            if (theOld != null && theOld.hash.equals(theNew.hash) && theOldByHash.containsKey(theOld.hash)
+                    && theOldByHash.get(theOld.hash).contains(theOld)) {
+                isUnchanged[i] = true;
+                theUsedTargets.add(theNew.target);
+                theOldByHash.get(theOld.hash).remove(theOld);
+            }
+        }
+        Map<Integer, Entry> theMoves = new LinkedHashMap<>();
+        List<mp3player.Track> theCopies = new ArrayList<>();
+        for (int i = 0; i < theTracks.size(); i++) {
+            if (isUnchanged[i]) {
+                continue;
+            }
+            List<Entry> theList = theOldByHash.get(theNewEntries.get(i).hash);
+            if (theList != null && !theList.isEmpty()) {
+                Entry theOld = theList.remove(0);
+                theUsedTargets.add(theOld.target);
+                theMoves.put(i, theOld);
+            } else {
+                theCopies.add(theTracks.get(i));
+            }
+        }
+        System.out.println("+ Sync, unchanged: " + (theTracks.size() - theMoves.size() - theCopies.size())
+                + ", moved: " + theMoves.size() + ", to copy: " + theCopies.size() + ".");
+        //
+        // Moves are done in two steps, through temporary names, because one move may be to the name of another.
+        // A file left by an interrupted sync is already at a temporary name. New names are numbered after the left files.
+        Map<Integer, File> theMoveFiles = new LinkedHashMap<>();
+        int theMoveNumber = 0;
+        for (Entry theLeftover : theLeftovers) {
+            if (!theLeftover.target.startsWith(MOVE_PREFIX)) {
+                continue;
+            }
+            try {
+                theMoveNumber = Math.max(theMoveNumber, Integer.parseInt(theLeftover.target.substring(MOVE_PREFIX.length())) + 1);
+            } catch (NumberFormatException e) {
+                // Not a name from a sync, it doesn't take a number.
+            }
+        }
+        for (Map.Entry<Integer, Entry> theMove : theMoves.entrySet()) {
+            File theFrom = new File(dirTo, theMove.getValue().target);
+            if (theLeftovers.contains(theMove.getValue())) {
+                theMoveFiles.put(theMove.getKey(), theFrom);
+                continue;
+            }
+            File theTemp = new File(dirTo, MOVE_PREFIX + (theMoveNumber++));
+            try {
+                Files.move(theFrom.toPath(), theTemp.toPath(), REPLACE_EXISTING);
+                theMoveFiles.put(theMove.getKey(), theTemp);
+            } catch (IOException e) {
+                System.err.println("--- Move, Error: " + e.toString());
+                theCopies.add(theTracks.get(theMove.getKey()));
+            }
+        }
+        // Delete the old targets, and the left files, that are not used.
+        int theDeleteCount = 0;
+        for (Entry theOld : theCandidates) {
+            if (!theUsedTargets.contains(theOld.target)) {
+                File theFile = new File(dirTo, theOld.target);
+                if (theFile.isFile()) {
+                    if (theFile.delete()) {
+                        System.out.println("+ Deleted: " + theFile);
+                        theDeleteCount++;
+                    } else {
+                        System.out.println("- Error, cannot delete: " + theFile);
+                    }
+                }
+            }
+        }
+        for (File theDirectory : mp3player.toDirectories) {
+            if (!theDirectory.isDirectory() && !theDirectory.mkdir()) {
+                System.out.println("- Error, cannot create the directory: " + theDirectory);
+            }
+        }
+        for (Map.Entry<Integer, File> theMove : theMoveFiles.entrySet()) {
+            mp3player.Track theTrack = theTracks.get(theMove.getKey());
+            try {
+                Files.move(theMove.getValue().toPath(), theTrack.to.toPath(), REPLACE_EXISTING);
+                theTrack.copied = true;
+                System.out.println("+ Moved: " + theMoves.get(theMove.getKey()).target + " to " + theTrack.to);
+            } catch (IOException e) {
+                System.err.println("--- Move, Error: " + e.toString());
+                theMove.getValue().delete();
+                theCopies.add(theTrack);
+            }
+        }
+        //
+        int errorCount = 0;
+        if (!theCopies.isEmpty()) {
+            errorCount = mp3player.dfPlayerCopyTracks(theCopies, mp3player.getCopyThreads());
+        }
+        // Directories with moved or copied files, in track order.
+        Map<File, List<mp3player.Track>> theChanged = new LinkedHashMap<>();
+        for (int i = 0; i < theTracks.size(); i++) {
+            File theDirectory = theTracks.get(i).to.getParentFile();
+            if (!isUnchanged[i] && theTracks.get(i).copied && !theChanged.containsKey(theDirectory)) {
+                theChanged.put(theDirectory, new ArrayList<>());
+            }
+        }
+        for (mp3player.Track theTrack : theTracks) {
+            List<mp3player.Track> theList = theChanged.get(theTrack.to.getParentFile());
+            if (theList != null) {
+                theList.add(theTrack);
+            }
+        }
+        for (List<mp3player.Track> theList : theChanged.values()) {
+            orderDirectory(new File(dirTo, ORDER_NAME), theList);
+        }
+        new File(dirTo, ORDER_NAME).delete();
+        if (mp3playerCopy.isFsync()) {
+            mp3playerCopy.fsyncDirectories(theTracks);
+        }
+        deleteEmptyDirectories(dirTo);
+        //
+        // Tracks that failed to copy are left out of the manifest, so the next sync copies them.
+        List<Entry> theManifestEntries = new ArrayList<>(theTracks.size());
+        for (int i = 0; i < theTracks.size(); i++) {
+            if (isUnchanged[i] || theTracks.get(i).copied) {
+                theManifestEntries.add(theNewEntries.get(i));
+            }
+        }
+        try {
+            writeManifest(theManifest, theManifestEntries);
+        } catch (IOException e) {
+            System.out.println("- Error, cannot write the manifest: " + e.toString());
+        }
+        System.out.println("+ Synced, deleted: " + theDeleteCount + ".");
+        if (errorCount > 0) {
+            System.out.println("- Error, number of files not copied: " + errorCount);
+        }
+        System.out.println("eol...");
+    }
+
+    // Move a directory's track files out, then back in track order, so their directory entries are created in track order.
+    // A file that fails to move back stays in the order directory, and the next sync moves it back as a left file.
+    private static void orderDirectory(File theOrderDirectory, List<mp3player.Track> theTracks) {
+        if (!theOrderDirectory.isDirectory() && !theOrderDirectory.mkdir()) {
+            System.out.println("- Error, cannot create the directory: " + theOrderDirectory);
+            return;
+        }
+        List<mp3player.Track> theMoved = new ArrayList<>(theTracks.size());
+        for (mp3player.Track theTrack : theTracks) {
+            if (theTrack.to.isFile()) {
+                try {
+                    Files.move(theTrack.to.toPath(), new File(theOrderDirectory, theTrack.to.getName()).toPath(), REPLACE_EXISTING);
+                    theMoved.add(theTrack);
+                } catch (IOException e) {
+                    System.err.println("--- Order, Error: " + e.toString());
+                }
+            }
+        }
+        for (mp3player.Track theTrack : theMoved) {
+            try {
+                Files.move(new File(theOrderDirectory, theTrack.to.getName()).toPath(), theTrack.to.toPath());
+            } catch (IOException e) {
+                System.err.println("--- Order, Error: " + e.toString());
+            }
+        }
+        System.out.println("+ Ordered, directory: " + theTracks.get(0).to.getParentFile() + ", files: " + theMoved.size() + ".");
+    }
+
+    // Delete empty numbered directories, for example, after a source directory is removed.
+    private static void deleteEmptyDirectories(File theDirectory) {
+        File[] children = theDirectory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File theChild : children) {
+            if (theChild.isDirectory() && theChild.getName().matches("[0-9]+")) {
+                deleteEmptyDirectories(theChild);
+                String[] theNames = theChild.list();
+                if (theNames != null && theNames.length == 0 && !mp3player.toDirectories.contains(theChild)) {
+                    if (theChild.delete()) {
+                        System.out.println("+ Deleted directory: " + theChild);
+                    }
+                }
+            }
+        }
+    }
+}
+
+// eof